@@ -0,0 +1,105 @@
+/**
+ * Copyright 2000-2014 NeuStar, Inc. All rights reserved.
+ * NeuStar, the Neustar logo and related names and logos are registered
+ * trademarks, service marks or tradenames of NeuStar, Inc. All other
+ * product names, company names, marks, logos and symbols may be trademarks
+ * of their respective owners.
+ */
+
+package biz.neustar.jenkins.plugins.packer;
+
+import hudson.FilePath;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writing the file entries of a job to a local {@link FilePath}: one temp file each, and through
+ * {@link PackerStaging} as each build does, with and without the staging cache.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class FileEntriesBenchmark {
+
+    @Param({"1", "10"})
+    public int entries;
+
+    @Param({"64", "16384"})
+    public int size;
+
+    private File dir;
+    private FilePath workspace;
+    private FilePath cacheRoot;
+    private PackerPublisher publisher;
+    private List<PackerFileEntry> fileEntries;
+
+    @Setup
+    public void setup() throws Exception {
+        dir = File.createTempFile("packer-bench", "");
+        if (!dir.delete() || !dir.mkdirs()) {
+            throw new IllegalStateException("Cannot create " + dir);
+        }
+        workspace = new FilePath(dir);
+        cacheRoot = workspace.child(PackerStagingCache.CACHE_DIR);
+
+        StringBuilder contents = new StringBuilder();
+        while (contents.length() < size) {
+            contents.append("-----BEGIN CERTIFICATE-----\n");
+        }
+        fileEntries = new ArrayList<>();
+        for (int i = 0; i < entries; i++) {
+            fileEntries.add(new PackerFileEntry("entry" + i, contents.toString()));
+        }
+        publisher = new PackerPublisher("bench", "packer.json", "{}", null, "", fileEntries, false, null) {
+            @Override
+            public PackerInstallation getInstallation() {
+                return null;
+            }
+        };
+    }
+
+    @TearDown(Level.Iteration)
+    public void clean() throws Exception {
+        // keep the cache, drop the temp files piling up.
+        for (FilePath file : workspace.list("packer-plugin-*.tmp")) {
+            file.delete();
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        workspace.deleteRecursive();
+    }
+
+    @Benchmark
+    public String tempFiles() throws Exception {
+        return publisher.createTempFileEntries(workspace);
+    }
+
+    @Benchmark
+    public Map<String, String> staging() throws Exception {
+        PackerStaging.Result result = new PackerStaging().stagingDir(workspace).fileEntries(fileEntries)
+                .stage(workspace);
+        return result.getFileEntries();
+    }
+
+    @Benchmark
+    public Map<String, String> stagingCache() throws Exception {
+        PackerStaging.Result result = new PackerStaging().cacheRoot(cacheRoot).fileEntries(fileEntries).stage(workspace);
+        return result.getFileEntries();
+    }
+}
@@ -0,0 +1,70 @@
+/**
+ * Copyright 2000-2014 NeuStar, Inc. All rights reserved.
+ * NeuStar, the Neustar logo and related names and logos are registered
+ * trademarks, service marks or tradenames of NeuStar, Inc. All other
+ * product names, company names, marks, logos and symbols may be trademarks
+ * of their respective owners.
+ */
+
+package biz.neustar.jenkins.plugins.packer;
+
+import hudson.EnvVars;
+import hudson.Util;
+import net.sf.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Expanding the params of a build the way {@link PackerPublisher#createParams} does, over a large build environment.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class MacroBenchmark {
+
+    @Param({"50", "2000"})
+    public int envSize;
+
+    @Param({"10", "200"})
+    public int vars;
+
+    private EnvVars env;
+    private String params;
+    private PackerInstallation installation;
+
+    @Setup
+    public void setup() {
+        env = new EnvVars();
+        for (int i = 0; i < envSize; i++) {
+            env.put("ENV_VAR_" + i, "value-of-env-var-" + i);
+        }
+        StringBuilder b = new StringBuilder();
+        for (int i = 0; i < vars; i++) {
+            b.append("-var var").append(i).append("=${ENV_VAR_").append(i % envSize).append("} ");
+        }
+        params = b.toString();
+        installation = new PackerInstallation("bench", "/opt/packer",
+                "-var 'secret=${ENV_VAR_0}' -var unset=${NOT_THERE}", new JSONObject(),
+                Collections.<PackerFileEntry>emptyList(), null);
+    }
+
+    @Benchmark
+    public String replaceMacro() {
+        return Util.replaceMacro(params, env);
+    }
+
+    @Benchmark
+    public List<String> createParams() {
+        return PackerPublisher.createParams(installation, params, env).toList();
+    }
+}
@@ -0,0 +1,77 @@
+/**
+ * Copyright 2000-2014 NeuStar, Inc. All rights reserved.
+ * NeuStar, the Neustar logo and related names and logos are registered
+ * trademarks, service marks or tradenames of NeuStar, Inc. All other
+ * product names, company names, marks, logos and symbols may be trademarks
+ * of their respective owners.
+ */
+
+package biz.neustar.jenkins.plugins.packer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link PackerPublisher#addParamsAsArgs(String)} on the params jobs actually use, and on the ones that hurt.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ParamsBenchmark {
+
+    @Param({"typical", "manyVars", "longQuoted", "unbalancedQuote", "whitespace"})
+    public String shape;
+
+    private String params;
+
+    @Setup
+    public void setup() {
+        StringBuilder b = new StringBuilder();
+        switch (shape) {
+            case "typical":
+                b.append("-var aws_access_key=${AWS_KEY} -var 'aws_secret_key=${AWS_SECRET}' ")
+                        .append("-var region=us-east-1 -var \"ami_name=base ${BUILD_NUMBER}\"");
+                break;
+            case "manyVars":
+                for (int i = 0; i < 500; i++) {
+                    b.append("-var var").append(i).append("=value").append(i).append(' ');
+                }
+                break;
+            case "longQuoted":
+                b.append("-var 'user_data=");
+                for (int i = 0; i < 10000; i++) {
+                    b.append("echo line ").append(i).append("; ");
+                }
+                b.append('\'');
+                break;
+            case "unbalancedQuote":
+                b.append("-var 'never_closed=");
+                for (int i = 0; i < 2000; i++) {
+                    b.append(" -var x").append(i).append("=y");
+                }
+                break;
+            case "whitespace":
+                for (int i = 0; i < 500; i++) {
+                    b.append("          -var a=b");
+                }
+                break;
+            default:
+                throw new IllegalArgumentException(shape);
+        }
+        params = b.toString();
+    }
+
+    @Benchmark
+    public List<String> addParamsAsArgs() {
+        return PackerPublisher.addParamsAsArgs(params);
+    }
+}
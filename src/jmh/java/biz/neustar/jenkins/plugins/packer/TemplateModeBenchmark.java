@@ -0,0 +1,54 @@
+/**
+ * Copyright 2000-2014 NeuStar, Inc. All rights reserved.
+ * NeuStar, the Neustar logo and related names and logos are registered
+ * trademarks, service marks or tradenames of NeuStar, Inc. All other
+ * product names, company names, marks, logos and symbols may be trademarks
+ * of their respective owners.
+ */
+
+package biz.neustar.jenkins.plugins.packer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Deciding which template a job uses, as done on every build and every config page render.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class TemplateModeBenchmark {
+
+    @Param({"global", "file", "text", ""})
+    public String mode;
+
+    private PackerPublisher publisher;
+
+    @Setup
+    public void setup() {
+        publisher = new PackerPublisher("bench", "packer.json", "{}", null, "",
+                Collections.<PackerFileEntry>emptyList(), false, null);
+        publisher.setTemplateMode(mode);
+    }
+
+    @Benchmark
+    public int resolve() {
+        if (publisher.isGlobalTemplate()) {
+            return 1;
+        } else if (publisher.isTextTemplate()) {
+            return 2;
+        } else if (publisher.isFileTemplate()) {
+            return 3;
+        }
+        return publisher.isGlobalTemplateChecked() ? 4 : 0;
+    }
+}
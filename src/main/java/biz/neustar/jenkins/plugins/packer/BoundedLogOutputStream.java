@@ -0,0 +1,153 @@
+/**
+ * Copyright 2000-2014 NeuStar, Inc. All rights reserved.
+ * NeuStar, the Neustar logo and related names and logos are registered
+ * trademarks, service marks or tradenames of NeuStar, Inc. All other
+ * product names, company names, marks, logos and symbols may be trademarks
+ * of their respective owners.
+ */
+
+package biz.neustar.jenkins.plugins.packer;
+
+import hudson.console.LineTransformationOutputStream;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Keeps huge packer logs, e.g. with <code>-debug</code> or <code>PACKER_LOG=1</code>, out of the build log.
+ * Every line goes to a gzip file. Only step headers (<code>==&gt; </code>) and lines that look like errors are
+ * passed through as they come, and the most recent lines are written out when packer finishes.
+ *
+ * Lines are matched on the raw bytes, so nothing is decoded for the lines that are only compressed, and the
+ * most recent lines are kept in buffers that are reused from one line to the next.
+ *
+ * It runs on the node packer runs on, so the full output is compressed there and only what the build log shows
+ * crosses the channel.
+ */
+public class BoundedLogOutputStream extends LineTransformationOutputStream {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    // lower case, matched ignoring the case of ASCII letters
+    private static final byte[][] PASS_THROUGH = {
+            "==> ".getBytes(UTF8),
+            "error".getBytes(UTF8),
+            "fail".getBytes(UTF8),
+            "panic".getBytes(UTF8),
+    };
+
+    /** Lines longer than this are cut short in the build log, they are kept whole in the file. */
+    static final int MAX_LINE = 4096;
+
+    private final OutputStream out;
+    private final File file;
+    private final OutputStream full;
+    private final int tailLines;
+    // a ring of the most recent lines, tail[next] is the oldest once it is full.
+    private final byte[][] tail;
+    private final int[] tailLengths;
+    private int next;
+    private int tailSize;
+    private long lines;
+    private long passedThrough;
+
+    /**
+     * @param tailLines the most recent lines written to the build log at the end.
+     */
+    public BoundedLogOutputStream(OutputStream out, File file, int tailLines) throws IOException {
+        this.out = out;
+        this.file = file;
+        this.full = new GZIPOutputStream(new BufferedOutputStream(new FileOutputStream(file), 64 * 1024));
+        this.tailLines = Math.max(tailLines, 0);
+        this.tail = new byte[this.tailLines][];
+        this.tailLengths = new int[this.tailLines];
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public long getLines() {
+        return lines;
+    }
+
+    @Override
+    protected void eol(byte[] b, int len) throws IOException {
+        full.write(b, 0, len);
+        lines++;
+        if (matches(b, len)) {
+            writeLine(b, len);
+            passedThrough++;
+        }
+        if (tailLines > 0) {
+            int shown = Math.min(len, MAX_LINE);
+            byte[] line = tail[next];
+            if (line == null || line.length < shown) {
+                line = tail[next] = new byte[Math.max(shown, 256)];
+            }
+            System.arraycopy(b, 0, line, 0, shown);
+            if (len > MAX_LINE) {
+                line[MAX_LINE - 1] = '\n';
+            }
+            tailLengths[next] = shown;
+            next = (next + 1) % tailLines;
+            tailSize = Math.min(tailSize + 1, tailLines);
+        }
+    }
+
+    // cut short lines still end the line.
+    private void writeLine(byte[] b, int len) throws IOException {
+        if (len > MAX_LINE) {
+            out.write(b, 0, MAX_LINE - 1);
+            out.write('\n');
+        } else {
+            out.write(b, 0, len);
+        }
+    }
+
+    static boolean matches(byte[] b, int len) {
+        for (byte[] pattern : PASS_THROUGH) {
+            if (indexOfIgnoreCase(b, len, pattern) >= 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static int indexOfIgnoreCase(byte[] b, int len, byte[] pattern) {
+        outer:
+        for (int i = 0; i <= len - pattern.length; i++) {
+            for (int j = 0; j < pattern.length; j++) {
+                byte c = b[i + j];
+                if (c >= 'A' && c <= 'Z') {
+                    c += 'a' - 'A';
+                }
+                if (c != pattern[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    @Override
+    public void close() throws IOException {
+        super.close();
+        full.close();
+        if (lines > passedThrough) {
+            out.write(("[packer] " + lines + " lines of output, " + passedThrough + " shown; the last " + tailSize
+                    + " follow, the full log is in " + file.getName() + "\n").getBytes(UTF8));
+            for (int i = 0; i < tailSize; i++) {
+                int slot = (next - tailSize + i + tailLines) % tailLines;
+                writeLine(tail[slot], tailLengths[slot]);
+            }
+        }
+        // leave the build log open.
+        out.flush();
+    }
+}
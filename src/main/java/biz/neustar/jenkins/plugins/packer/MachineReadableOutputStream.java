@@ -0,0 +1,361 @@
+/**
+ * Copyright 2000-2014 NeuStar, Inc. All rights reserved.
+ * NeuStar, the Neustar logo and related names and logos are registered
+ * trademarks, service marks or tradenames of NeuStar, Inc. All other
+ * product names, company names, marks, logos and symbols may be trademarks
+ * of their respective owners.
+ */
+
+package biz.neustar.jenkins.plugins.packer;
+
+import hudson.console.LineTransformationOutputStream;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Passes packer <code>-machine-readable</code> output through to the build log, while picking the
+ * builders, artifacts and errors out of it one line at a time.
+ *
+ * Lines are in the form <code>timestamp,target,type,data...</code>. Only the records of interest are
+ * decoded into strings, everything else is matched on the raw bytes so large logs stay cheap.
+ * See: <a href="https://www.packer.io/docs/commands/index.html">Machine-Readable Output</a>
+ *
+ * What was parsed is serializable, so it can be returned from the node packer ran on.
+ */
+public class MachineReadableOutputStream extends LineTransformationOutputStream implements Serializable {
+    private static final long serialVersionUID = 1L;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final byte[] ARTIFACT = "artifact".getBytes(UTF8);
+    private static final byte[] ERROR = "error".getBytes(UTF8);
+    private static final byte[] UI = "ui".getBytes(UTF8);
+    private static final byte[] PROVISIONING = "Provisioning with ".getBytes(UTF8);
+
+    /** Errors past this are dropped, a failing provisioner can report a lot of them. */
+    static final int MAX_ERRORS = 100;
+
+    private final transient OutputStream out;
+    private final List<String> builders = new ArrayList<>();
+    private final List<byte[]> builderBytes = new ArrayList<>();
+    private final Map<String, PackerArtifact> artifacts = new LinkedHashMap<>();
+    private final List<String> errors = new ArrayList<>();
+    private final Set<String> failedBuilders = new LinkedHashSet<>();
+
+    // timestamps are packer's own, in seconds.
+    private final Map<String, long[]> builderSpans = new LinkedHashMap<>();
+    private final Map<String, String> runningProvisioners = new HashMap<>();
+    private final Map<String, Long> provisionerStarts = new HashMap<>();
+    private final Map<String, Long> provisionerSeconds = new LinkedHashMap<>();
+
+    public MachineReadableOutputStream(OutputStream out) {
+        this.out = out;
+    }
+
+    @Override
+    protected void eol(byte[] b, int len) throws IOException {
+        out.write(b, 0, len);
+        parse(b, trimEOL(b, len));
+    }
+
+    private static int trimEOL(byte[] b, int len) {
+        while (len > 0 && (b[len - 1] == '\n' || b[len - 1] == '\r')) {
+            len--;
+        }
+        return len;
+    }
+
+    void parse(byte[] b, int len) {
+        int targetStart = indexOf(b, 0, len) + 1;
+        if (targetStart == 0) {
+            return;
+        }
+        int typeStart = indexOf(b, targetStart, len) + 1;
+        if (typeStart == 0) {
+            return;
+        }
+        int dataStart = indexOf(b, typeStart, len) + 1;
+        int typeEnd = dataStart == 0 ? len : dataStart - 1;
+
+        String target = null;
+        long timestamp = parseTimestamp(b, targetStart - 1);
+        if (typeStart - 1 > targetStart) {
+            target = builder(b, targetStart, typeStart - 1);
+            seen(target, timestamp);
+        }
+
+        if (dataStart == 0) {
+            return;
+        }
+        if (regionEquals(b, typeStart, typeEnd, ARTIFACT) && target != null) {
+            artifact(target, b, dataStart, len);
+        } else if (regionEquals(b, typeStart, typeEnd, ERROR)) {
+            // the summary at the end reports each failed build as its target.
+            if (target != null) {
+                failedBuilders.add(target);
+            }
+            error(decode(b, dataStart, len));
+        } else if (regionEquals(b, typeStart, typeEnd, UI)) {
+            int messageStart = indexOf(b, dataStart, len) + 1;
+            if (messageStart > 0 && regionEquals(b, dataStart, messageStart - 1, ERROR)) {
+                String message = decode(b, messageStart, len);
+                String failed = erroredBuilder(message);
+                if (failed != null) {
+                    failedBuilders.add(failed);
+                }
+                error(message);
+            } else if (messageStart > 0 && timestamp >= 0) {
+                int provisionerStart = find(b, messageStart, len, PROVISIONING);
+                if (provisionerStart >= 0) {
+                    String builder = target != null ? target : messageBuilder(decode(b, messageStart, provisionerStart));
+                    if (builder != null) {
+                        seen(builder, timestamp);
+                        provisioner(builder, provisionerName(decode(b, provisionerStart + PROVISIONING.length, len)),
+                                timestamp);
+                    }
+                }
+            }
+        }
+    }
+
+    private static long parseTimestamp(byte[] b, int end) {
+        if (end == 0) {
+            return -1;
+        }
+        long value = 0;
+        for (int i = 0; i < end; i++) {
+            if (b[i] < '0' || b[i] > '9') {
+                return -1;
+            }
+            value = value * 10 + (b[i] - '0');
+        }
+        return value;
+    }
+
+    private void seen(String builder, long timestamp) {
+        if (timestamp < 0) {
+            return;
+        }
+        long[] span = builderSpans.get(builder);
+        if (span == null) {
+            builderSpans.put(builder, new long[] {timestamp, timestamp});
+        } else {
+            span[1] = Math.max(span[1], timestamp);
+        }
+    }
+
+    // a provisioner runs until the next one of the same builder starts, or the builder is done.
+    private void provisioner(String builder, String name, long timestamp) {
+        endProvisioner(builder, timestamp);
+        String key = builder + ": " + name;
+        runningProvisioners.put(builder, key);
+        provisionerStarts.put(key, timestamp);
+    }
+
+    private void endProvisioner(String builder, long timestamp) {
+        String key = runningProvisioners.remove(builder);
+        if (key != null) {
+            long elapsed = Math.max(0, timestamp - provisionerStarts.remove(key));
+            Long total = provisionerSeconds.get(key);
+            provisionerSeconds.put(key, total == null ? elapsed : total + elapsed);
+        }
+    }
+
+    // e.g. "==> amazon-ebs: ", when packer did not set the target.
+    static String messageBuilder(String prefix) {
+        String message = prefix.trim();
+        if (!message.startsWith("==>") || !message.endsWith(":")) {
+            return null;
+        }
+        String builder = message.substring(3, message.length() - 1).trim();
+        return builder.isEmpty() ? null : builder;
+    }
+
+    // e.g. "Build 'amazon-ebs' errored: ..." or "Build 'amazon-ebs' errored after 2 minutes: ..."
+    static String erroredBuilder(String message) {
+        int start = message.indexOf("Build '");
+        if (start < 0) {
+            return null;
+        }
+        start += "Build '".length();
+        int end = message.indexOf("' errored", start);
+        return end > start ? message.substring(start, end) : null;
+    }
+
+    // e.g. "shell script: /tmp/packer-shell123" or "Ansible..."
+    static String provisionerName(String message) {
+        int end = message.indexOf(':');
+        String name = end >= 0 ? message.substring(0, end) : message;
+        while (name.endsWith(".")) {
+            name = name.substring(0, name.length() - 1);
+        }
+        return name.trim();
+    }
+
+    private static int find(byte[] b, int start, int end, byte[] expected) {
+        for (int i = start; i + expected.length <= end; i++) {
+            if (regionEquals(b, i, i + expected.length, expected)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private String builder(byte[] b, int start, int end) {
+        for (int i = 0; i < builderBytes.size(); i++) {
+            if (regionEquals(b, start, end, builderBytes.get(i))) {
+                return builders.get(i);
+            }
+        }
+        String builder = decode(b, start, end);
+        builders.add(builder);
+        builderBytes.add(builder.getBytes(UTF8));
+        return builder;
+    }
+
+    // data is: index,key,value...
+    private void artifact(String builder, byte[] b, int start, int end) {
+        int keyStart = indexOf(b, start, end) + 1;
+        if (keyStart == 0) {
+            return;
+        }
+        int valueStart = indexOf(b, keyStart, end) + 1;
+        int keyEnd = valueStart == 0 ? end : valueStart - 1;
+
+        int index;
+        try {
+            index = Integer.parseInt(decode(b, start, keyStart - 1));
+        } catch (NumberFormatException e) {
+            return;
+        }
+        String key = decode(b, keyStart, keyEnd);
+        String value = valueStart == 0 ? "" : decode(b, valueStart, end);
+
+        String artifactKey = builder + '\0' + index;
+        PackerArtifact artifact = artifacts.get(artifactKey);
+        if (artifact == null) {
+            artifact = new PackerArtifact(builder, index);
+            artifacts.put(artifactKey, artifact);
+        }
+        if ("id".equals(key)) {
+            artifact.setId(value);
+        } else if ("builder-id".equals(key)) {
+            artifact.setBuilderId(value);
+        } else if ("string".equals(key)) {
+            artifact.setDescription(value);
+        }
+    }
+
+    private void error(String message) {
+        if (errors.size() < MAX_ERRORS) {
+            errors.add(message);
+        }
+    }
+
+    private static int indexOf(byte[] b, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (b[i] == ',') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean regionEquals(byte[] b, int start, int end, byte[] expected) {
+        if (end - start != expected.length) {
+            return false;
+        }
+        for (int i = 0; i < expected.length; i++) {
+            if (b[start + i] != expected[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static String decode(byte[] b, int start, int end) {
+        String value = new String(b, start, end - start, UTF8);
+        if (value.indexOf('%') == -1 && value.indexOf('\\') == -1) {
+            return value;
+        }
+        return value.replace("%!(PACKER_COMMA)", ",").replace("\\n", "\n").replace("\\r", "\r");
+    }
+
+    public List<String> getBuilders() {
+        return Collections.unmodifiableList(builders);
+    }
+
+    /**
+     * @return the artifacts that reported an id.
+     */
+    public List<PackerArtifact> getArtifacts() {
+        List<PackerArtifact> result = new ArrayList<>();
+        for (PackerArtifact artifact : artifacts.values()) {
+            if (artifact.getId() != null) {
+                result.add(artifact);
+            }
+        }
+        return result;
+    }
+
+    public List<String> getErrors() {
+        return Collections.unmodifiableList(errors);
+    }
+
+    /**
+     * @return the builders packer reported as errored.
+     */
+    public Set<String> getFailedBuilders() {
+        return Collections.unmodifiableSet(failedBuilders);
+    }
+
+    /**
+     * @return builder to milliseconds between its first and last line of output.
+     */
+    public Map<String, Long> getBuilderDurations() {
+        Map<String, Long> result = new LinkedHashMap<>();
+        for (Map.Entry<String, long[]> entry : builderSpans.entrySet()) {
+            result.put(entry.getKey(), (entry.getValue()[1] - entry.getValue()[0]) * 1000);
+        }
+        return result;
+    }
+
+    /**
+     * @return "builder: provisioner" to milliseconds spent in it.
+     */
+    public Map<String, Long> getProvisionerDurations() {
+        Map<String, Long> result = new LinkedHashMap<>();
+        for (Map.Entry<String, Long> entry : provisionerSeconds.entrySet()) {
+            result.put(entry.getKey(), entry.getValue() * 1000);
+        }
+        // the last provisioner of each builder ran until the builder's last output.
+        for (Map.Entry<String, String> entry : runningProvisioners.entrySet()) {
+            String key = entry.getValue();
+            long elapsed = Math.max(0, builderSpans.get(entry.getKey())[1] - provisionerStarts.get(key)) * 1000;
+            Long total = result.get(key);
+            result.put(key, total == null ? elapsed : total + elapsed);
+        }
+        return result;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        super.close();
+        out.flush();
+    }
+}
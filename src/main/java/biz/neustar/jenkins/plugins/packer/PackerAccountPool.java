@@ -0,0 +1,53 @@
+/**
+ * Copyright 2000-2014 NeuStar, Inc. All rights reserved.
+ * NeuStar, the Neustar logo and related names and logos are registered
+ * trademarks, service marks or tradenames of NeuStar, Inc. All other
+ * product names, company names, marks, logos and symbols may be trademarks
+ * of their respective owners.
+ */
+
+package biz.neustar.jenkins.plugins.packer;
+
+import hudson.Extension;
+import hudson.Util;
+import hudson.model.AbstractDescribableImpl;
+import hudson.model.Descriptor;
+import java.io.Serializable;
+import org.kohsuke.stapler.DataBoundConstructor;
+
+/**
+ * A named limit on the packer builds running at once across the controller, e.g. for the builds sharing a
+ * cloud account and its API rate limits. A pool named after an installation limits the builds of that
+ * installation that do not name a pool of their own.
+ */
+public class PackerAccountPool extends AbstractDescribableImpl<PackerAccountPool> implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+    private final String name;
+    private final int maxConcurrency;
+
+    @DataBoundConstructor
+    public PackerAccountPool(String name, int maxConcurrency) {
+        this.name = Util.fixEmptyAndTrim(name);
+        this.maxConcurrency = maxConcurrency;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return the most builds of the pool running at once, 0 or less for no limit.
+     */
+    public int getMaxConcurrency() {
+        return maxConcurrency;
+    }
+
+    @Extension
+    public static class DescriptorImpl extends Descriptor<PackerAccountPool> {
+        @Override
+        public String getDisplayName() {
+            return "";
+        }
+    }
+}
@@ -0,0 +1,182 @@
+/**
+ * Copyright 2000-2014 NeuStar, Inc. All rights reserved.
+ * NeuStar, the Neustar logo and related names and logos are registered
+ * trademarks, service marks or tradenames of NeuStar, Inc. All other
+ * product names, company names, marks, logos and symbols may be trademarks
+ * of their respective owners.
+ */
+
+package biz.neustar.jenkins.plugins.packer;
+
+import hudson.util.ArgumentListBuilder;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Params tokenized once into arguments made of literal text and <code>$VAR</code> / <code>${VAR}</code>
+ * references, so a build only has to look up the variables. Expands the same way as tokenizing with
+ * {@link PackerPublisher#addParamsAsArgs(String)} and then calling {@link hudson.Util#replaceMacro} on each
+ * argument: unknown variables are left as they are, <code>$$</code> is a literal <code>$</code> and values are
+ * not expanded again.
+ */
+public final class PackerArgumentPlan implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private static final PackerArgumentPlan EMPTY = new PackerArgumentPlan("", false, Collections.<Argument>emptyList());
+
+    private final String source;
+    private final boolean masked;
+    private final List<Argument> arguments;
+
+    private PackerArgumentPlan(String source, boolean masked, List<Argument> arguments) {
+        this.source = source;
+        this.masked = masked;
+        this.arguments = arguments;
+    }
+
+    /**
+     * @param masked whether the expanded arguments are masked in the build log.
+     */
+    public static PackerArgumentPlan compile(String params, boolean masked) {
+        if (params == null || params.isEmpty()) {
+            return EMPTY;
+        }
+        List<Argument> arguments = new ArrayList<>();
+        for (String param : PackerPublisher.addParamsAsArgs(params)) {
+            String arg = param.trim();
+            if (arg.length() > 0) {
+                arguments.add(Argument.parse(arg));
+            }
+        }
+        return new PackerArgumentPlan(params, masked, Collections.unmodifiableList(arguments));
+    }
+
+    /**
+     * @return whether this plan was compiled from these params.
+     */
+    public boolean isFor(String params) {
+        return source.equals(params == null ? "" : params);
+    }
+
+    public boolean isMasked() {
+        return masked;
+    }
+
+    public int size() {
+        return arguments.size();
+    }
+
+    /**
+     * Add the arguments with the variables filled in.
+     */
+    public ArgumentListBuilder addTo(ArgumentListBuilder args, Map<String, String> env) {
+        for (Argument argument : arguments) {
+            args.add(argument.expand(env), masked);
+        }
+        return args;
+    }
+
+    public List<String> expand(Map<String, String> env) {
+        List<String> result = new ArrayList<>(arguments.size());
+        for (Argument argument : arguments) {
+            result.add(argument.expand(env));
+        }
+        return result;
+    }
+
+    /**
+     * Alternating literal text and variable names, starting with literal text, either of which can be empty.
+     */
+    static final class Argument implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private final String text;
+        // parts[2n] is literal, parts[2n+1] the variable name and refs[n] how it was written.
+        private final String[] parts;
+        private final String[] refs;
+
+        private Argument(String text, String[] parts, String[] refs) {
+            this.text = text;
+            this.parts = parts;
+            this.refs = refs;
+        }
+
+        // same syntax as Util.replaceMacro: $NAME with [A-Za-z0-9_], ${NAME} which also allows '.', or $$ for $
+        static Argument parse(String text) {
+            List<String> parts = new ArrayList<>();
+            List<String> refs = new ArrayList<>();
+            StringBuilder literal = new StringBuilder();
+            boolean escaped = false;
+            int literalStart = 0;
+            int i = text.indexOf('$');
+            while (i >= 0 && i < text.length() - 1) {
+                int nameStart;
+                int nameEnd;
+                int refEnd;
+                if (text.charAt(i + 1) == '$') {
+                    literal.append(text, literalStart, i).append('$');
+                    escaped = true;
+                    literalStart = i + 2;
+                    i = text.indexOf('$', literalStart);
+                    continue;
+                } else if (text.charAt(i + 1) == '{') {
+                    nameStart = i + 2;
+                    nameEnd = nameStart;
+                    while (nameEnd < text.length() && isNameChar(text.charAt(nameEnd), true)) {
+                        nameEnd++;
+                    }
+                    if (nameEnd == nameStart || nameEnd == text.length() || text.charAt(nameEnd) != '}') {
+                        i = text.indexOf('$', i + 1);
+                        continue;
+                    }
+                    refEnd = nameEnd + 1;
+                } else {
+                    nameStart = i + 1;
+                    nameEnd = nameStart;
+                    while (nameEnd < text.length() && isNameChar(text.charAt(nameEnd), false)) {
+                        nameEnd++;
+                    }
+                    if (nameEnd == nameStart) {
+                        i = text.indexOf('$', i + 1);
+                        continue;
+                    }
+                    refEnd = nameEnd;
+                }
+                parts.add(literal.append(text, literalStart, i).toString());
+                literal.setLength(0);
+                parts.add(text.substring(nameStart, nameEnd));
+                refs.add(text.substring(i, refEnd));
+                literalStart = refEnd;
+                i = text.indexOf('$', refEnd);
+            }
+            if (refs.isEmpty()) {
+                return new Argument(escaped ? literal.append(text, literalStart, text.length()).toString() : text,
+                        null, null);
+            }
+            parts.add(literal.append(text, literalStart, text.length()).toString());
+            return new Argument(text, parts.toArray(new String[parts.size()]), refs.toArray(new String[refs.size()]));
+        }
+
+        private static boolean isNameChar(char c, boolean braced) {
+            return (c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9') || c == '_'
+                    || (braced && c == '.');
+        }
+
+        String expand(Map<String, String> env) {
+            if (parts == null) {
+                return text;
+            }
+            StringBuilder b = new StringBuilder(text.length() + 16);
+            for (int i = 0; i < refs.length; i++) {
+                b.append(parts[2 * i]);
+                String value = env != null ? env.get(parts[2 * i + 1]) : null;
+                b.append(value != null ? value : refs[i]);
+            }
+            return b.append(parts[parts.length - 1]).toString();
+        }
+    }
+}
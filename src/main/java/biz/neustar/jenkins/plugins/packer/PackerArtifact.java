@@ -0,0 +1,67 @@
+/**
+ * Copyright 2000-2014 NeuStar, Inc. All rights reserved.
+ * NeuStar, the Neustar logo and related names and logos are registered
+ * trademarks, service marks or tradenames of NeuStar, Inc. All other
+ * product names, company names, marks, logos and symbols may be trademarks
+ * of their respective owners.
+ */
+
+package biz.neustar.jenkins.plugins.packer;
+
+import java.io.Serializable;
+
+/**
+ * An artifact reported by a packer builder in its machine-readable output,
+ * e.g. <code>amazon-ebs</code> with id <code>us-east-1:ami-123456</code>.
+ */
+public class PackerArtifact implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final String builder;
+    private final int index;
+    private String builderId;
+    private String id;
+    private String description;
+
+    public PackerArtifact(String builder, int index) {
+        this.builder = builder;
+        this.index = index;
+    }
+
+    public String getBuilder() {
+        return builder;
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    public String getBuilderId() {
+        return builderId;
+    }
+
+    public void setBuilderId(String builderId) {
+        this.builderId = builderId;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public void setId(String id) {
+        this.id = id;
+    }
+
+    public String getDescription() {
+        return description;
+    }
+
+    public void setDescription(String description) {
+        this.description = description;
+    }
+
+    @Override
+    public String toString() {
+        return builder + "[" + index + "]: " + id;
+    }
+}
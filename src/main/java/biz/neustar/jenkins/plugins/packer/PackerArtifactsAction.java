@@ -0,0 +1,180 @@
+/**
+ * Copyright 2000-2014 NeuStar, Inc. All rights reserved.
+ * NeuStar, the Neustar logo and related names and logos are registered
+ * trademarks, service marks or tradenames of NeuStar, Inc. All other
+ * product names, company names, marks, logos and symbols may be trademarks
+ * of their respective owners.
+ */
+
+package biz.neustar.jenkins.plugins.packer;
+
+import hudson.EnvVars;
+import hudson.model.AbstractBuild;
+import hudson.model.EnvironmentContributingAction;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * The builders, artifacts and errors packer reported for a build, also exposed to later steps as:
+ * <ul>
+ *   <li><code>PACKER_ARTIFACT_IDS</code>: comma separated ids of every artifact</li>
+ *   <li><code>PACKER_BUILDERS</code>: comma separated names of every builder that ran</li>
+ *   <li><code>PACKER_ARTIFACT_&lt;BUILDER&gt;_ID</code>: id of the first artifact of a builder</li>
+ *   <li><code>PACKER_ARTIFACT_&lt;BUILDER&gt;_&lt;N&gt;_ID</code>: id of each artifact of a builder</li>
+ * </ul>
+ */
+public class PackerArtifactsAction implements EnvironmentContributingAction {
+
+    private final List<String> builders = new ArrayList<>();
+    private final List<PackerArtifact> artifacts = new ArrayList<>();
+    private final List<String> errors = new ArrayList<>();
+    private Map<String, BuilderResult> builderResults;
+
+    /**
+     * The action of the build, added to it if it has none yet.
+     */
+    public static PackerArtifactsAction of(AbstractBuild<?, ?> build) {
+        synchronized (build) {
+            PackerArtifactsAction action = build.getAction(PackerArtifactsAction.class);
+            if (action == null) {
+                action = new PackerArtifactsAction();
+                build.addAction(action);
+            }
+            return action;
+        }
+    }
+
+    public synchronized void add(MachineReadableOutputStream output) {
+        for (String builder : output.getBuilders()) {
+            if (!builders.contains(builder)) {
+                builders.add(builder);
+            }
+        }
+        artifacts.addAll(output.getArtifacts());
+        errors.addAll(output.getErrors());
+    }
+
+    /**
+     * Artifacts carried over from an earlier build, along with their builders.
+     */
+    public synchronized void addArtifacts(Collection<PackerArtifact> reused) {
+        for (PackerArtifact artifact : reused) {
+            if (!builders.contains(artifact.getBuilder())) {
+                builders.add(artifact.getBuilder());
+            }
+        }
+        artifacts.addAll(reused);
+    }
+
+    public synchronized void addBuilderResult(String builder, String node, boolean success) {
+        if (builderResults == null) {
+            builderResults = new LinkedHashMap<>();
+        }
+        builderResults.put(builder, new BuilderResult(builder, node, success));
+    }
+
+    /**
+     * @return the outcome of each builder, when builders were run separately.
+     */
+    public synchronized List<BuilderResult> getBuilderResults() {
+        if (builderResults == null) {
+            return Collections.emptyList();
+        }
+        return new ArrayList<>(builderResults.values());
+    }
+
+    public synchronized List<String> getBuilders() {
+        return new ArrayList<>(builders);
+    }
+
+    public synchronized List<PackerArtifact> getArtifacts() {
+        return new ArrayList<>(artifacts);
+    }
+
+    public synchronized List<String> getErrors() {
+        return new ArrayList<>(errors);
+    }
+
+    public synchronized List<String> getArtifactIds() {
+        List<String> ids = new ArrayList<>();
+        for (PackerArtifact artifact : artifacts) {
+            ids.add(artifact.getId());
+        }
+        return Collections.unmodifiableList(ids);
+    }
+
+    @Override
+    public synchronized void buildEnvVars(AbstractBuild<?, ?> build, EnvVars env) {
+        env.put("PACKER_ARTIFACT_IDS", join(getArtifactIds()));
+        env.put("PACKER_BUILDERS", join(builders));
+        for (PackerArtifact artifact : artifacts) {
+            String prefix = "PACKER_ARTIFACT_" + envName(artifact.getBuilder());
+            if (artifact.getIndex() == 0) {
+                env.put(prefix + "_ID", artifact.getId());
+            }
+            env.put(prefix + "_" + artifact.getIndex() + "_ID", artifact.getId());
+        }
+    }
+
+    static String envName(String builder) {
+        return builder.toUpperCase(Locale.ENGLISH).replaceAll("[^A-Z0-9]", "_");
+    }
+
+    private static String join(List<String> values) {
+        StringBuilder result = new StringBuilder();
+        for (String value : values) {
+            if (result.length() > 0) {
+                result.append(',');
+            }
+            result.append(value);
+        }
+        return result.toString();
+    }
+
+    /**
+     * Whether a builder run on its own succeeded, and where it ran.
+     */
+    public static class BuilderResult implements Serializable {
+        private static final long serialVersionUID = 1L;
+        private final String builder;
+        private final String node;
+        private final boolean success;
+
+        public BuilderResult(String builder, String node, boolean success) {
+            this.builder = builder;
+            this.node = node;
+            this.success = success;
+        }
+
+        public String getBuilder() {
+            return builder;
+        }
+
+        public String getNode() {
+            return node;
+        }
+
+        public boolean isSuccess() {
+            return success;
+        }
+    }
+
+    public String getIconFileName() {
+        return null;
+    }
+
+    public String getDisplayName() {
+        return "Packer Artifacts";
+    }
+
+    public String getUrlName() {
+        return null;
+    }
+}
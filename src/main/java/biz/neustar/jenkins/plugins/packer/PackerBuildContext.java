@@ -0,0 +1,58 @@
+/**
+ * Copyright 2000-2014 NeuStar, Inc. All rights reserved.
+ * NeuStar, the Neustar logo and related names and logos are registered
+ * trademarks, service marks or tradenames of NeuStar, Inc. All other
+ * product names, company names, marks, logos and symbols may be trademarks
+ * of their respective owners.
+ */
+
+package biz.neustar.jenkins.plugins.packer;
+
+import hudson.EnvVars;
+import hudson.model.AbstractBuild;
+import hudson.model.Node;
+import hudson.model.TaskListener;
+
+/**
+ * What a single packer build step resolves once and then reuses: the installation, the build
+ * environment and the node it runs on.
+ */
+public class PackerBuildContext {
+    private final AbstractBuild<?, ?> build;
+    private final TaskListener listener;
+    private final EnvVars env;
+    private final PackerInstallation installation;
+
+    public PackerBuildContext(AbstractBuild<?, ?> build, TaskListener listener, EnvVars env,
+                              PackerInstallation installation) {
+        this.build = build;
+        this.listener = listener;
+        this.env = env;
+        this.installation = installation;
+    }
+
+    public AbstractBuild<?, ?> getBuild() {
+        return build;
+    }
+
+    public TaskListener getListener() {
+        return listener;
+    }
+
+    public EnvVars getEnv() {
+        return env;
+    }
+
+    public PackerInstallation getInstallation() {
+        return installation;
+    }
+
+    public Node getNode() {
+        return build.getBuiltOn();
+    }
+
+    public String getNodeName() {
+        Node node = getNode();
+        return node != null ? node.getNodeName() : "";
+    }
+}
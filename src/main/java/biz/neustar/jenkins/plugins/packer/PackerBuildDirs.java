@@ -0,0 +1,150 @@
+/**
+ * Copyright 2000-2014 NeuStar, Inc. All rights reserved.
+ * NeuStar, the Neustar logo and related names and logos are registered
+ * trademarks, service marks or tradenames of NeuStar, Inc. All other
+ * product names, company names, marks, logos and symbols may be trademarks
+ * of their respective owners.
+ */
+
+package biz.neustar.jenkins.plugins.packer;
+
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.model.AbstractBuild;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.Computer;
+import hudson.model.Executor;
+import hudson.model.Node;
+import hudson.model.Queue;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.model.listeners.RunListener;
+import jenkins.model.Jenkins;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * A directory per build under the node root for the templates and file entries generated for that build, so
+ * they never pile up in workspaces or the temp dir. The build removes it when it is done, a listener removes it
+ * when the build completes in any other way, e.g. when it was aborted, and a periodic sweep removes whatever a
+ * crashed build or agent left behind.
+ */
+public final class PackerBuildDirs {
+    private static final Logger LOGGER = Logger.getLogger(PackerBuildDirs.class.getName());
+
+    public static final String BUILDS_DIR = "packer-builds";
+
+    /** Leftovers not touched for this long are swept, unless their build is still running. */
+    static long MAX_AGE = Long.getLong(PackerBuildDirs.class.getName() + ".maxAge", TimeUnit.DAYS.toMillis(1));
+
+    private PackerBuildDirs() {
+    }
+
+    /**
+     * @return the name of a build's directories, unique across jobs.
+     */
+    public static String dirName(Run<?, ?> build) {
+        return build.getParent().getFullName().replaceAll("[^A-Za-z0-9_.-]", "_") + "-" + build.getNumber();
+    }
+
+    public static FilePath forBuild(Run<?, ?> build, Node node, FilePath fallback) {
+        FilePath root = node != null ? node.getRootPath() : null;
+        if (root == null) {
+            root = fallback;
+        }
+        return root.child(BUILDS_DIR).child(dirName(build));
+    }
+
+    public static void delete(FilePath dir) {
+        try {
+            if (dir.exists()) {
+                dir.deleteRecursive();
+            }
+        } catch (IOException e) {
+            LOGGER.warning("Failed to clean up " + dir + ": " + e);
+        } catch (InterruptedException e) {
+            LOGGER.warning("Interrupted cleaning up " + dir);
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Removes the directory of a build that did not get to remove it itself.
+     */
+    @Extension
+    public static class Cleanup extends RunListener<AbstractBuild<?, ?>> {
+        @Override
+        public void onCompleted(AbstractBuild<?, ?> build, TaskListener listener) {
+            Node node = build.getBuiltOn();
+            FilePath root = node != null ? node.getRootPath() : null;
+            if (root != null && build.getParent().getPublishersList().get(PackerPublisher.class) != null) {
+                delete(root.child(BUILDS_DIR).child(dirName(build)));
+            }
+        }
+    }
+
+    /**
+     * Removes what crashed builds left behind on the nodes that are online.
+     */
+    @Extension
+    public static class Sweeper extends AsyncPeriodicWork {
+        public Sweeper() {
+            super("Packer build directory sweeper");
+        }
+
+        @Override
+        public long getRecurrencePeriod() {
+            return HOUR;
+        }
+
+        @Override
+        protected void execute(TaskListener listener) throws IOException, InterruptedException {
+            Set<String> running = runningBuilds();
+            Jenkins jenkins = Jenkins.getInstance();
+            sweep(jenkins, running, listener);
+            for (Node node : jenkins.getNodes()) {
+                sweep(node, running, listener);
+            }
+        }
+
+        private static void sweep(Node node, Set<String> running, TaskListener listener)
+                throws IOException, InterruptedException {
+            FilePath root = node.getRootPath();
+            if (root == null) {
+                return;
+            }
+            long expired = System.currentTimeMillis() - MAX_AGE;
+            for (String dir : new String[] {BUILDS_DIR, PackerBuilderFanout.FANOUT_DIR}) {
+                FilePath parent = root.child(dir);
+                if (!parent.isDirectory()) {
+                    continue;
+                }
+                List<FilePath> children = parent.listDirectories();
+                for (FilePath child : children) {
+                    if (!running.contains(child.getName()) && child.lastModified() < expired) {
+                        listener.getLogger().println("Removing " + child + " on " + node.getDisplayName());
+                        delete(child);
+                    }
+                }
+            }
+        }
+
+        private static Set<String> runningBuilds() {
+            Set<String> running = new HashSet<>();
+            for (Computer computer : Jenkins.getInstance().getComputers()) {
+                for (Executor executor : computer.getExecutors()) {
+                    Queue.Executable executable = executor.getCurrentExecutable();
+                    if (executable instanceof Run) {
+                        running.add(dirName((Run<?, ?>) executable));
+                    }
+                }
+            }
+            return running;
+        }
+    }
+}
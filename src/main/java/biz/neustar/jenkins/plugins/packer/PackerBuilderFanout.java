@@ -0,0 +1,387 @@
+/**
+ * Copyright 2000-2014 NeuStar, Inc. All rights reserved.
+ * NeuStar, the Neustar logo and related names and logos are registered
+ * trademarks, service marks or tradenames of NeuStar, Inc. All other
+ * product names, company names, marks, logos and symbols may be trademarks
+ * of their respective owners.
+ */
+
+package biz.neustar.jenkins.plugins.packer;
+
+import hudson.AbortException;
+import hudson.EnvVars;
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.model.AbstractBuild;
+import hudson.model.Computer;
+import hudson.model.Label;
+import hudson.model.Node;
+import hudson.model.TaskListener;
+import hudson.util.ArgumentListBuilder;
+import jenkins.model.Jenkins;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONException;
+import net.sf.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
+
+/**
+ * Splits a template into one <code>packer build -only=&lt;builder&gt;</code> per builder, spread
+ * round robin over the online nodes of a label.
+ *
+ * The build's own node reuses what was already staged for the build. Any other node first has an executor
+ * reserved through the queue, then gets its own packer installation, its own copy of the file entries, and
+ * a copy of the template and of the var-files given relative to the working directory. Nothing else of the
+ * working directory is copied.
+ */
+public class PackerBuilderFanout {
+    private static final Logger LOGGER = Logger.getLogger(PackerBuilderFanout.class.getName());
+
+    public static final String FANOUT_DIR = "packer-fanout";
+
+    private final AbstractBuild<?, ?> build;
+    private final TaskListener listener;
+    private final EnvVars env;
+    private final PackerInstallation installation;
+    private final PackerStaging staging;
+    private final FilePath workingDir;
+
+    private final List<FilePath> stagedDirs = new ArrayList<>();
+    private final List<PackerNodeReservation> reservations = new ArrayList<>();
+    private final List<PackerSharedCache.Lease> cacheLeases = new ArrayList<>();
+    private final List<PackerPluginCache> pluginCaches = new ArrayList<>();
+    private long sharedCacheMaxSize = -1;
+    private boolean initPlugins;
+    private PackerRemoteCalls remoteCalls = new PackerRemoteCalls();
+    private final Map<String, PackerProcess> builders = new LinkedHashMap<>();
+    private final Map<String, String> builderNodes = new HashMap<>();
+
+    /**
+     * @param staging what was staged for the build's own node, to stage the same on other nodes.
+     */
+    public PackerBuilderFanout(AbstractBuild<?, ?> build, TaskListener listener, EnvVars env,
+                               PackerInstallation installation, PackerStaging staging, FilePath workingDir) {
+        this.build = build;
+        this.listener = listener;
+        this.env = env;
+        this.installation = installation;
+        this.staging = staging;
+        this.workingDir = workingDir;
+    }
+
+    /**
+     * @param labelExpr nodes to spread the builders over, or null to run them all on the build's node.
+     * @param template the template as staged on the build's node.
+     * @param packerExec the packer executable on the build's node.
+     * @param staged what was staged on the build's node.
+     * @param spill fits the command lines on the build's node, other nodes get their own.
+     */
+    public List<PackerProcess> createProcesses(String labelExpr, Launcher launcher, String template,
+                                               String packerExec, PackerStaging.Result staged,
+                                               ArgumentListBuilder params, ArgumentListBuilder flags,
+                                               boolean machineReadable, PackerVarSpill spill)
+            throws IOException, InterruptedException {
+        List<String> names = getBuilderNames(readTemplate(template));
+        List<Node> nodes = selectNodes(labelExpr);
+        if (!reserve(nodes)) {
+            listener.getLogger().println("[packer] Running every builder on the build's node instead");
+            nodes = Collections.singletonList(build.getBuiltOn());
+        }
+
+        Map<String, Target> targets = new HashMap<>();
+        List<PackerProcess> processes = new ArrayList<>();
+        for (int i = 0; i < names.size(); i++) {
+            String name = names.get(i);
+            Node node = nodes.get(i % nodes.size());
+            Target target = targets.get(node.getNodeName());
+            if (target == null) {
+                if (isBuiltOn(node)) {
+                    target = new Target(launcher, workingDir, env, packerExec, staged, template, spill);
+                } else {
+                    target = stageOn(node, template, params);
+                }
+                targets.put(node.getNodeName(), target);
+            }
+
+            ArgumentListBuilder args = PackerPublisher.createArgs(target.packerExec, params,
+                    target.staged.getFileEntries(), target.staged.getVarFile(), flags);
+            args.add("-only=" + name).add(target.template);
+            args = target.spill.fit(args);
+
+            listener.getLogger().println("[packer] Building " + name + " on " + node.getDisplayName());
+            PackerProcess process = new PackerProcess(target.launcher, args, target.workingDir, target.env, name,
+                    machineReadable);
+            builders.put(name, process);
+            builderNodes.put(name, node.getDisplayName());
+            processes.add(process);
+        }
+        return processes;
+    }
+
+    /**
+     * Give the builders on other nodes their node's shared packer cache, as the build's node has.
+     */
+    public void useSharedCache(long maxSize) {
+        this.sharedCacheMaxSize = maxSize;
+    }
+
+    /**
+     * Install the plugins of HCL2 templates on the other nodes, from their node's plugin cache.
+     */
+    public void initPlugins(boolean initPlugins) {
+        this.initPlugins = initPlugins;
+    }
+
+    /**
+     * Count the calls to the other nodes in those of the build.
+     */
+    public void remoteCalls(PackerRemoteCalls remoteCalls) {
+        this.remoteCalls = remoteCalls;
+    }
+
+    /**
+     * Record whether each builder succeeded, and where it ran.
+     * @param processes every process run, a builder's last retry tells whether it succeeded in the end.
+     */
+    public void recordResults(PackerArtifactsAction action, List<PackerProcess> processes) {
+        Map<PackerProcess, PackerProcess> last = new HashMap<>();
+        for (PackerProcess process : processes) {
+            last.put(process.getFirstAttempt(), process);
+        }
+        for (Map.Entry<String, PackerProcess> entry : builders.entrySet()) {
+            PackerProcess process = last.containsKey(entry.getValue()) ? last.get(entry.getValue()) : entry.getValue();
+            Integer exitCode = process.getExitCode();
+            action.addBuilderResult(entry.getKey(), builderNodes.get(entry.getKey()),
+                    exitCode != null && exitCode == 0);
+        }
+    }
+
+    /**
+     * Remove the copies staged on other nodes, and release their executors.
+     */
+    public void cleanup() {
+        for (PackerNodeReservation reservation : reservations) {
+            reservation.release();
+        }
+        for (FilePath dir : stagedDirs) {
+            try {
+                dir.deleteRecursive();
+            } catch (Exception e) {
+                LOGGER.warning("Failed to clean up " + dir + ": " + e);
+            }
+        }
+        for (PackerSharedCache.Lease lease : cacheLeases) {
+            PackerSharedCache.release(lease, sharedCacheMaxSize, listener);
+        }
+        for (PackerPluginCache pluginCache : pluginCaches) {
+            pluginCache.release();
+        }
+    }
+
+    private String readTemplate(String template) throws IOException, InterruptedException {
+        if (staging.getTemplateText() != null) {
+            return staging.getTemplateText();
+        }
+        remoteCalls.count(workingDir);
+        return new FilePath(workingDir.getChannel(), template).readToString();
+    }
+
+    static List<String> getBuilderNames(String templateJson) throws AbortException {
+        JSONObject json;
+        try {
+            json = JSONObject.fromObject(templateJson);
+        } catch (JSONException e) {
+            throw new AbortException("Distributing builders needs a JSON template: " + e.getMessage());
+        }
+
+        JSONArray builders = json.optJSONArray("builders");
+        if (builders == null || builders.isEmpty()) {
+            throw new AbortException("The template has no builders to distribute");
+        }
+        List<String> names = new ArrayList<>();
+        for (int i = 0; i < builders.size(); i++) {
+            JSONObject builder = builders.getJSONObject(i);
+            names.add(builder.optString("name", builder.optString("type")));
+        }
+        return names;
+    }
+
+    private List<Node> selectNodes(String labelExpr) throws AbortException {
+        List<Node> nodes = new ArrayList<>();
+        if (labelExpr == null) {
+            nodes.add(build.getBuiltOn());
+            return nodes;
+        }
+
+        Label label = Jenkins.getInstance().getLabel(labelExpr);
+        List<Node> candidates = new ArrayList<>(label.getNodes());
+        Collections.sort(candidates, new Comparator<Node>() {
+            @Override
+            public int compare(Node a, Node b) {
+                return a.getNodeName().compareTo(b.getNodeName());
+            }
+        });
+        for (Node node : candidates) {
+            Computer computer = node.toComputer();
+            if (computer == null || !computer.isOnline()) {
+                continue;
+            }
+            // prefer the build's own node, nothing needs to be copied there.
+            if (isBuiltOn(node)) {
+                nodes.add(0, node);
+            } else {
+                nodes.add(node);
+            }
+        }
+        if (nodes.isEmpty()) {
+            throw new AbortException("No online nodes for label: " + labelExpr);
+        }
+        return nodes;
+    }
+
+    private boolean isBuiltOn(Node node) {
+        return build.getBuiltOn() != null && build.getBuiltOn().getNodeName().equals(node.getNodeName());
+    }
+
+    /**
+     * Hold an executor of each of the other nodes, all of them before any builder starts. The nodes are in name
+     * order, so two builds reserve the nodes they share in the same order.
+     * @return whether every node was reserved, none remains held if not.
+     */
+    private boolean reserve(List<Node> nodes) throws IOException, InterruptedException {
+        Set<String> reserved = new HashSet<>();
+        for (Node node : nodes) {
+            if (isBuiltOn(node) || !reserved.add(node.getNodeName())) {
+                continue;
+            }
+            PackerNodeReservation reservation = PackerNodeReservation.reserve(build, node, listener);
+            if (reservation == null) {
+                for (PackerNodeReservation held : reservations) {
+                    held.release();
+                }
+                reservations.clear();
+                return false;
+            }
+            reservations.add(reservation);
+        }
+        return true;
+    }
+
+    private Target stageOn(Node node, String template, ArgumentListBuilder params)
+            throws IOException, InterruptedException {
+        FilePath root = node.getRootPath();
+        if (root == null) {
+            throw new AbortException(node.getDisplayName() + " is offline");
+        }
+        String dirName = PackerBuildDirs.dirName(build);
+        FilePath dir = root.child(FANOUT_DIR).child(dirName);
+        stagedDirs.add(dir);
+        remoteCalls.count(dir);
+        dir.mkdirs();
+
+        PackerPrewarm.awaitInstalled(node, installation.getName(), listener);
+        remoteCalls.count(dir);
+        PackerInstallation nodeInstallation = installation.forNode(node, listener).forEnvironment(env);
+        PackerStaging nodeStaging = new PackerStaging()
+                .packerHome(nodeInstallation.getHome())
+                .stagingDir(dir)
+                .templateDir(dir)
+                .varFile(staging.isVarFile())
+                .fileEntries(staging.getFileEntries())
+                .remoteCalls(remoteCalls);
+        String nodeTemplate = null;
+        if (staging.getTemplateText() != null) {
+            nodeStaging.templateText(staging.getTemplateText());
+        } else {
+            nodeTemplate = relocate(template, workingDir, dir);
+            copy(new FilePath(workingDir.getChannel(), template), new FilePath(dir.getChannel(), nodeTemplate));
+        }
+        for (String varFile : PackerFingerprint.getVarFiles(params.toList())) {
+            // absolute paths are the node's own.
+            if (!new File(varFile).isAbsolute() && !varFile.startsWith("/")) {
+                copy(workingDir.child(varFile), dir.child(varFile));
+            }
+        }
+
+        PackerStaging.Result result = nodeStaging.stage(dir);
+        if (result.getExecutable() == null) {
+            throw new AbortException("Tool Installation Failed for: " + installation.getName()
+                    + " on " + node.getDisplayName());
+        }
+        if (nodeTemplate == null) {
+            nodeTemplate = result.getTemplate();
+        }
+        Launcher nodeLauncher = node.createLauncher(listener);
+        EnvVars nodeEnv = new EnvVars(env);
+        if (sharedCacheMaxSize >= 0) {
+            PackerSharedCache.Lease lease = PackerSharedCache.acquire(PackerSharedCache.getCacheDir(node, root),
+                    node.getNodeName(), dirName);
+            cacheLeases.add(lease);
+            nodeEnv.put(PackerSharedCache.ENV, lease.getDir());
+        }
+        if (initPlugins) {
+            // the plugin path of the build's node means nothing here.
+            nodeEnv.remove(PackerPluginCache.ENV);
+            PackerPluginCache pluginCache = new PackerPluginCache(nodeLauncher, listener, nodeEnv, dir,
+                    PackerPluginCache.getCacheRoot(node, root)).remoteCalls(remoteCalls);
+            pluginCaches.add(pluginCache);
+            pluginCache.init(result.getExecutable(), nodeTemplate);
+        }
+        // the var-files go with the copies, removed afterwards.
+        return new Target(nodeLauncher, dir, nodeEnv, result.getExecutable(), result, nodeTemplate,
+                new PackerVarSpill(dir, nodeLauncher.isUnix()));
+    }
+
+    private void copy(FilePath from, FilePath to) throws IOException, InterruptedException {
+        listener.getLogger().println("[packer] Copying " + from.getRemote() + " to " + to.getRemote());
+        remoteCalls.count(to);
+        to.getParent().mkdirs();
+        // read from one node and written to the other.
+        remoteCalls.count(from);
+        remoteCalls.count(to);
+        from.copyTo(to);
+    }
+
+    static String relocate(String path, FilePath from, FilePath to) throws AbortException {
+        String base = from.getRemote();
+        if (path.startsWith(base)) {
+            String rest = path.substring(base.length());
+            if (rest.isEmpty() || rest.charAt(0) == '/' || rest.charAt(0) == '\\') {
+                return to.getRemote() + rest;
+            }
+        }
+        throw new AbortException("The template must be within " + base + " to distribute its builders: " + path);
+    }
+
+    private static class Target {
+        private final Launcher launcher;
+        private final FilePath workingDir;
+        private final EnvVars env;
+        private final String packerExec;
+        private final PackerStaging.Result staged;
+        private final String template;
+        private final PackerVarSpill spill;
+
+        Target(Launcher launcher, FilePath workingDir, EnvVars env, String packerExec,
+               PackerStaging.Result staged, String template, PackerVarSpill spill) {
+            this.launcher = launcher;
+            this.workingDir = workingDir;
+            this.env = env;
+            this.packerExec = packerExec;
+            this.staged = staged;
+            this.template = template;
+            this.spill = spill;
+        }
+    }
+}
@@ -0,0 +1,212 @@
+/**
+ * Copyright 2000-2014 NeuStar, Inc. All rights reserved.
+ * NeuStar, the Neustar logo and related names and logos are registered
+ * trademarks, service marks or tradenames of NeuStar, Inc. All other
+ * product names, company names, marks, logos and symbols may be trademarks
+ * of their respective owners.
+ */
+
+package biz.neustar.jenkins.plugins.packer;
+
+import hudson.Extension;
+import hudson.Util;
+import hudson.model.AbstractProject;
+import hudson.model.Computer;
+import hudson.model.Executor;
+import hudson.model.InvisibleAction;
+import hudson.model.Queue;
+import hudson.model.queue.CauseOfBlockage;
+import hudson.model.queue.QueueTaskDispatcher;
+import hudson.model.queue.WorkUnit;
+import hudson.security.ACL;
+import jenkins.model.Jenkins;
+import org.acegisecurity.context.SecurityContext;
+import org.acegisecurity.context.SecurityContextHolder;
+
+/**
+ * Holds packer builds in the queue while their account pool is full, so builds sharing a cloud account do not
+ * all hit its API at once. A waiting build does not take an executor. When a slot frees up, the waiting build
+ * with the highest priority gets it, and among those the one that waited longest.
+ *
+ * A build counts against its pool from the moment it is let out of the queue until it completes.
+ */
+public final class PackerConcurrencyLimiter {
+
+    private PackerConcurrencyLimiter() {
+    }
+
+    /**
+     * @return the pool limiting the builds of this task, or null if they are not limited.
+     */
+    static PackerAccountPool poolOf(Queue.Task task, PackerPublisher.DescriptorImpl descriptor) {
+        PackerPublisher publisher = publisherOf(task);
+        if (publisher == null) {
+            return null;
+        }
+        String name = Util.fixEmptyAndTrim(publisher.getAccountPool());
+        PackerAccountPool pool = descriptor.getAccountPool(name != null ? name : publisher.getName());
+        return pool != null && pool.getMaxConcurrency() > 0 ? pool : null;
+    }
+
+    private static PackerPublisher publisherOf(Queue.Task task) {
+        if (task instanceof AbstractProject) {
+            return ((AbstractProject<?, ?>) task).getPublishersList().get(PackerPublisher.class);
+        }
+        return null;
+    }
+
+    private static int priorityOf(Queue.Task task) {
+        PackerPublisher publisher = publisherOf(task);
+        return publisher != null ? publisher.getPoolPriority() : 0;
+    }
+
+    /**
+     * Whether <code>other</code> gets the next slot before <code>item</code>.
+     */
+    static boolean isAhead(int otherPriority, long otherSince, long otherId, int priority, long since, long id) {
+        if (otherPriority != priority) {
+            return otherPriority > priority;
+        }
+        if (otherSince != since) {
+            return otherSince < since;
+        }
+        return otherId < id;
+    }
+
+    @Extension
+    public static class Dispatcher extends QueueTaskDispatcher {
+        @Override
+        public CauseOfBlockage canRun(Queue.Item item) {
+            Jenkins jenkins = Jenkins.getInstance();
+            PackerPublisher.DescriptorImpl descriptor = jenkins.getDescriptorByType(PackerPublisher.DescriptorImpl.class);
+            if (descriptor == null || descriptor.getAccountPools().isEmpty()) {
+                return null;
+            }
+            PackerAccountPool pool = poolOf(item.task, descriptor);
+            if (pool == null) {
+                return null;
+            }
+            WaitAction wait = item.getAction(WaitAction.class);
+            if (wait == null) {
+                wait = new WaitAction(pool.getName(), System.currentTimeMillis());
+                item.addAction(wait);
+            }
+            int priority = priorityOf(item.task);
+
+            int running = 0;
+            for (Computer computer : jenkins.getComputers()) {
+                for (Executor executor : computer.getExecutors()) {
+                    WorkUnit unit = executor.getCurrentWorkUnit();
+                    if (unit != null && pool == poolOf(unit.context.task, descriptor)) {
+                        running++;
+                    }
+                }
+            }
+            int ahead = 0;
+            for (Queue.Item other : queueItems(jenkins)) {
+                WaitAction otherWait = other.getAction(WaitAction.class);
+                if (other.getId() == item.getId() || otherWait == null || pool != poolOf(other.task, descriptor)) {
+                    continue;
+                }
+                if (otherWait.isAdmitted()) {
+                    // let out of the queue, not running yet.
+                    if (other instanceof Queue.BuildableItem) {
+                        running++;
+                    }
+                } else if (isAhead(priorityOf(other.task), otherWait.getSince(), other.getId(),
+                        priority, wait.getSince(), item.getId())) {
+                    ahead++;
+                }
+            }
+
+            if (running + ahead < pool.getMaxConcurrency()) {
+                wait.admit();
+                return null;
+            }
+            wait.block();
+            return new WaitingForPool(pool, running, ahead, wait.getSince());
+        }
+    }
+
+    // every item, not just those the current user may see.
+    private static Queue.Item[] queueItems(Jenkins jenkins) {
+        SecurityContext old = ACL.impersonate(ACL.SYSTEM);
+        try {
+            return jenkins.getQueue().getItems();
+        } finally {
+            SecurityContextHolder.setContext(old);
+        }
+    }
+
+    public static class WaitingForPool extends CauseOfBlockage {
+        private final PackerAccountPool pool;
+        private final int running;
+        private final int ahead;
+        private final long since;
+
+        WaitingForPool(PackerAccountPool pool, int running, int ahead, long since) {
+            this.pool = pool;
+            this.running = running;
+            this.ahead = ahead;
+            this.since = since;
+        }
+
+        @Override
+        public String getShortDescription() {
+            return "Waiting for packer account pool " + pool.getName() + ": " + running + " of "
+                    + pool.getMaxConcurrency() + " builds running, " + ahead + " ahead in line, waited "
+                    + Util.getTimeSpanString(System.currentTimeMillis() - since);
+        }
+    }
+
+    /**
+     * When a build started waiting for its pool, and when it was let out of the queue. Carried from the queue
+     * item over to the build.
+     */
+    public static class WaitAction extends InvisibleAction {
+        private final String pool;
+        private final long since;
+        private volatile long admitted;
+        private volatile boolean recorded;
+
+        WaitAction(String pool, long since) {
+            this.pool = pool;
+            this.since = since;
+        }
+
+        public String getPool() {
+            return pool;
+        }
+
+        public long getSince() {
+            return since;
+        }
+
+        boolean isAdmitted() {
+            return admitted > 0;
+        }
+
+        void admit() {
+            if (admitted == 0) {
+                admitted = System.currentTimeMillis();
+            }
+        }
+
+        void block() {
+            admitted = 0;
+        }
+
+        public long getWaitedMillis() {
+            return admitted > 0 ? admitted - since : 0;
+        }
+
+        /**
+         * @return whether the wait still has to be reported, only the first packer step of a build does.
+         */
+        synchronized boolean record() {
+            boolean first = !recorded;
+            recorded = true;
+            return first;
+        }
+    }
+}
@@ -0,0 +1,271 @@
+/**
+ * Copyright 2000-2014 NeuStar, Inc. All rights reserved.
+ * NeuStar, the Neustar logo and related names and logos are registered
+ * trademarks, service marks or tradenames of NeuStar, Inc. All other
+ * product names, company names, marks, logos and symbols may be trademarks
+ * of their respective owners.
+ */
+
+package biz.neustar.jenkins.plugins.packer;
+
+import hudson.ProxyConfiguration;
+import hudson.Util;
+import hudson.model.TaskListener;
+import jenkins.model.Jenkins;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Packer archives downloaded once by the controller and handed to every node from there, instead of
+ * each node downloading its own copy.
+ *
+ * Archives are kept as <code>&lt;id&gt;/&lt;sha256&gt;/&lt;file&gt;</code> under the cache root. The expected
+ * SHA-256 comes from the <code>packer_&lt;version&gt;_SHA256SUMS</code> file published next to the archives,
+ * and is kept as <code>&lt;id&gt;/&lt;file&gt;.sha256</code> once the archive was verified, so a cached archive
+ * is found without downloading anything. Only one download per archive runs at a time, and the least recently
+ * used archives are evicted unless they are being downloaded.
+ */
+public final class PackerDownloadCache {
+    private static final Logger LOGGER = Logger.getLogger(PackerDownloadCache.class.getName());
+
+    public static final String CACHE_DIR = "caches/packer-installers";
+
+    /** Archives kept before the least recently used are evicted. */
+    static int MAX_ARCHIVES = Integer.getInteger(PackerDownloadCache.class.getName() + ".maxArchives", 10);
+
+    /** Upper bound of the cache before the least recently used archives are evicted. */
+    static long MAX_SIZE = Long.getLong(PackerDownloadCache.class.getName() + ".maxSize", 2L * 1024 * 1024 * 1024);
+
+    // e.g. packer_1.0.0_linux_amd64.zip
+    private static final Pattern ARCHIVE = Pattern.compile("([^_/]+_[^_/]+)_[^/]+\\.zip");
+
+    // striped, so they do not grow with every archive ever installed.
+    private static final ReentrantLock[] LOCKS = new ReentrantLock[64];
+
+    static {
+        for (int i = 0; i < LOCKS.length; i++) {
+            LOCKS[i] = new ReentrantLock();
+        }
+    }
+
+    private PackerDownloadCache() {
+    }
+
+    public static File getCacheRoot() {
+        return new File(Jenkins.getInstance().getRootDir(), CACHE_DIR);
+    }
+
+    /**
+     * The download url on a mirror laid out like the original site, e.g. <code>file:///srv/mirror</code>
+     * for <code>file:///srv/mirror/packer/1.0.0/packer_1.0.0_linux_amd64.zip</code>.
+     */
+    public static String mirror(String url, String mirror) throws MalformedURLException {
+        if (Util.fixEmptyAndTrim(mirror) == null) {
+            return url;
+        }
+        String base = mirror.trim();
+        while (base.endsWith("/")) {
+            base = base.substring(0, base.length() - 1);
+        }
+        return base + new URL(url).getPath();
+    }
+
+    /**
+     * @return the verified archive in the controller's cache, downloaded first if needed.
+     */
+    public static File fetch(String id, String url, TaskListener listener) throws IOException {
+        return fetch(getCacheRoot(), id, url, listener);
+    }
+
+    static File fetch(File cacheRoot, String id, String url, TaskListener listener) throws IOException {
+        String fileName = url.substring(url.lastIndexOf('/') + 1);
+        File idDir = new File(cacheRoot, safeName(id));
+        File sumFile = new File(idDir, fileName + ".sha256");
+
+        File archive;
+        ReentrantLock lock = lockOf(idDir.getName(), fileName);
+        lock.lock();
+        try {
+            String sha256 = sumFile.isFile() ? Util.loadFile(sumFile, Charset.forName("UTF-8")).trim() : null;
+            archive = sha256 != null ? new File(new File(idDir, sha256), fileName) : null;
+            boolean cached = archive != null && archive.isFile();
+            if (cached) {
+                // refresh the timestamp so eviction treats it as recently used
+                archive.setLastModified(System.currentTimeMillis());
+                listener.getLogger().println("Using cached " + fileName);
+            } else {
+                sha256 = expectedSha256(url, fileName);
+                archive = new File(new File(idDir, sha256), fileName);
+                listener.getLogger().println("Downloading " + url + " to the controller cache");
+                download(url, sha256, archive);
+                OutputStream out = new FileOutputStream(sumFile);
+                try {
+                    out.write(sha256.getBytes("UTF-8"));
+                } finally {
+                    out.close();
+                }
+            }
+            PackerMetrics.toolCache(PackerMetrics.DOWNLOAD_CACHE, cached);
+        } finally {
+            lock.unlock();
+        }
+        evict(cacheRoot, archive);
+        return archive;
+    }
+
+    private static ReentrantLock lockOf(String idDir, String fileName) {
+        return LOCKS[((idDir + '\0' + fileName).hashCode() & 0x7fffffff) % LOCKS.length];
+    }
+
+    private static String expectedSha256(String url, String fileName) throws IOException {
+        Matcher m = ARCHIVE.matcher(fileName);
+        if (!m.matches()) {
+            throw new IOException("No checksum is published for " + url
+                    + ", turn off the Packer download cache to install it directly");
+        }
+        String sumsUrl = url.substring(0, url.length() - fileName.length()) + m.group(1) + "_SHA256SUMS";
+        BufferedReader r = new BufferedReader(new InputStreamReader(open(sumsUrl), "UTF-8"));
+        try {
+            String line;
+            while ((line = r.readLine()) != null) {
+                String[] fields = line.trim().split("\\s+");
+                if (fields.length == 2 && fields[1].equals(fileName)) {
+                    return fields[0].toLowerCase(Locale.ENGLISH);
+                }
+            }
+        } finally {
+            r.close();
+        }
+        throw new IOException(fileName + " is not listed in " + sumsUrl);
+    }
+
+    private static void download(String url, String sha256, File archive) throws IOException {
+        File dir = archive.getParentFile();
+        if (!dir.isDirectory() && !dir.mkdirs() && !dir.isDirectory()) {
+            throw new IOException("Unable to create download cache: " + dir);
+        }
+        File temp = File.createTempFile(archive.getName(), ".partial", dir);
+        try {
+            MessageDigest digest;
+            try {
+                digest = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException("SHA-256 not supported", e);
+            }
+            InputStream in = new DigestInputStream(open(url), digest);
+            try {
+                OutputStream out = new FileOutputStream(temp);
+                try {
+                    Util.copyStream(in, out);
+                } finally {
+                    out.close();
+                }
+            } finally {
+                in.close();
+            }
+
+            String actual = Util.toHexString(digest.digest());
+            if (!actual.equalsIgnoreCase(sha256)) {
+                throw new IOException("Checksum mismatch for " + url + ": expected " + sha256 + " but got " + actual);
+            }
+            if (!temp.renameTo(archive)) {
+                throw new IOException("Unable to move " + temp + " to " + archive);
+            }
+        } finally {
+            temp.delete();
+        }
+    }
+
+    private static InputStream open(String url) throws IOException {
+        URL u = new URL(url);
+        if ("file".equals(u.getProtocol())) {
+            return u.openStream();
+        }
+        return ProxyConfiguration.open(u).getInputStream();
+    }
+
+    // one at a time, skipping the archives being downloaded.
+    static synchronized void evict(File cacheRoot, File keep) {
+        List<File> archives = new ArrayList<>();
+        File[] ids = cacheRoot.listFiles();
+        if (ids == null) {
+            return;
+        }
+        for (File id : ids) {
+            File[] sums = id.listFiles();
+            if (sums == null) {
+                continue;
+            }
+            for (File sum : sums) {
+                File[] files = sum.listFiles();
+                if (files == null) {
+                    continue;
+                }
+                for (File file : files) {
+                    if (file.isFile() && !file.getName().endsWith(".partial")) {
+                        archives.add(file);
+                    }
+                }
+            }
+        }
+        Collections.sort(archives, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                long diff = b.lastModified() - a.lastModified();
+                return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+            }
+        });
+
+        int count = 1;
+        long size = keep.length();
+        for (File archive : archives) {
+            if (archive.equals(keep)) {
+                continue;
+            }
+            count++;
+            size += archive.length();
+            if (count > MAX_ARCHIVES || size > MAX_SIZE) {
+                File sumDir = archive.getParentFile();
+                File idDir = sumDir.getParentFile();
+                ReentrantLock lock = lockOf(idDir.getName(), archive.getName());
+                if (!lock.tryLock()) {
+                    continue;
+                }
+                try {
+                    LOGGER.info("Evicting cached packer archive: " + archive);
+                    archive.delete();
+                    new File(idDir, archive.getName() + ".sha256").delete();
+                    sumDir.delete();
+                    idDir.delete();
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+    }
+
+    private static String safeName(String id) {
+        return id.replaceAll("[^A-Za-z0-9_.-]", "_");
+    }
+}
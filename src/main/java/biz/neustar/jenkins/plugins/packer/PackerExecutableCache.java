@@ -0,0 +1,121 @@
+/**
+ * Copyright 2000-2014 NeuStar, Inc. All rights reserved.
+ * NeuStar, the Neustar logo and related names and logos are registered
+ * trademarks, service marks or tradenames of NeuStar, Inc. All other
+ * product names, company names, marks, logos and symbols may be trademarks
+ * of their respective owners.
+ */
+
+package biz.neustar.jenkins.plugins.packer;
+
+import hudson.Extension;
+import hudson.model.Computer;
+import hudson.model.TaskListener;
+import hudson.slaves.ComputerListener;
+
+import java.io.Serializable;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Logger;
+
+/**
+ * Remembers where the packer executable of an installation was found on each node, so builds can skip
+ * the tool installer check and the remote lookup. Entries carry the size and modification time of the
+ * executable, which the agent verifies while staging the build.
+ */
+public final class PackerExecutableCache {
+    private static final Logger LOGGER = Logger.getLogger(PackerExecutableCache.class.getName());
+
+    private static final ConcurrentMap<String, Entry> ENTRIES = new ConcurrentHashMap<>();
+
+    private PackerExecutableCache() {
+    }
+
+    /**
+     * Homes that still contain variables depend on the build environment and are never cached.
+     */
+    public static boolean isCacheable(PackerInstallation installation) {
+        return installation != null && installation.getHome() != null && installation.getHome().indexOf('$') == -1;
+    }
+
+    public static Entry get(String nodeName, PackerInstallation installation) {
+        if (!isCacheable(installation)) {
+            return null;
+        }
+        return ENTRIES.get(key(nodeName, installation));
+    }
+
+    public static void put(String nodeName, PackerInstallation installation, Entry entry) {
+        if (isCacheable(installation) && entry != null) {
+            ENTRIES.put(key(nodeName, installation), entry);
+        }
+    }
+
+    public static void invalidate(String nodeName, PackerInstallation installation) {
+        if (installation != null) {
+            ENTRIES.remove(key(nodeName, installation));
+        }
+    }
+
+    public static void invalidateNode(String nodeName) {
+        String prefix = nodeName + '\0';
+        for (Iterator<String> it = ENTRIES.keySet().iterator(); it.hasNext();) {
+            if (it.next().startsWith(prefix)) {
+                it.remove();
+            }
+        }
+    }
+
+    public static void invalidateAll() {
+        ENTRIES.clear();
+    }
+
+    public static int size() {
+        return ENTRIES.size();
+    }
+
+    private static String key(String nodeName, PackerInstallation installation) {
+        return nodeName + '\0' + installation.getName() + '\0' + installation.getHome();
+    }
+
+    /**
+     * A resolved executable, along with what is needed to tell whether it changed since.
+     */
+    public static final class Entry implements Serializable {
+        private static final long serialVersionUID = 1L;
+        private final String executable;
+        private final long size;
+        private final long lastModified;
+
+        public Entry(String executable, long size, long lastModified) {
+            this.executable = executable;
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+
+        public String getExecutable() {
+            return executable;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getLastModified() {
+            return lastModified;
+        }
+    }
+
+    /**
+     * A reconnected node may have been reprovisioned, so drop whatever was resolved on it.
+     */
+    @Extension
+    public static class NodeListener extends ComputerListener {
+        @Override
+        public void onOnline(Computer c, TaskListener listener) {
+            LOGGER.fine("Invalidating packer executables for: " + c.getName());
+            invalidateNode(c.getName());
+        }
+    }
+}
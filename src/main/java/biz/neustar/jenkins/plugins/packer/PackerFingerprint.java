@@ -0,0 +1,267 @@
+/**
+ * Copyright 2000-2014 NeuStar, Inc. All rights reserved.
+ * NeuStar, the Neustar logo and related names and logos are registered
+ * trademarks, service marks or tradenames of NeuStar, Inc. All other
+ * product names, company names, marks, logos and symbols may be trademarks
+ * of their respective owners.
+ */
+
+package biz.neustar.jenkins.plugins.packer;
+
+import hudson.FilePath;
+import hudson.remoting.VirtualChannel;
+import hudson.util.ArgumentListBuilder;
+import jenkins.MasterToSlaveFileCallable;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONException;
+import net.sf.json.JSONObject;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * SHA-256 over the inputs of a packer build: what the controller knows (params, file entry contents, the
+ * template paths as configured) is hashed here, the contents of the templates, of the var-files named in the
+ * params and of the packer executable are hashed on the agent in a single call.
+ *
+ * Nothing staged for a single build is hashed by its path, which may be a new temporary file every build.
+ */
+public class PackerFingerprint {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /** Hashed in place of a path staged for the build. */
+    static final String STAGED = "<staged>";
+
+    private final MessageDigest digest = sha256();
+    private final List<String> stagedPaths = new ArrayList<>();
+    private final List<String> varFiles = new ArrayList<>();
+
+    /**
+     * @param paths the paths staged for this build, e.g. of file entries, hashed as a placeholder in any
+     *              value added later. Their contents are hashed separately.
+     */
+    public PackerFingerprint stagedPaths(Collection<String> paths) {
+        for (String path : paths) {
+            if (path != null && !path.isEmpty()) {
+                stagedPaths.add(path);
+            }
+        }
+        return this;
+    }
+
+    public PackerFingerprint add(String value) {
+        update(digest, unstage(value));
+        return this;
+    }
+
+    /**
+     * Hash the params, and the contents of the var-files they name.
+     */
+    public PackerFingerprint addParams(ArgumentListBuilder params) {
+        List<String> values = params.toList();
+        for (String param : values) {
+            update(digest, unstage(param));
+        }
+        varFiles.addAll(getVarFiles(values));
+        return this;
+    }
+
+    private String unstage(String value) {
+        if (value == null) {
+            return null;
+        }
+        for (String path : stagedPaths) {
+            value = value.replace(path, STAGED);
+        }
+        return value;
+    }
+
+    /**
+     * @return the files of the <code>-var-file</code> args.
+     */
+    static List<String> getVarFiles(List<String> args) {
+        List<String> files = new ArrayList<>();
+        for (int i = 0; i < args.size(); i++) {
+            String arg = args.get(i);
+            if (arg.startsWith("-var-file=")) {
+                files.add(arg.substring("-var-file=".length()));
+            } else if (arg.equals("-var-file") && i + 1 < args.size()) {
+                files.add(args.get(++i));
+            }
+        }
+        return files;
+    }
+
+    /**
+     * @param fileContents variable name to contents, the staged paths may change between builds.
+     */
+    public PackerFingerprint addFileContents(Map<String, String> fileContents) {
+        for (Map.Entry<String, String> entry : new TreeMap<>(fileContents).entrySet()) {
+            update(digest, entry.getKey());
+            update(digest, entry.getValue());
+        }
+        return this;
+    }
+
+    /**
+     * @param templates paths of the templates as staged, absolute or relative to the working dir. Only their
+     *                  contents are hashed, the paths the user configured should be added.
+     * @param provisionerFiles whether to hash the sources of the templates' file provisioners as well.
+     * @return the fingerprint, or null if a template does not exist.
+     */
+    public String compute(FilePath workingDir, String packerExec, List<String> templates, boolean provisionerFiles)
+            throws IOException, InterruptedException {
+        return workingDir.act(new Compute(hex(digest.digest()), packerExec, templates, varFiles, provisionerFiles));
+    }
+
+    static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not supported", e);
+        }
+    }
+
+    // length prefixed, so that moving text between fields changes the hash.
+    static void update(MessageDigest digest, String value) {
+        byte[] bytes = (value == null ? "" : value).getBytes(UTF8);
+        digest.update((bytes.length + ":").getBytes(UTF8));
+        digest.update(bytes);
+    }
+
+    static String hex(byte[] hash) {
+        StringBuilder hex = new StringBuilder(hash.length * 2);
+        for (byte b : hash) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16));
+            hex.append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
+    }
+
+    /**
+     * @return the sources of the file provisioners that upload to the machine.
+     */
+    static List<String> getProvisionerFiles(String templateJson) {
+        List<String> sources = new ArrayList<>();
+        JSONArray provisioners;
+        try {
+            provisioners = JSONObject.fromObject(templateJson).optJSONArray("provisioners");
+        } catch (JSONException e) {
+            return sources;
+        }
+        if (provisioners == null) {
+            return sources;
+        }
+        for (int i = 0; i < provisioners.size(); i++) {
+            JSONObject provisioner = provisioners.optJSONObject(i);
+            if (provisioner != null && "file".equals(provisioner.optString("type"))
+                    && !"download".equals(provisioner.optString("direction"))) {
+                String source = provisioner.optString("source", null);
+                if (source != null) {
+                    sources.add(source);
+                }
+            }
+        }
+        return sources;
+    }
+
+    private static class Compute extends MasterToSlaveFileCallable<String> {
+        private static final long serialVersionUID = 1L;
+        private final String controllerPart;
+        private final String packerExec;
+        private final List<String> templates;
+        private final List<String> varFiles;
+        private final boolean provisionerFiles;
+
+        Compute(String controllerPart, String packerExec, List<String> templates, List<String> varFiles,
+                boolean provisionerFiles) {
+            this.controllerPart = controllerPart;
+            this.packerExec = packerExec;
+            this.templates = new ArrayList<>(templates);
+            this.varFiles = new ArrayList<>(varFiles);
+            this.provisionerFiles = provisionerFiles;
+        }
+
+        @Override
+        public String invoke(File workingDir, VirtualChannel channel) throws IOException, InterruptedException {
+            MessageDigest digest = sha256();
+            update(digest, controllerPart);
+
+            // a different packer version may build differently.
+            File exe = new File(packerExec);
+            update(digest, exe.getAbsolutePath() + ":" + exe.length() + ":" + exe.lastModified());
+
+            for (String template : templates) {
+                File file = resolve(workingDir, template);
+                if (!file.isFile()) {
+                    return null;
+                }
+                hashFile(digest, file);
+                if (provisionerFiles) {
+                    String json = new String(Files.readAllBytes(file.toPath()), UTF8);
+                    for (String source : getProvisionerFiles(json)) {
+                        update(digest, source);
+                        // templated paths are resolved by packer, only the text is known here
+                        if (!source.contains("{{")) {
+                            hashTree(digest, resolve(workingDir, source));
+                        }
+                    }
+                }
+            }
+            // their paths are part of the params already.
+            for (String varFile : varFiles) {
+                hashTree(digest, resolve(workingDir, varFile));
+            }
+            return hex(digest.digest());
+        }
+
+        private static File resolve(File workingDir, String path) {
+            File file = new File(path);
+            return file.isAbsolute() ? file : new File(workingDir, path);
+        }
+
+        private static void hashTree(MessageDigest digest, File file) throws IOException {
+            if (file.isDirectory()) {
+                String[] children = file.list();
+                if (children == null) {
+                    return;
+                }
+                Arrays.sort(children);
+                for (String child : children) {
+                    update(digest, child);
+                    hashTree(digest, new File(file, child));
+                }
+            } else if (file.isFile()) {
+                hashFile(digest, file);
+            } else {
+                update(digest, "<missing>");
+            }
+        }
+
+        private static void hashFile(MessageDigest digest, File file) throws IOException {
+            update(digest, Long.toString(file.length()));
+            byte[] buffer = new byte[8192];
+            InputStream in = new FileInputStream(file);
+            try {
+                int n;
+                while ((n = in.read(buffer)) > 0) {
+                    digest.update(buffer, 0, n);
+                }
+            } finally {
+                in.close();
+            }
+        }
+    }
+}
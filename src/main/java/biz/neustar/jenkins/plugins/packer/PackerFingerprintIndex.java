@@ -0,0 +1,275 @@
+/**
+ * Copyright 2000-2014 NeuStar, Inc. All rights reserved.
+ * NeuStar, the Neustar logo and related names and logos are registered
+ * trademarks, service marks or tradenames of NeuStar, Inc. All other
+ * product names, company names, marks, logos and symbols may be trademarks
+ * of their respective owners.
+ */
+
+package biz.neustar.jenkins.plugins.packer;
+
+import hudson.Extension;
+import hudson.model.Item;
+import hudson.model.listeners.ItemListener;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * The input fingerprints of a job's successful builds and the artifacts they produced, one line per build in
+ * a small append-only file next to the builds:
+ * <pre>
+ * 3f5a...e1 42 amazon-ebs:0:mitchellh.amazonebs:us-east-1%3Aami-123456
+ * </pre>
+ * The file is read once per job and kept in memory, later lookups only re-read it when it changed on disk,
+ * so a lookup never walks the build history. Only the indexes of the most recently used jobs are kept, and a
+ * job's index is dropped when the job is deleted, renamed or moved.
+ */
+public final class PackerFingerprintIndex {
+    private static final Logger LOGGER = Logger.getLogger(PackerFingerprintIndex.class.getName());
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    public static final String FILE_NAME = "packer-fingerprints.txt";
+
+    /** Jobs whose index is kept in memory. */
+    static final int MAX_JOBS = Integer.getInteger(PackerFingerprintIndex.class.getName() + ".maxJobs", 100);
+
+    // job dir to its loaded index, least recently used first.
+    private static final Map<File, Index> INDEXES = new LinkedHashMap<File, Index>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<File, Index> eldest) {
+            return size() > MAX_JOBS;
+        }
+    };
+
+    private PackerFingerprintIndex() {
+    }
+
+    /**
+     * A successful build that produced these artifacts from the inputs of a fingerprint.
+     */
+    public static final class Entry {
+        private final int buildNumber;
+        private final List<PackerArtifact> artifacts;
+
+        Entry(int buildNumber, List<PackerArtifact> artifacts) {
+            this.buildNumber = buildNumber;
+            this.artifacts = Collections.unmodifiableList(artifacts);
+        }
+
+        public int getBuildNumber() {
+            return buildNumber;
+        }
+
+        public List<PackerArtifact> getArtifacts() {
+            return artifacts;
+        }
+    }
+
+    /**
+     * @return the latest successful build with this fingerprint, or null.
+     */
+    public static synchronized Entry lookup(File jobDir, String fingerprint) throws IOException {
+        return load(jobDir).entries.get(fingerprint);
+    }
+
+    public static synchronized void record(File jobDir, String fingerprint, int buildNumber,
+                                           List<PackerArtifact> artifacts) throws IOException {
+        Index index = load(jobDir);
+        File file = new File(jobDir, FILE_NAME);
+        Writer w = new OutputStreamWriter(new FileOutputStream(file, true), UTF8);
+        try {
+            w.write(format(fingerprint, buildNumber, artifacts));
+        } finally {
+            w.close();
+        }
+        index.entries.put(fingerprint, new Entry(buildNumber, new ArrayList<>(artifacts)));
+        index.lines++;
+        index.length = file.length();
+
+        // superseded lines are dropped once they make up most of the file.
+        if (index.lines > 2 * index.entries.size() + 100) {
+            compact(file, index);
+        }
+    }
+
+    static synchronized void clear() {
+        INDEXES.clear();
+    }
+
+    static synchronized int size() {
+        return INDEXES.size();
+    }
+
+    /**
+     * Drop the indexes of the jobs in this directory, e.g. the jobs of a folder, or of a job itself.
+     */
+    static synchronized void evict(File dir) {
+        String prefix = dir.getPath() + File.separator;
+        Iterator<File> jobDirs = INDEXES.keySet().iterator();
+        while (jobDirs.hasNext()) {
+            File jobDir = jobDirs.next();
+            if (jobDir.equals(dir) || jobDir.getPath().startsWith(prefix)) {
+                jobDirs.remove();
+            }
+        }
+    }
+
+    /**
+     * Drop the indexes of jobs that are no longer where they were.
+     */
+    static synchronized void evictMissing() {
+        Iterator<File> jobDirs = INDEXES.keySet().iterator();
+        while (jobDirs.hasNext()) {
+            if (!jobDirs.next().isDirectory()) {
+                jobDirs.remove();
+            }
+        }
+    }
+
+    @Extension
+    public static class Listener extends ItemListener {
+        @Override
+        public void onDeleted(Item item) {
+            evict(item.getRootDir());
+        }
+
+        @Override
+        public void onLocationChanged(Item item, String oldFullName, String newFullName) {
+            // the old directory is gone, whether the job was renamed or moved.
+            evictMissing();
+        }
+    }
+
+    private static Index load(File jobDir) throws IOException {
+        File file = new File(jobDir, FILE_NAME);
+        Index index = INDEXES.get(jobDir);
+        long length = file.length();
+        if (index != null && index.length == length) {
+            return index;
+        }
+
+        index = new Index();
+        if (file.isFile()) {
+            BufferedReader r = new BufferedReader(new InputStreamReader(new FileInputStream(file), UTF8));
+            try {
+                String line;
+                while ((line = r.readLine()) != null) {
+                    if (parse(line, index.entries)) {
+                        index.lines++;
+                    }
+                }
+            } finally {
+                r.close();
+            }
+        }
+        index.length = length;
+        INDEXES.put(jobDir, index);
+        return index;
+    }
+
+    static String format(String fingerprint, int buildNumber, List<PackerArtifact> artifacts) {
+        StringBuilder line = new StringBuilder(fingerprint).append(' ').append(buildNumber);
+        for (PackerArtifact artifact : artifacts) {
+            line.append(' ').append(encode(artifact.getBuilder()))
+                    .append(':').append(artifact.getIndex())
+                    .append(':').append(encode(artifact.getBuilderId()))
+                    .append(':').append(encode(artifact.getId()));
+        }
+        return line.append('\n').toString();
+    }
+
+    /**
+     * @return whether the line was a valid entry, later lines replace earlier ones with the same fingerprint.
+     */
+    static boolean parse(String line, Map<String, Entry> entries) {
+        String[] fields = line.trim().split(" ");
+        if (fields.length < 2 || fields[0].isEmpty()) {
+            return false;
+        }
+        int buildNumber;
+        try {
+            buildNumber = Integer.parseInt(fields[1]);
+        } catch (NumberFormatException e) {
+            return false;
+        }
+        List<PackerArtifact> artifacts = new ArrayList<>();
+        for (int i = 2; i < fields.length; i++) {
+            String[] parts = fields[i].split(":", -1);
+            if (parts.length != 4) {
+                return false;
+            }
+            try {
+                PackerArtifact artifact = new PackerArtifact(decode(parts[0]), Integer.parseInt(parts[1]));
+                artifact.setBuilderId(decode(parts[2]));
+                artifact.setId(decode(parts[3]));
+                artifacts.add(artifact);
+            } catch (NumberFormatException e) {
+                return false;
+            }
+        }
+        entries.put(fields[0], new Entry(buildNumber, artifacts));
+        return true;
+    }
+
+    private static void compact(File file, Index index) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        Writer w = new OutputStreamWriter(new FileOutputStream(tmp), UTF8);
+        try {
+            for (Map.Entry<String, Entry> entry : index.entries.entrySet()) {
+                w.write(format(entry.getKey(), entry.getValue().getBuildNumber(), entry.getValue().getArtifacts()));
+            }
+        } finally {
+            w.close();
+        }
+        if (!tmp.renameTo(file) && !(file.delete() && tmp.renameTo(file))) {
+            LOGGER.warning("Failed to compact " + file);
+            return;
+        }
+        index.lines = index.entries.size();
+        index.length = file.length();
+    }
+
+    private static String encode(String value) {
+        try {
+            // null is written as an empty field
+            return value == null ? "" : URLEncoder.encode(value, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String decode(String value) {
+        try {
+            return value.isEmpty() ? null : URLDecoder.decode(value, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static class Index {
+        private final Map<String, Entry> entries = new HashMap<>();
+        private int lines;
+        private long length;
+    }
+}
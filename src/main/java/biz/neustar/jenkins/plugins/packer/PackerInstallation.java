@@ -51,6 +51,8 @@ public class PackerInstallation extends ToolInstallation implements
     private final String jsonTemplateText;
     private final String templateMode;
     private List<PackerFileEntry> fileEntries = Collections.emptyList();
+    // the params are masked in the build log, tokenized on first use.
+    private transient volatile PackerArgumentPlan paramsPlan;
 
     @DataBoundConstructor
     public PackerInstallation(String name, String home, String params,
@@ -106,6 +108,15 @@ public class PackerInstallation extends ToolInstallation implements
         return params;
     }
 
+    PackerArgumentPlan getParamsPlan() {
+        PackerArgumentPlan plan = paramsPlan;
+        if (plan == null) {
+            plan = PackerArgumentPlan.compile(params, true);
+            paramsPlan = plan;
+        }
+        return plan;
+    }
+
     public String getJsonTemplate() {
         return jsonTemplate;
     }
@@ -127,16 +138,20 @@ public class PackerInstallation extends ToolInstallation implements
     }
 
     public PackerInstallation forEnvironment(EnvVars environment) {
-        return new PackerInstallation(getName(),
+        PackerInstallation installation = new PackerInstallation(getName(),
                 environment.expand(packerHome), params, jsonTemplate, jsonTemplateText, templateMode,
                 fileEntries,
                 getProperties().toList());
+        installation.paramsPlan = paramsPlan;
+        return installation;
     }
 
     public PackerInstallation forNode(Node node, TaskListener log)
             throws IOException, InterruptedException {
-        return new PackerInstallation(getName(), translateFor(node, log),
+        PackerInstallation installation = new PackerInstallation(getName(), translateFor(node, log),
                 params, jsonTemplate, jsonTemplateText, templateMode, fileEntries, getProperties().toList());
+        installation.paramsPlan = paramsPlan;
+        return installation;
     }
 
     public String getExecutable(Launcher launcher) throws InterruptedException, IOException {
@@ -158,7 +173,7 @@ public class PackerInstallation extends ToolInstallation implements
         }
     }
 
-    private static File getExeFile(String packerHome) {
+    static File getExeFile(String packerHome) {
         String execName = (Functions.isWindows()) ? WINDOWS_PACKER_COMMAND : UNIX_PACKER_COMMAND;
         String home = Util.replaceMacro(packerHome, EnvVars.masterEnvVars);
         return new File(home, execName);
@@ -172,10 +187,22 @@ public class PackerInstallation extends ToolInstallation implements
     public static class DescriptorImpl extends
             ToolDescriptor<PackerInstallation> {
 
+        private transient volatile PackerPublisher.DescriptorImpl publisherDescriptor;
+
         public DescriptorImpl() {
             load();
         }
 
+        // the installations are kept by the publisher's descriptor, look it up only once.
+        private PackerPublisher.DescriptorImpl getPublisherDescriptor() {
+            PackerPublisher.DescriptorImpl descriptor = publisherDescriptor;
+            if (descriptor == null) {
+                descriptor = Jenkins.getInstance().getDescriptorByType(PackerPublisher.DescriptorImpl.class);
+                publisherDescriptor = descriptor;
+            }
+            return descriptor;
+        }
+
         @Override
         public String getDisplayName() {
             return "Packer";
@@ -188,16 +215,12 @@ public class PackerInstallation extends ToolInstallation implements
 
         @Override
         public PackerInstallation[] getInstallations() {
-            return Jenkins.getInstance()
-                    .getDescriptorByType(PackerPublisher.DescriptorImpl.class)
-                    .getInstallations();
+            return getPublisherDescriptor().getInstallations();
         }
 
         @Override
         public void setInstallations(PackerInstallation... installations) {
-            Jenkins.getInstance()
-                    .getDescriptorByType(PackerPublisher.DescriptorImpl.class)
-                    .setInstallations(installations);
+            getPublisherDescriptor().setInstallations(installations);
         }
 
         public boolean isTextTemplateChecked(PackerInstallation installation) {
@@ -14,7 +14,11 @@ import hudson.model.Node;
 import hudson.model.TaskListener;
 import hudson.tools.DownloadFromUrlInstaller;
 import hudson.tools.ToolInstallation;
+import jenkins.model.Jenkins;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.logging.Logger;
 import org.kohsuke.stapler.DataBoundConstructor;
 
@@ -30,7 +34,37 @@ public class PackerInstaller extends DownloadFromUrlInstaller {
     public FilePath performInstallation(ToolInstallation tool, Node node, TaskListener log)
             throws IOException, InterruptedException {
         LOGGER.info("Performing Install");
-        return super.performInstallation(tool, node, log);
+        Jenkins jenkins = Jenkins.getInstance();
+        PackerPublisher.DescriptorImpl descriptor = jenkins != null
+                ? jenkins.getDescriptorByType(PackerPublisher.DescriptorImpl.class) : null;
+        Installable inst = descriptor != null && descriptor.isUseDownloadCache() ? getInstallable() : null;
+        if (inst == null) {
+            return super.performInstallation(tool, node, log);
+        }
+
+        FilePath expected = preferredLocation(tool, node);
+        if (isUpToDate(expected, inst)) {
+            return expected;
+        }
+
+        // downloaded once by the controller, then streamed to the node through its channel.
+        File archive = PackerDownloadCache.fetch(id, PackerDownloadCache.mirror(inst.url, descriptor.getDownloadMirror()), log);
+        log.getLogger().println("Unpacking " + archive.getName() + " to " + expected + " on " + node.getDisplayName());
+        expected.deleteRecursive();
+        expected.mkdirs();
+        InputStream in = new FileInputStream(archive);
+        try {
+            expected.unzipFrom(in);
+        } finally {
+            in.close();
+        }
+        // unzipping from a stream loses the file modes
+        FilePath exe = expected.child(PackerInstallation.UNIX_PACKER_COMMAND);
+        if (exe.exists()) {
+            exe.chmod(0755);
+        }
+        expected.child(".installedFrom").write(inst.url, "UTF-8");
+        return expected;
     }
 
     @Extension
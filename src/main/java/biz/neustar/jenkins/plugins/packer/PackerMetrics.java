@@ -0,0 +1,376 @@
+/**
+ * Copyright 2000-2014 NeuStar, Inc. All rights reserved.
+ * NeuStar, the Neustar logo and related names and logos are registered
+ * trademarks, service marks or tradenames of NeuStar, Inc. All other
+ * product names, company names, marks, logos and symbols may be trademarks
+ * of their respective owners.
+ */
+
+package biz.neustar.jenkins.plugins.packer;
+
+import hudson.Extension;
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
+import hudson.model.RootAction;
+import jenkins.model.Jenkins;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.Logger;
+
+/**
+ * Live numbers on packer activity for operations: processes running per node, time waited for account pools,
+ * step durations per template, step results, tool cache hits and bytes staged to agents.
+ *
+ * Published as the JMX MBean <code>biz.neustar.jenkins.plugins.packer:type=PackerMetrics</code>, and in the
+ * Prometheus text format at <code>/packer-metrics/</code> for administrators. Updates only add to striped
+ * counters, so recording from many builds at once does not contend on a single value.
+ */
+public final class PackerMetrics {
+    private static final Logger LOGGER = Logger.getLogger(PackerMetrics.class.getName());
+
+    public static final String OBJECT_NAME = "biz.neustar.jenkins.plugins.packer:type=PackerMetrics";
+
+    public static final String SUCCESS = "success";
+    public static final String FAILURE = "failure";
+    /** Inputs were unchanged and the artifacts of an earlier build reused. */
+    public static final String REUSED = "reused";
+
+    public static final String EXECUTABLE_CACHE = "executable";
+    public static final String DOWNLOAD_CACHE = "download";
+
+    /** Upper bounds of the histogram buckets, in seconds. */
+    static final long[] DURATION_BUCKETS = {60, 300, 600, 1800, 3600, 7200, 14400};
+    static final long[] WAIT_BUCKETS = {1, 10, 60, 300, 900, 3600};
+
+    private static final ConcurrentMap<String, Counter> RUNNING = new ConcurrentHashMap<>();
+    private static final ConcurrentMap<String, Counter> RESULTS = new ConcurrentHashMap<>();
+    private static final ConcurrentMap<String, Counter> CACHE_HITS = new ConcurrentHashMap<>();
+    private static final ConcurrentMap<String, Counter> CACHE_MISSES = new ConcurrentHashMap<>();
+    private static final ConcurrentMap<String, Histogram> DURATIONS = new ConcurrentHashMap<>();
+    private static final Histogram QUEUE_WAIT = new Histogram(WAIT_BUCKETS);
+    private static final Counter STAGED_BYTES = new Counter();
+
+    private PackerMetrics() {
+    }
+
+    public static void processStarted(String node) {
+        counter(RUNNING, node).add(1);
+    }
+
+    public static void processFinished(String node) {
+        counter(RUNNING, node).add(-1);
+    }
+
+    /**
+     * @param template the name of the step's template, "inline" for template text.
+     * @param result {@link #SUCCESS}, {@link #FAILURE} or {@link #REUSED}.
+     */
+    public static void stepCompleted(String template, String result, long millis) {
+        counter(RESULTS, result).add(1);
+        Histogram histogram = DURATIONS.get(template);
+        if (histogram == null) {
+            Histogram created = new Histogram(DURATION_BUCKETS);
+            histogram = DURATIONS.putIfAbsent(template, created);
+            if (histogram == null) {
+                histogram = created;
+            }
+        }
+        histogram.observe(millis);
+    }
+
+    public static void queueWaited(long millis) {
+        QUEUE_WAIT.observe(millis);
+    }
+
+    public static void toolCache(String cache, boolean hit) {
+        counter(hit ? CACHE_HITS : CACHE_MISSES, cache).add(1);
+    }
+
+    public static void staged(long bytes) {
+        STAGED_BYTES.add(bytes);
+    }
+
+    private static Counter counter(ConcurrentMap<String, Counter> counters, String key) {
+        Counter counter = counters.get(key);
+        if (counter == null) {
+            Counter created = new Counter();
+            counter = counters.putIfAbsent(key, created);
+            if (counter == null) {
+                counter = created;
+            }
+        }
+        return counter;
+    }
+
+    private static Map<String, Long> sums(ConcurrentMap<String, Counter> counters) {
+        Map<String, Long> result = new TreeMap<>();
+        for (Map.Entry<String, Counter> entry : counters.entrySet()) {
+            result.put(entry.getKey(), entry.getValue().sum());
+        }
+        return result;
+    }
+
+    private static long total(ConcurrentMap<String, Counter> counters) {
+        long total = 0;
+        for (Counter counter : counters.values()) {
+            total += counter.sum();
+        }
+        return total;
+    }
+
+    /**
+     * Every metric in the Prometheus text exposition format.
+     */
+    public static String toText() {
+        StringWriter text = new StringWriter();
+        PrintWriter out = new PrintWriter(text);
+        header(out, "packer_processes_running", "gauge", "Packer processes running, per node.");
+        for (Map.Entry<String, Long> entry : sums(RUNNING).entrySet()) {
+            line(out, "packer_processes_running{node=\"" + escape(entry.getKey()) + "\"} " + entry.getValue());
+        }
+        header(out, "packer_steps_total", "counter", "Packer build steps completed, by result.");
+        for (Map.Entry<String, Long> entry : sums(RESULTS).entrySet()) {
+            line(out, "packer_steps_total{result=\"" + escape(entry.getKey()) + "\"} " + entry.getValue());
+        }
+        header(out, "packer_step_duration_seconds", "histogram", "Duration of packer build steps, per template.");
+        for (Map.Entry<String, Histogram> entry : new TreeMap<>(DURATIONS).entrySet()) {
+            entry.getValue().write(out, "packer_step_duration_seconds", "template=\"" + escape(entry.getKey()) + "\",");
+        }
+        header(out, "packer_queue_wait_seconds", "histogram", "Time builds waited in the queue for their account pool.");
+        QUEUE_WAIT.write(out, "packer_queue_wait_seconds", "");
+        header(out, "packer_tool_cache_hits_total", "counter", "Packer executables and downloads found in a cache.");
+        for (Map.Entry<String, Long> entry : sums(CACHE_HITS).entrySet()) {
+            line(out, "packer_tool_cache_hits_total{cache=\"" + escape(entry.getKey()) + "\"} " + entry.getValue());
+        }
+        header(out, "packer_tool_cache_misses_total", "counter", "Packer executables resolved and archives downloaded.");
+        for (Map.Entry<String, Long> entry : sums(CACHE_MISSES).entrySet()) {
+            line(out, "packer_tool_cache_misses_total{cache=\"" + escape(entry.getKey()) + "\"} "
+                    + entry.getValue());
+        }
+        header(out, "packer_staged_bytes_total", "counter", "Bytes of templates and file entries sent to agents.");
+        line(out, "packer_staged_bytes_total " + STAGED_BYTES.sum());
+        out.flush();
+        return text.toString();
+    }
+
+    // the format wants \n whatever the platform.
+    private static void line(PrintWriter out, String line) {
+        out.print(line);
+        out.print('\n');
+    }
+
+    private static void header(PrintWriter out, String name, String type, String help) {
+        line(out, "# HELP " + name + " " + help);
+        line(out, "# TYPE " + name + " " + type);
+    }
+
+    static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    /**
+     * A sum spread over several cells, picked by thread, so concurrent updates rarely touch the same one.
+     * The cells are spaced apart so they do not share a cache line.
+     */
+    static final class Counter {
+        private static final int STRIDE = 8;
+        private static final int CELLS = Math.max(4,
+                Integer.highestOneBit(Runtime.getRuntime().availableProcessors()) * 2);
+
+        private final AtomicLongArray cells = new AtomicLongArray(CELLS * STRIDE);
+
+        void add(long value) {
+            long id = Thread.currentThread().getId();
+            int cell = (int) ((id ^ (id >>> 16)) & (CELLS - 1));
+            cells.getAndAdd(cell * STRIDE, value);
+        }
+
+        long sum() {
+            long sum = 0;
+            for (int i = 0; i < CELLS; i++) {
+                sum += cells.get(i * STRIDE);
+            }
+            return sum;
+        }
+    }
+
+    /**
+     * Counts of observations up to each bound, plus their sum, in the shape Prometheus expects.
+     */
+    static final class Histogram {
+        private final long[] bounds;
+        private final Counter[] buckets;
+        private final Counter count = new Counter();
+        private final Counter sumMillis = new Counter();
+
+        Histogram(long[] bounds) {
+            this.bounds = bounds;
+            this.buckets = new Counter[bounds.length];
+            for (int i = 0; i < bounds.length; i++) {
+                buckets[i] = new Counter();
+            }
+        }
+
+        void observe(long millis) {
+            for (int i = 0; i < bounds.length; i++) {
+                if (millis <= bounds[i] * 1000) {
+                    buckets[i].add(1);
+                    break;
+                }
+            }
+            count.add(1);
+            sumMillis.add(millis);
+        }
+
+        long getCount() {
+            return count.sum();
+        }
+
+        long getSumMillis() {
+            return sumMillis.sum();
+        }
+
+        void write(PrintWriter out, String name, String labels) {
+            long cumulative = 0;
+            for (int i = 0; i < bounds.length; i++) {
+                cumulative += buckets[i].sum();
+                line(out, name + "_bucket{" + labels + "le=\"" + bounds[i] + "\"} " + cumulative);
+            }
+            long total = count.sum();
+            line(out, name + "_bucket{" + labels + "le=\"+Inf\"} " + total);
+            String plain = labels.isEmpty() ? "" : "{" + labels.substring(0, labels.length() - 1) + "}";
+            line(out, name + "_sum" + plain + " " + sumMillis.sum() / 1000.0);
+            line(out, name + "_count" + plain + " " + total);
+        }
+    }
+
+    /**
+     * The attributes of the MBean.
+     */
+    public interface MBean {
+        long getProcessesRunning();
+
+        Map<String, Long> getProcessesRunningByNode();
+
+        long getStepsSucceeded();
+
+        long getStepsFailed();
+
+        long getStepsReused();
+
+        long getQueueWaits();
+
+        long getQueueWaitMillis();
+
+        long getToolCacheHits();
+
+        long getToolCacheMisses();
+
+        long getStagedBytes();
+    }
+
+    static final class MBeanImpl implements MBean {
+        @Override
+        public long getProcessesRunning() {
+            return total(RUNNING);
+        }
+
+        @Override
+        public Map<String, Long> getProcessesRunningByNode() {
+            return sums(RUNNING);
+        }
+
+        @Override
+        public long getStepsSucceeded() {
+            return counter(RESULTS, SUCCESS).sum();
+        }
+
+        @Override
+        public long getStepsFailed() {
+            return counter(RESULTS, FAILURE).sum();
+        }
+
+        @Override
+        public long getStepsReused() {
+            return counter(RESULTS, REUSED).sum();
+        }
+
+        @Override
+        public long getQueueWaits() {
+            return QUEUE_WAIT.getCount();
+        }
+
+        @Override
+        public long getQueueWaitMillis() {
+            return QUEUE_WAIT.getSumMillis();
+        }
+
+        @Override
+        public long getToolCacheHits() {
+            return total(CACHE_HITS);
+        }
+
+        @Override
+        public long getToolCacheMisses() {
+            return total(CACHE_MISSES);
+        }
+
+        @Override
+        public long getStagedBytes() {
+            return STAGED_BYTES.sum();
+        }
+    }
+
+    @Initializer(after = InitMilestone.PLUGINS_STARTED)
+    public static void registerMBean() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (server.isRegistered(name)) {
+                // left by an earlier Jenkins in the same JVM, e.g. in tests.
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(new StandardMBean(new MBeanImpl(), MBean.class), name);
+        } catch (JMException e) {
+            LOGGER.warning("Failed to register the packer metrics MBean: " + e);
+        }
+    }
+
+    /**
+     * The text exposition endpoint, for a scraper with an administrator's API token.
+     */
+    @Extension
+    public static class Endpoint implements RootAction {
+        public void doIndex(StaplerRequest req, StaplerResponse rsp) throws IOException {
+            Jenkins.getInstance().checkPermission(Jenkins.ADMINISTER);
+            rsp.setContentType("text/plain; version=0.0.4; charset=utf-8");
+            rsp.getWriter().write(toText());
+        }
+
+        public String getIconFileName() {
+            return null;
+        }
+
+        public String getDisplayName() {
+            return "Packer Metrics";
+        }
+
+        public String getUrlName() {
+            return "packer-metrics";
+        }
+    }
+}
@@ -0,0 +1,186 @@
+/**
+ * Copyright 2000-2014 NeuStar, Inc. All rights reserved.
+ * NeuStar, the Neustar logo and related names and logos are registered
+ * trademarks, service marks or tradenames of NeuStar, Inc. All other
+ * product names, company names, marks, logos and symbols may be trademarks
+ * of their respective owners.
+ */
+
+package biz.neustar.jenkins.plugins.packer;
+
+import hudson.AbortException;
+import hudson.Util;
+import hudson.model.AbstractBuild;
+import hudson.model.Label;
+import hudson.model.Node;
+import hudson.model.Queue;
+import hudson.model.ResourceList;
+import hudson.model.TaskListener;
+import hudson.model.queue.AbstractQueueTask;
+import hudson.model.queue.SubTask;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Logger;
+
+/**
+ * Holds an executor of another node while the builders distributed to it run, so a node never runs more than
+ * its executors allow. It goes through the queue like any other task, and is released by the build.
+ */
+public class PackerNodeReservation extends AbstractQueueTask implements Queue.TransientTask {
+    private static final Logger LOGGER = Logger.getLogger(PackerNodeReservation.class.getName());
+
+    /** How long a build waits for an executor of another node before it gives up on that node. */
+    static long WAIT_MILLIS = Long.getLong(PackerNodeReservation.class.getName() + ".waitMillis",
+            TimeUnit.MINUTES.toMillis(5));
+
+    private final AbstractBuild<?, ?> build;
+    private final Node node;
+    private final CountDownLatch released = new CountDownLatch(1);
+    private volatile Queue.Item item;
+
+    private PackerNodeReservation(AbstractBuild<?, ?> build, Node node) {
+        this.build = build;
+        this.node = node;
+    }
+
+    /**
+     * Wait for an executor of the node, for at most {@link #WAIT_MILLIS}. The build holds its own executor
+     * meanwhile, so it never waits forever for one another build may hold while waiting for the build's.
+     * @return the reservation, or null if no executor was free in time.
+     */
+    public static PackerNodeReservation reserve(AbstractBuild<?, ?> build, Node node, TaskListener listener)
+            throws IOException, InterruptedException {
+        PackerNodeReservation reservation = new PackerNodeReservation(build, node);
+        Queue.Item item = Queue.getInstance().schedule2(reservation, 0).getItem();
+        if (item == null) {
+            throw new AbortException("Failed to queue for an executor on " + node.getDisplayName());
+        }
+        reservation.item = item;
+        listener.getLogger().println("[packer] Waiting for an executor on " + node.getDisplayName());
+        try {
+            item.getFuture().getStartCondition().get(WAIT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            reservation.release();
+            listener.getLogger().println("[packer] No executor on " + node.getDisplayName() + " within "
+                    + Util.getTimeSpanString(WAIT_MILLIS));
+            return null;
+        } catch (InterruptedException e) {
+            reservation.release();
+            throw e;
+        } catch (ExecutionException e) {
+            throw new AbortException("No executor on " + node.getDisplayName() + ": " + e.getCause());
+        }
+        return reservation;
+    }
+
+    /**
+     * Give the executor back, or leave the queue if it was not taken yet.
+     */
+    public void release() {
+        released.countDown();
+        Queue.Item queued = item;
+        if (queued != null) {
+            Queue.getInstance().cancel(queued);
+        }
+    }
+
+    @Override
+    public boolean isBuildBlocked() {
+        return false;
+    }
+
+    @Override
+    public String getWhyBlocked() {
+        return null;
+    }
+
+    @Override
+    public String getName() {
+        return getDisplayName();
+    }
+
+    @Override
+    public String getFullDisplayName() {
+        return getDisplayName();
+    }
+
+    @Override
+    public String getDisplayName() {
+        return "packer builders of " + build.getFullDisplayName();
+    }
+
+    @Override
+    public void checkAbortPermission() {
+        build.getParent().checkAbortPermission();
+    }
+
+    @Override
+    public boolean hasAbortPermission() {
+        return build.getParent().hasAbortPermission();
+    }
+
+    @Override
+    public String getUrl() {
+        return build.getUrl();
+    }
+
+    @Override
+    public Label getAssignedLabel() {
+        return node.getSelfLabel();
+    }
+
+    @Override
+    public Node getLastBuiltOn() {
+        return node;
+    }
+
+    @Override
+    public long getEstimatedDuration() {
+        return -1;
+    }
+
+    @Override
+    public ResourceList getResourceList() {
+        return new ResourceList();
+    }
+
+    @Override
+    public Queue.Executable createExecutable() throws IOException {
+        return new Holder();
+    }
+
+    /**
+     * Keeps the executor busy until the reservation is released.
+     */
+    private class Holder implements Queue.Executable {
+        @Override
+        public SubTask getParent() {
+            return PackerNodeReservation.this;
+        }
+
+        @Override
+        public void run() {
+            try {
+                released.await();
+            } catch (InterruptedException e) {
+                // the executor was interrupted from the node's page, the builders keep running.
+                LOGGER.warning("Executor reserved for " + getDisplayName() + " on " + node.getNodeName()
+                        + " was interrupted");
+            }
+        }
+
+        @Override
+        public long getEstimatedDuration() {
+            return -1;
+        }
+
+        @Override
+        public String toString() {
+            return PackerNodeReservation.this.getDisplayName();
+        }
+    }
+}
@@ -0,0 +1,142 @@
+/**
+ * Copyright 2000-2014 NeuStar, Inc. All rights reserved.
+ * NeuStar, the Neustar logo and related names and logos are registered
+ * trademarks, service marks or tradenames of NeuStar, Inc. All other
+ * product names, company names, marks, logos and symbols may be trademarks
+ * of their respective owners.
+ */
+
+package biz.neustar.jenkins.plugins.packer;
+
+import hudson.model.TaskListener;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Logger;
+
+/**
+ * Runs the packer processes of a step concurrently, at most <code>maxConcurrency</code> at a time.
+ * The step succeeds only if every process does. Optionally the first failure cancels the rest.
+ *
+ * When the build is aborted, every packer is interrupted and the runner waits for them to clean up, each within
+ * its grace period, before the build goes on. Aborting again kills them all right away.
+ */
+public class PackerParallelRunner {
+    private static final Logger LOGGER = Logger.getLogger(PackerParallelRunner.class.getName());
+
+    private final int maxConcurrency;
+    private final boolean cancelOnFailure;
+
+    /**
+     * @param maxConcurrency the most processes running at once, 0 or less for no limit.
+     */
+    public PackerParallelRunner(int maxConcurrency, boolean cancelOnFailure) {
+        this.maxConcurrency = maxConcurrency;
+        this.cancelOnFailure = cancelOnFailure;
+    }
+
+    public boolean run(final List<PackerProcess> processes, final TaskListener listener) throws InterruptedException {
+        int threads = maxConcurrency > 0 ? Math.min(maxConcurrency, processes.size()) : processes.size();
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(threads, 1),
+                new NamingThreadFactory(new DaemonThreadFactory(), "PackerParallelRunner"));
+        final AtomicBoolean failed = new AtomicBoolean();
+        final PrintStream logger = listener.getLogger();
+
+        List<Future<Integer>> futures = new ArrayList<>();
+        for (final PackerProcess process : processes) {
+            futures.add(executor.submit(new Callable<Integer>() {
+                @Override
+                public Integer call() throws Exception {
+                    int exitCode = -1;
+                    try {
+                        exitCode = process.run(listener);
+                    } catch (InterruptedException e) {
+                        throw e;
+                    } catch (Exception e) {
+                        LOGGER.severe(PackerPublisher.convertException(e));
+                        logger.println("[" + process.getLabel() + "] Execution failed: " + e);
+                    }
+                    if (exitCode != 0 && cancelOnFailure && failed.compareAndSet(false, true)) {
+                        logger.println("[packer] " + process.getLabel() + " failed, cancelling the remaining templates");
+                        killAll(processes, process);
+                    }
+                    return exitCode;
+                }
+            }));
+        }
+
+        boolean success = true;
+        try {
+            for (int i = 0; i < futures.size(); i++) {
+                String label = processes.get(i).getLabel();
+                try {
+                    int exitCode = futures.get(i).get();
+                    logger.println("[packer] " + label + (exitCode == 0 ? " succeeded" : " failed with exit code " + exitCode));
+                    success &= exitCode == 0;
+                } catch (ExecutionException e) {
+                    // cancelled before or while running
+                    logger.println("[packer] " + label + " cancelled");
+                    success = false;
+                } catch (CancellationException e) {
+                    logger.println("[packer] " + label + " cancelled");
+                    success = false;
+                }
+            }
+        } catch (InterruptedException e) {
+            // the build was aborted
+            killAll(processes, null);
+            awaitStopped(processes, futures, logger);
+            throw e;
+        } finally {
+            executor.shutdownNow();
+        }
+        return success;
+    }
+
+    // every process was stopped, each is killed after its grace period at the latest.
+    private static void awaitStopped(List<PackerProcess> processes, List<Future<Integer>> futures,
+                                     PrintStream logger) {
+        try {
+            for (Future<Integer> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    // stopped either way
+                } catch (CancellationException e) {
+                    // never started
+                }
+            }
+        } catch (InterruptedException again) {
+            logger.println("[packer] Aborted again, killing packer");
+            for (PackerProcess process : processes) {
+                try {
+                    process.killNow();
+                } catch (Exception e) {
+                    LOGGER.warning(PackerPublisher.convertException(e));
+                }
+            }
+        }
+    }
+
+    private static void killAll(List<PackerProcess> processes, PackerProcess except) {
+        for (PackerProcess process : processes) {
+            if (process != except) {
+                try {
+                    process.kill();
+                } catch (Exception e) {
+                    LOGGER.warning(PackerPublisher.convertException(e));
+                }
+            }
+        }
+    }
+}
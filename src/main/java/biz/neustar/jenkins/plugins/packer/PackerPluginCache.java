@@ -0,0 +1,400 @@
+/**
+ * Copyright 2000-2014 NeuStar, Inc. All rights reserved.
+ * NeuStar, the Neustar logo and related names and logos are registered
+ * trademarks, service marks or tradenames of NeuStar, Inc. All other
+ * product names, company names, marks, logos and symbols may be trademarks
+ * of their respective owners.
+ */
+
+package biz.neustar.jenkins.plugins.packer;
+
+import hudson.EnvVars;
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.model.Node;
+import hudson.model.TaskListener;
+import hudson.remoting.VirtualChannel;
+import hudson.util.ArgumentListBuilder;
+import jenkins.MasterToSlaveFileCallable;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Plugins installed by <code>packer init</code> for HCL2 templates, kept per node in a directory named after the
+ * SHA-256 of the templates' <code>required_plugins</code> blocks (and <code>.packer.lock.hcl</code> if there is
+ * one). Builds with the same requirements point <code>PACKER_PLUGIN_PATH</code> at the same directory and skip
+ * <code>packer init</code>.
+ *
+ * A missing entry is installed into a directory of its own and renamed into place when complete, so concurrent
+ * builds never see a partial entry; if two builds install the same entry, the first rename wins. The least
+ * recently used entries are evicted when the cache grows past its cap. Packer loads plugins as it needs them, so
+ * a build holds a lease on its entry until it is done, the way builds hold the {@link PackerSharedCache}, and
+ * leased entries are never evicted.
+ */
+public final class PackerPluginCache {
+    private static final Logger LOGGER = Logger.getLogger(PackerPluginCache.class.getName());
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    public static final String CACHE_DIR = "packer-plugins";
+    public static final String ENV = "PACKER_PLUGIN_PATH";
+
+    private static final String MARKER = ".initialized";
+    private static final String PARTIAL = ".partial-";
+    private static final String LEASE_DIR = ".leases";
+
+    /** Upper bound of each node's plugin cache before the least recently used entries are evicted. */
+    static long MAX_SIZE = Long.getLong(PackerPluginCache.class.getName() + ".maxSize", 2L * 1024 * 1024 * 1024);
+
+    /** Entries installed or looked up this recently are never evicted, even before they are leased. */
+    static long MIN_AGE = Long.getLong(PackerPluginCache.class.getName() + ".minAge", TimeUnit.HOURS.toMillis(1));
+
+    private final Launcher launcher;
+    private final TaskListener listener;
+    private final EnvVars env;
+    private final FilePath workingDir;
+    private final FilePath cacheRoot;
+    private PackerRemoteCalls remoteCalls = new PackerRemoteCalls();
+    private final String leaseId = UUID.randomUUID().toString();
+    private String leasedKey;
+
+    public PackerPluginCache(Launcher launcher, TaskListener listener, EnvVars env, FilePath workingDir,
+                             FilePath cacheRoot) {
+        this.launcher = launcher;
+        this.listener = listener;
+        this.env = env;
+        this.workingDir = workingDir;
+        this.cacheRoot = cacheRoot;
+    }
+
+    /**
+     * Count the calls to the agent in those of the build.
+     */
+    public PackerPluginCache remoteCalls(PackerRemoteCalls remoteCalls) {
+        this.remoteCalls = remoteCalls;
+        return this;
+    }
+
+    public static FilePath getCacheRoot(Node node, FilePath fallback) {
+        FilePath root = node != null ? node.getRootPath() : null;
+        if (root == null) {
+            root = fallback;
+        }
+        return root.child(CACHE_DIR);
+    }
+
+    /**
+     * Point <code>PACKER_PLUGIN_PATH</code> of the build at the plugins the template requires, running
+     * <code>packer init</code> only if no build on this node installed them before. The entry is leased until
+     * {@link #release()}.
+     * @return the cache key, or null if the template requires no plugins.
+     */
+    public String init(String packerExec, String template) throws IOException, InterruptedException {
+        remoteCalls.count(workingDir);
+        String key = workingDir.act(new Key(packerExec, template));
+        if (key == null) {
+            listener.getLogger().println("[packer] " + template + " requires no plugins, skipping packer init");
+            return null;
+        }
+
+        remoteCalls.count(cacheRoot);
+        String dir = cacheRoot.act(new Lookup(key, leaseId));
+        if (dir != null) {
+            listener.getLogger().println("[packer] Plugins for " + template + " are cached, skipping packer init");
+        } else {
+            FilePath partial = cacheRoot.child(key + PARTIAL + UUID.randomUUID());
+            remoteCalls.count(cacheRoot);
+            partial.mkdirs();
+            try {
+                EnvVars initEnv = new EnvVars(env);
+                initEnv.put(ENV, partial.getRemote());
+                ArgumentListBuilder args = new ArgumentListBuilder().add(packerExec).add("init").add(template);
+                listener.getLogger().println("[packer] Installing plugins for " + template);
+                remoteCalls.count(workingDir);
+                if (new PackerProcess(launcher, args, workingDir, initEnv, null, false).run(listener) != 0) {
+                    throw new IOException("packer init failed for " + template);
+                }
+                remoteCalls.count(cacheRoot);
+                dir = cacheRoot.act(new Commit(key, partial.getName(), leaseId));
+            } finally {
+                // gone already when it was renamed into place
+                remoteCalls.count(cacheRoot);
+                partial.deleteRecursive();
+            }
+        }
+        leasedKey = key;
+        env.put(ENV, dir);
+        return key;
+    }
+
+    /**
+     * Give up the lease on the entry the build used, a failure to release only keeps it from eviction for
+     * {@link PackerSharedCache#MAX_LEASE_AGE}.
+     */
+    public void release() {
+        if (leasedKey == null) {
+            return;
+        }
+        try {
+            remoteCalls.count(cacheRoot);
+            cacheRoot.act(new Release(leasedKey, leaseId));
+            leasedKey = null;
+        } catch (IOException e) {
+            LOGGER.warning("Failed to release cached packer plugins " + leasedKey + ": " + e);
+        } catch (InterruptedException e) {
+            LOGGER.warning("Interrupted releasing cached packer plugins " + leasedKey);
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return the <code>required_plugins</code> blocks of an HCL2 file, in order.
+     */
+    static List<String> requiredPlugins(String hcl) {
+        List<String> blocks = new ArrayList<>();
+        int i = hcl.indexOf("required_plugins");
+        while (i >= 0) {
+            int open = hcl.indexOf('{', i);
+            if (open < 0) {
+                break;
+            }
+            int depth = 0;
+            int end = open;
+            for (; end < hcl.length(); end++) {
+                char c = hcl.charAt(end);
+                if (c == '{') {
+                    depth++;
+                } else if (c == '}' && --depth == 0) {
+                    break;
+                }
+            }
+            blocks.add(hcl.substring(open, Math.min(end + 1, hcl.length())).replaceAll("\\s+", " "));
+            i = hcl.indexOf("required_plugins", end);
+        }
+        return blocks;
+    }
+
+    private static class Key extends MasterToSlaveFileCallable<String> {
+        private static final long serialVersionUID = 1L;
+        private final String packerExec;
+        private final String template;
+
+        Key(String packerExec, String template) {
+            this.packerExec = packerExec;
+            this.template = template;
+        }
+
+        @Override
+        public String invoke(File workingDir, VirtualChannel channel) throws IOException, InterruptedException {
+            File file = new File(template);
+            if (!file.isAbsolute()) {
+                file = new File(workingDir, template);
+            }
+            // a template is either a file or a directory of them.
+            List<File> files = new ArrayList<>();
+            if (file.isDirectory()) {
+                File[] children = file.listFiles();
+                if (children != null) {
+                    Arrays.sort(children);
+                    for (File child : children) {
+                        if (child.getName().endsWith(".pkr.hcl") || child.getName().endsWith(".pkr.json")) {
+                            files.add(child);
+                        }
+                    }
+                }
+            } else if (file.isFile()) {
+                files.add(file);
+            }
+
+            MessageDigest digest = PackerFingerprint.sha256();
+            int blocks = 0;
+            for (File f : files) {
+                for (String block : requiredPlugins(new String(Files.readAllBytes(f.toPath()), UTF8))) {
+                    PackerFingerprint.update(digest, block);
+                    blocks++;
+                }
+            }
+            if (blocks == 0) {
+                return null;
+            }
+            File lock = new File(file.isDirectory() ? file : file.getParentFile(), ".packer.lock.hcl");
+            if (lock.isFile()) {
+                PackerFingerprint.update(digest, new String(Files.readAllBytes(lock.toPath()), UTF8));
+            }
+            // plugins are installed for the os and arch of this node, which the cache is already per.
+            File exe = new File(packerExec);
+            PackerFingerprint.update(digest, exe.getAbsolutePath() + ":" + exe.length() + ":" + exe.lastModified());
+            return PackerFingerprint.hex(digest.digest());
+        }
+    }
+
+    private static class Lookup extends MasterToSlaveFileCallable<String> {
+        private static final long serialVersionUID = 1L;
+        private final String key;
+        private final String leaseId;
+
+        Lookup(String key, String leaseId) {
+            this.key = key;
+            this.leaseId = leaseId;
+        }
+
+        @Override
+        public String invoke(File root, VirtualChannel channel) throws IOException, InterruptedException {
+            // leased before it is looked up, see evict.
+            File lease = lease(root, key, leaseId);
+            File marker = new File(new File(root, key), MARKER);
+            if (!marker.isFile()) {
+                lease.delete();
+                return null;
+            }
+            // refresh the timestamp so eviction treats it as recently used
+            marker.setLastModified(System.currentTimeMillis());
+            return marker.getParent();
+        }
+    }
+
+    private static class Commit extends MasterToSlaveFileCallable<String> {
+        private static final long serialVersionUID = 1L;
+        private final String key;
+        private final String partial;
+        private final String leaseId;
+
+        Commit(String key, String partial, String leaseId) {
+            this.key = key;
+            this.partial = partial;
+            this.leaseId = leaseId;
+        }
+
+        @Override
+        public String invoke(File root, VirtualChannel channel) throws IOException, InterruptedException {
+            lease(root, key, leaseId);
+            File dir = new File(root, key);
+            File partialDir = new File(root, partial);
+            if (!new File(partialDir, MARKER).createNewFile()) {
+                throw new IOException("Unable to mark " + partialDir + " as initialized");
+            }
+            if (!partialDir.renameTo(dir) && !new File(dir, MARKER).isFile()) {
+                throw new IOException("Unable to move " + partialDir + " to " + dir);
+            }
+            evict(root, dir);
+            return dir.getPath();
+        }
+    }
+
+    private static class Release extends MasterToSlaveFileCallable<Void> {
+        private static final long serialVersionUID = 1L;
+        private final String key;
+        private final String leaseId;
+
+        Release(String key, String leaseId) {
+            this.key = key;
+            this.leaseId = leaseId;
+        }
+
+        @Override
+        public Void invoke(File root, VirtualChannel channel) throws IOException, InterruptedException {
+            new File(new File(root, LEASE_DIR), key + "." + leaseId).delete();
+            return null;
+        }
+    }
+
+    // one file per build and entry, in a directory no build removes.
+    private static File lease(File root, String key, String leaseId) throws IOException {
+        File leases = new File(root, LEASE_DIR);
+        if (!leases.isDirectory() && !leases.mkdirs() && !leases.isDirectory()) {
+            throw new IOException("Unable to create " + leases);
+        }
+        File lease = new File(leases, key + "." + leaseId);
+        if (!lease.createNewFile()) {
+            throw new IOException("Lease already exists: " + lease);
+        }
+        return lease;
+    }
+
+    /**
+     * @return whether a build holds the entry, leases of builds that never released them are removed.
+     */
+    static boolean isLeased(File root, String key) {
+        File[] leases = new File(root, LEASE_DIR).listFiles();
+        if (leases == null) {
+            return false;
+        }
+        boolean leased = false;
+        long stale = System.currentTimeMillis() - PackerSharedCache.MAX_LEASE_AGE;
+        for (File lease : leases) {
+            if (!lease.getName().startsWith(key + ".")) {
+                continue;
+            }
+            if (lease.lastModified() < stale) {
+                LOGGER.info("Removing stale packer plugins lease: " + lease);
+                lease.delete();
+            } else {
+                leased = true;
+            }
+        }
+        return leased;
+    }
+
+    static void evict(File root, File keep) throws IOException {
+        File[] dirs = root.listFiles();
+        if (dirs == null) {
+            return;
+        }
+        final List<File> entries = new ArrayList<>();
+        long now = System.currentTimeMillis();
+        for (File dir : dirs) {
+            if (dir.getName().contains(PARTIAL)) {
+                // left behind by a build that died while installing
+                if (dir.lastModified() < now - TimeUnit.DAYS.toMillis(1)) {
+                    deleteRecursive(dir);
+                }
+            } else if (new File(dir, MARKER).isFile()) {
+                entries.add(dir);
+            }
+        }
+        Collections.sort(entries, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                return Long.compare(new File(b, MARKER).lastModified(), new File(a, MARKER).lastModified());
+            }
+        });
+
+        long size = 0;
+        for (File entry : entries) {
+            size += PackerSharedCache.size(entry);
+            if (size > MAX_SIZE && !entry.equals(keep) && new File(entry, MARKER).lastModified() < now - MIN_AGE) {
+                // the marker first, so a concurrent lookup does not find a half deleted entry. Lookups lease
+                // before they check the marker, so one that found it is seen here and the marker is put back.
+                File marker = new File(entry, MARKER);
+                marker.delete();
+                if (isLeased(root, entry.getName())) {
+                    marker.createNewFile();
+                    continue;
+                }
+                LOGGER.info("Evicting cached packer plugins: " + entry);
+                deleteRecursive(entry);
+            }
+        }
+    }
+
+    private static void deleteRecursive(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursive(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,165 @@
+/**
+ * Copyright 2000-2014 NeuStar, Inc. All rights reserved.
+ * NeuStar, the Neustar logo and related names and logos are registered
+ * trademarks, service marks or tradenames of NeuStar, Inc. All other
+ * product names, company names, marks, logos and symbols may be trademarks
+ * of their respective owners.
+ */
+
+package biz.neustar.jenkins.plugins.packer;
+
+import hudson.EnvVars;
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.model.TaskListener;
+import hudson.util.ArgumentListBuilder;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Logger;
+
+/**
+ * Runs <code>packer validate</code>, and optionally <code>packer inspect</code>, on the templates of a build
+ * before <code>packer build</code> starts any builders.
+ *
+ * A template that validated on a node is remembered by the SHA-256 of the template's path as configured and its
+ * contents, the params, the contents of the var-files and file entries and the packer executable, so unchanged
+ * templates are not validated again there. A template text staged to a new file each build is still unchanged.
+ */
+public class PackerPreflight {
+    private static final Logger LOGGER = Logger.getLogger(PackerPreflight.class.getName());
+
+    /** Validated templates remembered per node. */
+    static final int MAX_ENTRIES = Integer.getInteger(PackerPreflight.class.getName() + ".maxEntries", 500);
+
+    // node name to the keys validated there, least recently used first.
+    private static final ConcurrentMap<String, Set<String>> VALIDATED = new ConcurrentHashMap<>();
+
+    private final Launcher launcher;
+    private final TaskListener listener;
+    private final EnvVars env;
+    private final FilePath workingDir;
+    private final String nodeName;
+    private final boolean inspect;
+    private PackerRemoteCalls remoteCalls = new PackerRemoteCalls();
+
+    public PackerPreflight(Launcher launcher, TaskListener listener, EnvVars env, FilePath workingDir,
+                           String nodeName, boolean inspect) {
+        this.launcher = launcher;
+        this.listener = listener;
+        this.env = env;
+        this.workingDir = workingDir;
+        this.nodeName = nodeName;
+        this.inspect = inspect;
+    }
+
+    /**
+     * Count the calls to the agent in those of the build.
+     */
+    public PackerPreflight remoteCalls(PackerRemoteCalls remoteCalls) {
+        this.remoteCalls = remoteCalls;
+        return this;
+    }
+
+    /**
+     * @param params the params of the build.
+     * @param staged what was staged for the build, its paths may change between builds.
+     * @param fileContents variable name to contents of every file entry.
+     * @param configuredTemplate the template as the user configured it.
+     * @param template the template as staged.
+     * @return whether the template is valid, either now or the last time it was validated on this node.
+     */
+    public boolean check(String packerExec, ArgumentListBuilder params, PackerStaging.Result staged,
+                         Map<String, String> fileContents, String configuredTemplate, String template)
+            throws IOException, InterruptedException {
+        String key = key(packerExec, params, staged, fileContents, configuredTemplate, template);
+        if (key != null && isValidated(nodeName, key)) {
+            listener.getLogger().println("[packer] " + template + " is unchanged since it was validated, skipping validation");
+            return true;
+        }
+
+        ArgumentListBuilder validate = new ArgumentListBuilder().add(packerExec).add("validate");
+        addAll(validate, params);
+        PackerPublisher.addFileEntries(validate, staged.getFileEntries(), staged.getVarFile());
+        validate.add(template);
+        listener.getLogger().println("[packer] Validating " + template);
+        remoteCalls.count(workingDir);
+        if (new PackerProcess(launcher, validate, workingDir, env, null, false).run(listener) != 0) {
+            return false;
+        }
+        if (inspect) {
+            ArgumentListBuilder inspectArgs = new ArgumentListBuilder().add(packerExec).add("inspect").add(template);
+            remoteCalls.count(workingDir);
+            new PackerProcess(launcher, inspectArgs, workingDir, env, null, false).run(listener);
+        }
+        if (key != null) {
+            markValidated(nodeName, key);
+        }
+        LOGGER.fine("Validated " + template + " on " + nodeName);
+        return true;
+    }
+
+    private String key(String packerExec, ArgumentListBuilder params, PackerStaging.Result staged,
+                       Map<String, String> fileContents, String configuredTemplate, String template)
+            throws IOException, InterruptedException {
+        // a missing template gives no key, packer validate reports it.
+        remoteCalls.count(workingDir);
+        return new PackerFingerprint().stagedPaths(staged.getPaths()).addParams(params)
+                .addFileContents(fileContents).add(configuredTemplate)
+                .compute(workingDir, packerExec, Collections.singletonList(template), false);
+    }
+
+    static boolean isValidated(String nodeName, String key) {
+        Set<String> keys = VALIDATED.get(nodeName);
+        if (keys == null) {
+            return false;
+        }
+        synchronized (keys) {
+            if (keys.remove(key)) {
+                // most recently used again
+                keys.add(key);
+                return true;
+            }
+            return false;
+        }
+    }
+
+    static void markValidated(String nodeName, String key) {
+        Set<String> keys = VALIDATED.get(nodeName);
+        if (keys == null) {
+            Set<String> newKeys = Collections.newSetFromMap(new LinkedHashMap<String, Boolean>() {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+                    return size() > MAX_ENTRIES;
+                }
+            });
+            keys = VALIDATED.putIfAbsent(nodeName, newKeys);
+            if (keys == null) {
+                keys = newKeys;
+            }
+        }
+        synchronized (keys) {
+            keys.add(key);
+        }
+    }
+
+    public static void invalidateNode(String nodeName) {
+        VALIDATED.remove(nodeName);
+    }
+
+    private static void addAll(ArgumentListBuilder args, ArgumentListBuilder toAdd) {
+        List<String> values = toAdd.toList();
+        boolean[] mask = toAdd.toMaskArray();
+        for (int i = 0; i < values.size(); i++) {
+            args.add(values.get(i), mask[i]);
+        }
+    }
+}
@@ -0,0 +1,242 @@
+/**
+ * Copyright 2000-2014 NeuStar, Inc. All rights reserved.
+ * NeuStar, the Neustar logo and related names and logos are registered
+ * trademarks, service marks or tradenames of NeuStar, Inc. All other
+ * product names, company names, marks, logos and symbols may be trademarks
+ * of their respective owners.
+ */
+
+package biz.neustar.jenkins.plugins.packer;
+
+import hudson.Extension;
+import hudson.model.AbstractProject;
+import hudson.model.Computer;
+import hudson.model.Label;
+import hudson.model.Node;
+import hudson.model.Queue;
+import hudson.model.TaskListener;
+import hudson.model.queue.CauseOfBlockage;
+import hudson.model.queue.QueueTaskDispatcher;
+import hudson.slaves.ComputerListener;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.LogTaskListener;
+import hudson.util.NamingThreadFactory;
+import jenkins.model.Jenkins;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Installs the packer installations on a node in the background as soon as it comes online, so the first
+ * packer build on a new agent does not pay for the download. While their installation is still being installed
+ * on a node, packer builds go to another node that is ready and has an idle executor, if there is one. A build
+ * that runs on the node anyway waits for the background install rather than installing packer a second time.
+ *
+ * Pipelines only say which installation they use once their <code>packer</code> step runs on a node, so only
+ * that wait applies to them.
+ */
+public final class PackerPrewarm {
+    private static final Logger LOGGER = Logger.getLogger(PackerPrewarm.class.getName());
+
+    /** Nodes being installed on at once. */
+    static final int MAX_CONCURRENCY = Integer.getInteger(PackerPrewarm.class.getName() + ".maxConcurrency", 4);
+
+    public enum State {
+        /** Waiting for one of the install threads. */
+        PENDING,
+        INSTALLING,
+        READY,
+        FAILED
+    }
+
+    private static final ExecutorService EXECUTOR = Executors.newFixedThreadPool(MAX_CONCURRENCY,
+            new NamingThreadFactory(new DaemonThreadFactory(), "PackerPrewarm"));
+
+    // node name to installation name to state.
+    private static final ConcurrentMap<String, ConcurrentMap<String, State>> STATES = new ConcurrentHashMap<>();
+
+    private PackerPrewarm() {
+    }
+
+    /**
+     * @return installation name to its state on this node, empty if nothing was installed there in the background.
+     */
+    public static Map<String, State> getStates(String nodeName) {
+        Map<String, State> states = STATES.get(nodeName);
+        return states == null ? Collections.<String, State>emptyMap() : new HashMap<>(states);
+    }
+
+    /**
+     * @return the state of the installation on this node, null if it was not installed in the background.
+     */
+    public static State getState(String nodeName, String installationName) {
+        Map<String, State> states = STATES.get(nodeName);
+        return states == null || installationName == null ? null : states.get(installationName);
+    }
+
+    /**
+     * @return whether every installation is ready on this node.
+     */
+    public static boolean isWarm(String nodeName) {
+        Map<String, State> states = STATES.get(nodeName);
+        if (states == null) {
+            return false;
+        }
+        for (State state : states.values()) {
+            if (state != State.READY) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Wait for the installation to be installed on this node in the background, if it is being installed.
+     */
+    public static void awaitInstalled(Node node, String installationName, TaskListener listener)
+            throws InterruptedException {
+        if (node == null || !isInstalling(getState(node.getNodeName(), installationName))) {
+            return;
+        }
+        listener.getLogger().println("[packer] Waiting for " + installationName + " to be installed on "
+                + node.getDisplayName() + " in the background");
+        while (isInstalling(getState(node.getNodeName(), installationName))) {
+            Thread.sleep(1000);
+        }
+    }
+
+    private static boolean isInstalling(State state) {
+        return state == State.PENDING || state == State.INSTALLING;
+    }
+
+    static void prewarm(final Node node, final PackerInstallation[] installations) {
+        final String nodeName = node.getNodeName();
+        final ConcurrentMap<String, State> states = new ConcurrentHashMap<>();
+        for (PackerInstallation installation : installations) {
+            states.put(installation.getName(), State.PENDING);
+        }
+        STATES.put(nodeName, states);
+
+        EXECUTOR.submit(new Runnable() {
+            @Override
+            public void run() {
+                TaskListener listener = new LogTaskListener(LOGGER, Level.INFO);
+                for (PackerInstallation installation : installations) {
+                    if (STATES.get(nodeName) != states) {
+                        // went offline, or came online again in the meantime
+                        return;
+                    }
+                    states.put(installation.getName(), State.INSTALLING);
+                    try {
+                        installation.forNode(node, listener);
+                        states.put(installation.getName(), State.READY);
+                        LOGGER.fine("Installed " + installation.getName() + " on " + nodeName);
+                    } catch (Exception e) {
+                        states.put(installation.getName(), State.FAILED);
+                        LOGGER.warning("Failed to install " + installation.getName() + " on " + nodeName + ": " + e);
+                    }
+                    // builds held back from this node can go now.
+                    Jenkins.getInstance().getQueue().scheduleMaintenance();
+                }
+            }
+        });
+    }
+
+    @Extension
+    public static class NodeListener extends ComputerListener {
+        @Override
+        public void onOnline(Computer c, TaskListener listener) {
+            PackerPublisher.DescriptorImpl descriptor = Jenkins.getInstance()
+                    .getDescriptorByType(PackerPublisher.DescriptorImpl.class);
+            Node node = c.getNode();
+            if (descriptor == null || !descriptor.isPrewarmInstallations() || node == null) {
+                return;
+            }
+            PackerInstallation[] installations = descriptor.getInstallations();
+            if (installations.length > 0) {
+                listener.getLogger().println("Installing packer in the background");
+                prewarm(node, installations);
+            }
+        }
+
+        @Override
+        public void onOffline(Computer c) {
+            STATES.remove(c.getName());
+        }
+    }
+
+    /**
+     * Keeps packer builds off a node until their installation is ready there, as long as another node that is
+     * ready could start them right away. Otherwise the build waits on the node rather than in the queue, so a
+     * label with a single node is never stalled. Failed installs do not block, the build reports the failure
+     * itself.
+     */
+    @Extension
+    public static class Dispatcher extends QueueTaskDispatcher {
+        @Override
+        public CauseOfBlockage canTake(Node node, Queue.BuildableItem item) {
+            if (!(item.task instanceof AbstractProject)) {
+                return null;
+            }
+            PackerPublisher publisher = ((AbstractProject<?, ?>) item.task).getPublishersList().get(PackerPublisher.class);
+            PackerInstallation installation = publisher != null ? publisher.getInstallation() : null;
+            if (installation == null) {
+                return null;
+            }
+            State state = getState(node.getNodeName(), installation.getName());
+            if (isInstalling(state) && hasReadyNode(item, node, installation.getName())) {
+                return new WarmingUp(installation.getName(), node.getDisplayName());
+            }
+            return null;
+        }
+
+        // another node of the item's label that is not installing packer and has an idle executor.
+        private static boolean hasReadyNode(Queue.BuildableItem item, Node warming, String installationName) {
+            Label label = item.getAssignedLabel();
+            Collection<Node> nodes;
+            if (label != null) {
+                nodes = label.getNodes();
+            } else {
+                nodes = new ArrayList<Node>(Jenkins.getInstance().getNodes());
+                nodes.add(Jenkins.getInstance());
+            }
+            for (Node node : nodes) {
+                if (node.getNodeName().equals(warming.getNodeName())
+                        || (label == null && node.getMode() != Node.Mode.NORMAL)
+                        || isInstalling(getState(node.getNodeName(), installationName))) {
+                    continue;
+                }
+                Computer computer = node.toComputer();
+                if (computer != null && computer.isOnline() && computer.isAcceptingTasks()
+                        && computer.countIdle() > 0) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    static class WarmingUp extends CauseOfBlockage {
+        private final String installation;
+        private final String node;
+
+        WarmingUp(String installation, String node) {
+            this.installation = installation;
+            this.node = node;
+        }
+
+        @Override
+        public String getShortDescription() {
+            return "Packer " + installation + " is being installed on " + node;
+        }
+    }
+}
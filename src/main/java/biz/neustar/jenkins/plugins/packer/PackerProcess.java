@@ -0,0 +1,791 @@
+/**
+ * Copyright 2000-2014 NeuStar, Inc. All rights reserved.
+ * NeuStar, the Neustar logo and related names and logos are registered
+ * trademarks, service marks or tradenames of NeuStar, Inc. All other
+ * product names, company names, marks, logos and symbols may be trademarks
+ * of their respective owners.
+ */
+
+package biz.neustar.jenkins.plugins.packer;
+
+import hudson.CloseProofOutputStream;
+import hudson.EnvVars;
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.Proc;
+import hudson.Util;
+import hudson.console.LineTransformationOutputStream;
+import hudson.model.Computer;
+import hudson.model.TaskListener;
+import hudson.remoting.RemoteOutputStream;
+import hudson.remoting.VirtualChannel;
+import hudson.util.ArgumentListBuilder;
+import hudson.util.ProcessTree;
+import hudson.util.StreamTaskListener;
+import jenkins.MasterToSlaveFileCallable;
+import jenkins.model.Jenkins;
+import jenkins.util.Timer;
+
+import java.io.File;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.nio.charset.Charset;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Logger;
+
+/**
+ * A single packer invocation of a build step.
+ *
+ * Packer is stopped the way an interactive user would: on abort, cancellation or a timeout it first gets
+ * SIGINT, so its builders can tear down the instances they created, and is only killed if it is still running
+ * after a grace period. Aborting again while packer cleans up kills it right away.
+ *
+ * With a bounded log, packer is started by a call to its node that also writes the full log there, so only what
+ * the build log shows crosses the channel. The full log is copied back only if the build needs it.
+ */
+public class PackerProcess {
+    private static final Logger LOGGER = Logger.getLogger(PackerProcess.class.getName());
+
+    /** Set on packer's environment, so its process can be found on the agent to interrupt it. */
+    static final String COOKIE = "JENKINS_PACKER_PROCESS";
+
+    // on the agent, cookie to the output of each packer started there with a bounded log.
+    private static final ConcurrentMap<String, ActivityOutputStream> RUNNING = new ConcurrentHashMap<>();
+
+    public static final int DEFAULT_GRACE_SECONDS = 300;
+
+    private final Launcher launcher;
+    private final ArgumentListBuilder args;
+    private final FilePath workingDir;
+    private final EnvVars env;
+    private final String label;
+    private final boolean machineReadable;
+    private FilePath fullLog;
+    private int tailLines;
+    private long timeoutMillis;
+    private long deadline;
+    private long idleTimeoutMillis;
+    private long graceMillis = TimeUnit.SECONDS.toMillis(DEFAULT_GRACE_SECONDS);
+    private final String cookie = UUID.randomUUID().toString();
+    private PackerProcess firstAttempt = this;
+
+    private volatile Output output;
+    private volatile Proc proc;
+    private volatile boolean killed;
+    private volatile Integer exitCode;
+    private volatile long launchMillis;
+    private volatile TaskListener listener;
+    private final AtomicBoolean stopping = new AtomicBoolean();
+
+    /**
+     * @param label prefix for the output of this process, or null to pass it through as is.
+     * @param machineReadable whether the args include -machine-readable and the output should be parsed.
+     */
+    public PackerProcess(Launcher launcher, ArgumentListBuilder args, FilePath workingDir, EnvVars env,
+                         String label, boolean machineReadable) {
+        this.launcher = launcher;
+        this.args = args;
+        this.workingDir = workingDir;
+        this.env = env;
+        this.label = label;
+        this.machineReadable = machineReadable;
+    }
+
+    /**
+     * Write the full output to this gzip file, and only errors and the last lines to the build log.
+     * @param fullLog on the node packer runs on.
+     */
+    public PackerProcess boundedLog(FilePath fullLog, int tailLines) {
+        this.fullLog = fullLog;
+        this.tailLines = tailLines;
+        return this;
+    }
+
+    /**
+     * @param timeoutMillis how long packer may run, 0 for no limit.
+     * @param idleTimeoutMillis how long packer may go without any output, 0 for no limit.
+     * @param graceMillis how long packer gets to clean up after SIGINT before it is killed, 0 to kill it right away.
+     */
+    public PackerProcess timeouts(long timeoutMillis, long idleTimeoutMillis, long graceMillis) {
+        this.timeoutMillis = timeoutMillis;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        this.graceMillis = graceMillis;
+        return this;
+    }
+
+    /**
+     * Stop packer at this time at the latest, however late it started. Every process of a step and their retries
+     * share it, so waiting for a free slot or for a retry takes from the same timeout.
+     * @param deadline in milliseconds since the epoch, 0 for none.
+     */
+    public PackerProcess deadline(long deadline) {
+        this.deadline = deadline;
+        return this;
+    }
+
+    /**
+     * @return the gzip file with the full output on packer's node, or null if it all goes to the build log.
+     */
+    public FilePath getFullLog() {
+        return fullLog;
+    }
+
+    public FilePath getWorkingDir() {
+        return workingDir;
+    }
+
+    public String getLabel() {
+        return label;
+    }
+
+    public ArgumentListBuilder getArgs() {
+        return args;
+    }
+
+    /**
+     * @return the parsed output, or null if the output is not machine-readable.
+     */
+    public MachineReadableOutputStream getMachineOutput() {
+        Output current = output;
+        return current != null ? current.machineOutput : null;
+    }
+
+    /**
+     * @return the builders packer reported as errored, from the machine-readable output or the summary
+     *         packer prints when it exits.
+     */
+    public Set<String> getFailedBuilders() {
+        Output current = output;
+        if (current == null) {
+            return Collections.emptySet();
+        }
+        if (current.machineOutput != null) {
+            return current.machineOutput.getFailedBuilders();
+        }
+        return Collections.unmodifiableSet(current.erroredBuilders);
+    }
+
+    /**
+     * @return whether packer was stopped by the plugin, on abort, cancellation or a timeout, rather than
+     *         exiting on its own.
+     */
+    public boolean isStopped() {
+        return killed;
+    }
+
+    /**
+     * @return the process this one retries, or itself if it is not a retry.
+     */
+    public PackerProcess getFirstAttempt() {
+        return firstAttempt;
+    }
+
+    /**
+     * @return the exit code of packer, or null if it has not finished.
+     */
+    public Integer getExitCode() {
+        return exitCode;
+    }
+
+    /**
+     * @return how long starting packer took, 0 if it has not been started.
+     */
+    public long getLaunchMillis() {
+        return launchMillis;
+    }
+
+    /**
+     * Run packer to completion.
+     * @return the exit code of packer.
+     */
+    public int run(TaskListener listener) throws IOException, InterruptedException {
+        this.listener = listener;
+        Output local = new Output(label, machineReadable, fullLog != null ? fullLog.getRemote() : null, tailLines);
+        output = local;
+        EnvVars launchEnv = new EnvVars(env);
+        launchEnv.put(COOKIE, cookie);
+
+        String node = nodeName();
+        boolean started = false;
+        Activity activity;
+        try {
+            LOGGER.info("launch: " + args.toString());
+            synchronized (this) {
+                if (killed) {
+                    throw new InterruptedException("Cancelled: " + args);
+                }
+                if (deadline > 0 && System.currentTimeMillis() >= deadline) {
+                    killed = true;
+                    listener.getLogger().println("[packer] Timed out after "
+                            + Util.getTimeSpanString(timeoutMillis) + ", not starting packer");
+                    exitCode = -1;
+                    return exitCode;
+                }
+                long start = System.nanoTime();
+                if (fullLog != null) {
+                    fullLog.getParent().mkdirs();
+                    proc = new AgentProc(workingDir.actAsync(new Launch(args, launchEnv, cookie, local,
+                            new RemoteOutputStream(new CloseProofOutputStream(listener.getLogger())))));
+                    activity = new AgentActivity(workingDir, cookie);
+                } else {
+                    OutputStream out = local.open(listener.getLogger());
+                    proc = launcher.launch().pwd(workingDir).cmds(args).envs(launchEnv).stdout(out).start();
+                    activity = local.activity;
+                }
+                launchMillis = (System.nanoTime() - start) / 1000000;
+            }
+            started = true;
+            PackerMetrics.processStarted(node);
+            exitCode = waitFor(activity);
+            return exitCode;
+        } finally {
+            if (started) {
+                PackerMetrics.processFinished(node);
+            }
+            if (proc instanceof AgentProc) {
+                // what was parsed on the agent, unless packer was killed before it could be returned.
+                Output remote = ((AgentProc) proc).output;
+                if (remote != null) {
+                    output = remote;
+                }
+            } else {
+                // flush any partial last line, but leave the build log open.
+                local.close();
+            }
+        }
+    }
+
+    private String nodeName() {
+        if (!workingDir.isRemote()) {
+            return "master";
+        }
+        Computer computer = Jenkins.getInstance() != null ? workingDir.toComputer() : null;
+        return computer != null ? computer.getName() : "unknown";
+    }
+
+    // Proc.join() kills packer outright when the build is interrupted, so it is joined on another thread.
+    private int waitFor(Activity activity) throws IOException, InterruptedException {
+        final Proc running = proc;
+        Future<Integer> done = Computer.threadPoolForRemoting.submit(new Callable<Integer>() {
+            @Override
+            public Integer call() throws Exception {
+                return running.join();
+            }
+        });
+
+        long end = deadline;
+        if (timeoutMillis > 0) {
+            long own = System.currentTimeMillis() + timeoutMillis;
+            end = end > 0 ? Math.min(end, own) : own;
+        }
+        while (true) {
+            long now = System.currentTimeMillis();
+            long wait = Long.MAX_VALUE;
+            if (end > 0) {
+                long left = end - now;
+                if (left <= 0) {
+                    stop("Timed out after " + Util.getTimeSpanString(timeoutMillis));
+                    return finish(done);
+                }
+                wait = Math.min(wait, left);
+            }
+            if (idleTimeoutMillis > 0) {
+                long left = activity.getLastWrite() + idleTimeoutMillis - now;
+                if (left <= 0) {
+                    stop("No output for " + Util.getTimeSpanString(idleTimeoutMillis));
+                    return finish(done);
+                }
+                wait = Math.min(wait, left);
+            }
+            try {
+                return get(done, wait);
+            } catch (TimeoutException e) {
+                // check the timeouts again
+            } catch (InterruptedException e) {
+                stop("Aborted");
+                finish(done);
+                throw e;
+            }
+        }
+    }
+
+    // waits for packer to exit after it was stopped, killing it if the build is aborted meanwhile.
+    private int finish(Future<Integer> done) throws IOException, InterruptedException {
+        try {
+            return get(done, Long.MAX_VALUE);
+        } catch (TimeoutException e) {
+            throw new IllegalStateException(e);
+        } catch (InterruptedException e) {
+            listener.getLogger().println("[packer] Aborted again, killing packer");
+            proc.kill();
+            throw e;
+        }
+    }
+
+    private static int get(Future<Integer> done, long millis) throws IOException, InterruptedException,
+            TimeoutException {
+        try {
+            return millis == Long.MAX_VALUE ? done.get() : done.get(millis, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * A new process running packer again the same way, with its timeouts, deadline and bounded log.
+     * @param builders the builders to run again through <code>-only</code>, or none for all of them.
+     * @param attempt numbers the full log of the retry.
+     */
+    public PackerProcess retry(Collection<String> builders, int attempt) {
+        List<String> values = args.toList();
+        boolean[] mask = args.toMaskArray();
+        ArgumentListBuilder retryArgs = new ArgumentListBuilder();
+        // the template is always last.
+        int template = values.size() - 1;
+        for (int i = 0; i < template; i++) {
+            if (builders.isEmpty() || !values.get(i).startsWith("-only=")) {
+                retryArgs.add(values.get(i), mask[i]);
+            }
+        }
+        if (!builders.isEmpty()) {
+            retryArgs.add("-only=" + Util.join(builders, ","));
+        }
+        if (template >= 0) {
+            retryArgs.add(values.get(template), mask[template]);
+        }
+
+        PackerProcess retry = new PackerProcess(launcher, retryArgs, workingDir, env, label, machineReadable)
+                .timeouts(timeoutMillis, idleTimeoutMillis, graceMillis).deadline(deadline);
+        retry.firstAttempt = firstAttempt;
+        if (fullLog != null) {
+            String name = fullLog.getName();
+            if (name.endsWith(".log.gz")) {
+                name = name.substring(0, name.length() - ".log.gz".length());
+            }
+            retry.boundedLog(fullLog.getParent().child(name + "-retry" + attempt + ".log.gz"), tailLines);
+        }
+        return retry;
+    }
+
+    /**
+     * Stop packer if it is running, or keep it from starting otherwise. Does not wait for packer to exit.
+     */
+    public void kill() throws IOException, InterruptedException {
+        stop("Cancelled");
+    }
+
+    /**
+     * Kill packer right away, without letting it clean up.
+     */
+    void killNow() throws IOException, InterruptedException {
+        Proc running;
+        synchronized (this) {
+            killed = true;
+            running = proc;
+        }
+        if (running != null) {
+            running.kill();
+        }
+    }
+
+    private void stop(String reason) throws IOException, InterruptedException {
+        final Proc running;
+        synchronized (this) {
+            killed = true;
+            running = proc;
+        }
+        if (running == null || !stopping.compareAndSet(false, true)) {
+            return;
+        }
+        final TaskListener log = listener;
+        if (graceMillis > 0 && interrupt()) {
+            log.getLogger().println("[packer] " + reason + ", interrupting packer so it can clean up; it is killed if "
+                    + "still running in " + Util.getTimeSpanString(graceMillis));
+            Timer.get().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        if (running.isAlive()) {
+                            log.getLogger().println("[packer] Still running after "
+                                    + Util.getTimeSpanString(graceMillis) + ", killing packer");
+                            running.kill();
+                        }
+                    } catch (Exception e) {
+                        LOGGER.warning("Failed to kill packer: " + e);
+                    }
+                }
+            }, graceMillis, TimeUnit.MILLISECONDS);
+        } else {
+            log.getLogger().println("[packer] " + reason + ", killing packer");
+            running.kill();
+        }
+    }
+
+    /**
+     * Send SIGINT to packer on its node.
+     * @return whether packer was found and signalled, never on Windows.
+     */
+    boolean interrupt() {
+        return interrupt(workingDir, cookie, null);
+    }
+
+    /**
+     * Send SIGINT to packer started with {@link #COOKIE} in its environment.
+     * @param executable packer's path, when it runs under other processes that have the cookie too.
+     * @return whether packer was found and signalled, never on Windows.
+     */
+    static boolean interrupt(FilePath dir, String cookie, String executable) {
+        try {
+            return dir.act(new Interrupt(cookie, executable));
+        } catch (Exception e) {
+            LOGGER.warning("Failed to interrupt packer: " + e);
+            return false;
+        }
+    }
+
+    private static class Interrupt extends MasterToSlaveFileCallable<Boolean> {
+        private static final long serialVersionUID = 1L;
+        private final String cookie;
+        private final String executable;
+
+        Interrupt(String cookie, String executable) {
+            this.cookie = cookie;
+            this.executable = executable;
+        }
+
+        @Override
+        public Boolean invoke(File dir, VirtualChannel channel) throws IOException, InterruptedException {
+            if (File.pathSeparatorChar == ';') {
+                return false;
+            }
+            boolean signalled = false;
+            for (ProcessTree.OSProcess p : ProcessTree.get()) {
+                // packer itself, not the plugins it started, which it interrupts on its own.
+                ProcessTree.OSProcess parent = p.getParent();
+                if (isPacker(p) && (parent == null || !isPacker(parent))) {
+                    Process kill = new ProcessBuilder("kill", "-INT", Integer.toString(p.getPid())).start();
+                    signalled |= kill.waitFor() == 0;
+                }
+            }
+            return signalled;
+        }
+
+        private boolean isPacker(ProcessTree.OSProcess p) {
+            try {
+                if (executable != null) {
+                    List<String> args = p.getArguments();
+                    if (args.isEmpty() || !executable.equals(args.get(0))) {
+                        return false;
+                    }
+                }
+                return cookie.equals(p.getEnvironmentVariables().get(COOKIE));
+            } catch (RuntimeException e) {
+                // not readable on every platform
+                return false;
+            }
+        }
+    }
+
+    /**
+     * The streams packer's output goes through before the build log, set up wherever packer's output is read.
+     * Serializable so it can be set up on the agent, and return what it parsed from there.
+     */
+    static class Output implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private final String label;
+        private final boolean machineReadable;
+        private final String fullLog;
+        private final int tailLines;
+        private MachineReadableOutputStream machineOutput;
+        private final Set<String> erroredBuilders = new LinkedHashSet<>();
+        private int exitCode = -1;
+        private transient ErroredBuildsOutputStream erroredBuilds;
+        private transient PrefixedOutputStream prefixed;
+        private transient BoundedLogOutputStream bounded;
+        private transient ActivityOutputStream activity;
+
+        Output(String label, boolean machineReadable, String fullLog, int tailLines) {
+            this.label = label;
+            this.machineReadable = machineReadable;
+            this.fullLog = fullLog;
+            this.tailLines = tailLines;
+        }
+
+        /**
+         * @return the stream for packer's output, passing it on to the build log.
+         */
+        OutputStream open(OutputStream log) throws IOException {
+            OutputStream out = log;
+            if (fullLog != null) {
+                out = bounded = new BoundedLogOutputStream(out, new File(fullLog), tailLines);
+            }
+            if (label != null) {
+                out = prefixed = new PrefixedOutputStream(out, "[" + label + "] ");
+            }
+            if (machineReadable) {
+                out = machineOutput = new MachineReadableOutputStream(out);
+            } else {
+                out = erroredBuilds = new ErroredBuildsOutputStream(out, erroredBuilders);
+            }
+            return activity = new ActivityOutputStream(out);
+        }
+
+        // flushes any partial last line, but leaves the build log open.
+        void close() throws IOException {
+            if (machineOutput != null) {
+                machineOutput.close();
+            }
+            if (erroredBuilds != null) {
+                erroredBuilds.close();
+            }
+            if (prefixed != null) {
+                prefixed.close();
+            }
+            if (bounded != null) {
+                bounded.close();
+            }
+        }
+    }
+
+    /**
+     * Starts packer on its node, with its output going through {@link Output} there, and waits for it to exit.
+     * Cancelling the call kills packer.
+     */
+    private static class Launch extends MasterToSlaveFileCallable<Output> {
+        private static final long serialVersionUID = 1L;
+        private final ArgumentListBuilder args;
+        private final EnvVars env;
+        private final String cookie;
+        private final Output output;
+        private final OutputStream log;
+
+        Launch(ArgumentListBuilder args, EnvVars env, String cookie, Output output, OutputStream log) {
+            this.args = args;
+            this.env = env;
+            this.cookie = cookie;
+            this.output = output;
+            this.log = log;
+        }
+
+        @Override
+        public Output invoke(File dir, VirtualChannel channel) throws IOException, InterruptedException {
+            OutputStream out = output.open(log);
+            RUNNING.put(cookie, output.activity);
+            try {
+                Proc proc = new Launcher.LocalLauncher(new StreamTaskListener(log)).launch()
+                        .pwd(dir).cmds(args).envs(env).stdout(out).start();
+                // killed if the call is cancelled
+                output.exitCode = proc.join();
+                return output;
+            } finally {
+                RUNNING.remove(cookie);
+                output.close();
+                log.flush();
+            }
+        }
+    }
+
+    /**
+     * Packer running in a {@link Launch} call.
+     */
+    private static class AgentProc extends Proc {
+        private final Future<Output> call;
+        private volatile Output output;
+
+        AgentProc(Future<Output> call) {
+            this.call = call;
+        }
+
+        @Override
+        public boolean isAlive() throws IOException, InterruptedException {
+            return !call.isDone();
+        }
+
+        @Override
+        public void kill() throws IOException, InterruptedException {
+            call.cancel(true);
+        }
+
+        @Override
+        public int join() throws IOException, InterruptedException {
+            try {
+                output = call.get();
+                return output.exitCode;
+            } catch (CancellationException e) {
+                // killed, like a remote proc
+                return -1;
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException) {
+                    throw (IOException) e.getCause();
+                }
+                throw new IOException(e.getCause());
+            }
+        }
+
+        @Override
+        public InputStream getStdout() {
+            return null;
+        }
+
+        @Override
+        public InputStream getStderr() {
+            return null;
+        }
+
+        @Override
+        public OutputStream getStdin() {
+            return null;
+        }
+    }
+
+    interface Activity {
+        /**
+         * @return when packer last wrote anything.
+         */
+        long getLastWrite() throws IOException, InterruptedException;
+    }
+
+    /**
+     * Asks the agent when packer last wrote anything, only when an idle timeout is due.
+     */
+    private static class AgentActivity implements Activity {
+        private final FilePath workingDir;
+        private final String cookie;
+        private final long started = System.currentTimeMillis();
+
+        AgentActivity(FilePath workingDir, String cookie) {
+            this.workingDir = workingDir;
+            this.cookie = cookie;
+        }
+
+        @Override
+        public long getLastWrite() throws IOException, InterruptedException {
+            long idle = workingDir.act(new LastWrite(cookie));
+            return idle >= 0 ? System.currentTimeMillis() - idle : started;
+        }
+    }
+
+    private static class LastWrite extends MasterToSlaveFileCallable<Long> {
+        private static final long serialVersionUID = 1L;
+        private final String cookie;
+
+        LastWrite(String cookie) {
+            this.cookie = cookie;
+        }
+
+        // the time since, as the agent's clock may differ.
+        @Override
+        public Long invoke(File dir, VirtualChannel channel) {
+            ActivityOutputStream activity = RUNNING.get(cookie);
+            return activity != null ? System.currentTimeMillis() - activity.getLastWrite() : -1;
+        }
+    }
+
+    /**
+     * Remembers when packer last wrote anything.
+     */
+    static class ActivityOutputStream extends FilterOutputStream implements Activity {
+        private volatile long lastWrite = System.currentTimeMillis();
+
+        ActivityOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public long getLastWrite() {
+            return lastWrite;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            lastWrite = System.currentTimeMillis();
+            out.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            lastWrite = System.currentTimeMillis();
+            out.write(b, off, len);
+        }
+    }
+
+    /**
+     * Picks the builders out of the <code>Build 'name' errored</code> lines of the plain output. Only lines
+     * starting with that text, possibly after a color code, are decoded.
+     */
+    static class ErroredBuildsOutputStream extends LineTransformationOutputStream {
+        private static final byte[] BUILD = "Build '".getBytes(Charset.forName("UTF-8"));
+
+        private final OutputStream out;
+        private final Set<String> builders;
+
+        ErroredBuildsOutputStream(OutputStream out, Set<String> builders) {
+            this.out = out;
+            this.builders = builders;
+        }
+
+        @Override
+        protected void eol(byte[] b, int len) throws IOException {
+            out.write(b, 0, len);
+            int start = 0;
+            if (len > 0 && b[0] == 0x1b) {
+                // skip an ANSI color code, e.g. ESC[1;31m
+                while (start < len && b[start] != 'm') {
+                    start++;
+                }
+                start++;
+            }
+            if (startsWith(b, start, len)) {
+                String builder = MachineReadableOutputStream.erroredBuilder(
+                        new String(b, start, len - start, "UTF-8"));
+                if (builder != null) {
+                    builders.add(builder);
+                }
+            }
+        }
+
+        private static boolean startsWith(byte[] b, int start, int len) {
+            if (len - start < BUILD.length) {
+                return false;
+            }
+            for (int i = 0; i < BUILD.length; i++) {
+                if (b[start + i] != BUILD[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            super.close();
+            out.flush();
+        }
+    }
+}
@@ -17,7 +17,9 @@ import hudson.Launcher;
 import hudson.Util;
 import hudson.model.AbstractBuild;
 import hudson.model.AbstractProject;
+import hudson.model.Action;
 import hudson.model.BuildListener;
+import hudson.model.Computer;
 import hudson.model.Result;
 import hudson.model.TaskListener;
 import hudson.tasks.BuildStepDescriptor;
@@ -25,8 +27,11 @@ import hudson.tasks.BuildStepMonitor;
 import hudson.tasks.Publisher;
 import hudson.tasks.Recorder;
 import hudson.util.ArgumentListBuilder;
+import hudson.util.FormValidation;
+import jenkins.model.Jenkins;
 import net.sf.json.JSONObject;
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
 import org.kohsuke.stapler.StaplerRequest;
 
 import java.io.File;
@@ -36,7 +41,13 @@ import java.io.StringWriter;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
 
@@ -49,16 +60,39 @@ public class PackerPublisher extends Recorder {
     private static final Logger LOGGER = Logger.getLogger(PackerPublisher.class.getName());
 
     public static final String TEMPLATE_MODE = "templateMode";
+    public static final int DEFAULT_LOG_TAIL_LINES = 200;
 
     private final String name;
     private String jsonTemplate = "";
     private String jsonTemplateText;
     private String packerHome = "";
     private String params = "";
+    private transient volatile PackerArgumentPlan paramsPlan;
     private final boolean useDebug;
+    private boolean useMachineReadable;
     private final String changeDir;
     private String templateMode = TemplateMode.GLOBAL.toMode();
     private List<PackerFileEntry> fileEntries = Collections.emptyList();
+    private List<PackerTemplateEntry> templateEntries = Collections.emptyList();
+    private int maxConcurrency;
+    private boolean cancelOnFailure;
+    private boolean distributeBuilders;
+    private String builderLabel;
+    private boolean validateTemplate;
+    private boolean inspectTemplate;
+    private boolean skipIfUnchanged;
+    private boolean fingerprintProvisionerFiles;
+    private boolean initPlugins;
+    private boolean boundedLog;
+    private int logTailLines;
+    private int timeoutMinutes;
+    private int idleTimeoutMinutes;
+    private int killGraceSeconds;
+    private int retryAttempts;
+    private int retryBackoffSeconds;
+    private String accountPool;
+    private boolean fileEntriesVarFile;
+    private int poolPriority;
 
     @DataBoundConstructor
     public PackerPublisher(String name,
@@ -104,6 +138,217 @@ public class PackerPublisher extends Recorder {
         this.fileEntries = fileEntries;
     }
 
+    public List<PackerTemplateEntry> getTemplateEntries() {
+        if (templateEntries == null) {
+            return Collections.emptyList();
+        }
+        return templateEntries;
+    }
+
+    @DataBoundSetter
+    public void setTemplateEntries(List<PackerTemplateEntry> templateEntries) {
+        this.templateEntries = templateEntries;
+    }
+
+    public int getMaxConcurrency() {
+        return maxConcurrency;
+    }
+
+    @DataBoundSetter
+    public void setMaxConcurrency(int maxConcurrency) {
+        this.maxConcurrency = maxConcurrency;
+    }
+
+    public boolean isCancelOnFailure() {
+        return cancelOnFailure;
+    }
+
+    @DataBoundSetter
+    public void setCancelOnFailure(boolean cancelOnFailure) {
+        this.cancelOnFailure = cancelOnFailure;
+    }
+
+    public boolean isDistributeBuilders() {
+        return distributeBuilders;
+    }
+
+    @DataBoundSetter
+    public void setDistributeBuilders(boolean distributeBuilders) {
+        this.distributeBuilders = distributeBuilders;
+    }
+
+    public String getBuilderLabel() {
+        return builderLabel;
+    }
+
+    @DataBoundSetter
+    public void setBuilderLabel(String builderLabel) {
+        this.builderLabel = Util.fixEmptyAndTrim(builderLabel);
+    }
+
+    public boolean isValidateTemplate() {
+        return validateTemplate;
+    }
+
+    @DataBoundSetter
+    public void setValidateTemplate(boolean validateTemplate) {
+        this.validateTemplate = validateTemplate;
+    }
+
+    public boolean isInspectTemplate() {
+        return inspectTemplate;
+    }
+
+    @DataBoundSetter
+    public void setInspectTemplate(boolean inspectTemplate) {
+        this.inspectTemplate = inspectTemplate;
+    }
+
+    public boolean isSkipIfUnchanged() {
+        return skipIfUnchanged;
+    }
+
+    @DataBoundSetter
+    public void setSkipIfUnchanged(boolean skipIfUnchanged) {
+        this.skipIfUnchanged = skipIfUnchanged;
+    }
+
+    public boolean isFingerprintProvisionerFiles() {
+        return fingerprintProvisionerFiles;
+    }
+
+    @DataBoundSetter
+    public void setFingerprintProvisionerFiles(boolean fingerprintProvisionerFiles) {
+        this.fingerprintProvisionerFiles = fingerprintProvisionerFiles;
+    }
+
+    public boolean isInitPlugins() {
+        return initPlugins;
+    }
+
+    @DataBoundSetter
+    public void setInitPlugins(boolean initPlugins) {
+        this.initPlugins = initPlugins;
+    }
+
+    public boolean isBoundedLog() {
+        return boundedLog;
+    }
+
+    @DataBoundSetter
+    public void setBoundedLog(boolean boundedLog) {
+        this.boundedLog = boundedLog;
+    }
+
+    /**
+     * @return the most recent lines of each packer process shown in the build log, with the bounded log.
+     */
+    public int getLogTailLines() {
+        return logTailLines > 0 ? logTailLines : DEFAULT_LOG_TAIL_LINES;
+    }
+
+    @DataBoundSetter
+    public void setLogTailLines(int logTailLines) {
+        this.logTailLines = logTailLines;
+    }
+
+    /**
+     * @return how long packer may run, 0 for no limit.
+     */
+    public int getTimeoutMinutes() {
+        return timeoutMinutes;
+    }
+
+    @DataBoundSetter
+    public void setTimeoutMinutes(int timeoutMinutes) {
+        this.timeoutMinutes = Math.max(timeoutMinutes, 0);
+    }
+
+    /**
+     * @return how long packer may go without any output, 0 for no limit.
+     */
+    public int getIdleTimeoutMinutes() {
+        return idleTimeoutMinutes;
+    }
+
+    @DataBoundSetter
+    public void setIdleTimeoutMinutes(int idleTimeoutMinutes) {
+        this.idleTimeoutMinutes = Math.max(idleTimeoutMinutes, 0);
+    }
+
+    /**
+     * @return how long packer gets to clean up after it is interrupted, before it is killed.
+     */
+    public int getKillGraceSeconds() {
+        return killGraceSeconds > 0 ? killGraceSeconds : PackerProcess.DEFAULT_GRACE_SECONDS;
+    }
+
+    @DataBoundSetter
+    public void setKillGraceSeconds(int killGraceSeconds) {
+        this.killGraceSeconds = killGraceSeconds;
+    }
+
+    /**
+     * @return how many times the builders that failed are run again, 0 to not retry.
+     */
+    public int getRetryAttempts() {
+        return retryAttempts;
+    }
+
+    @DataBoundSetter
+    public void setRetryAttempts(int retryAttempts) {
+        this.retryAttempts = Math.max(retryAttempts, 0);
+    }
+
+    /**
+     * @return the pause before the first retry, doubled for each one after it.
+     */
+    public int getRetryBackoffSeconds() {
+        return retryBackoffSeconds > 0 ? retryBackoffSeconds : PackerRetry.DEFAULT_BACKOFF_SECONDS;
+    }
+
+    @DataBoundSetter
+    public void setRetryBackoffSeconds(int retryBackoffSeconds) {
+        this.retryBackoffSeconds = retryBackoffSeconds;
+    }
+
+    /**
+     * @return whether the file entry variables are passed to packer in one generated var-file.
+     */
+    public boolean isFileEntriesVarFile() {
+        return fileEntriesVarFile;
+    }
+
+    @DataBoundSetter
+    public void setFileEntriesVarFile(boolean fileEntriesVarFile) {
+        this.fileEntriesVarFile = fileEntriesVarFile;
+    }
+
+    /**
+     * @return the account pool limiting the builds of this job, or null to use the pool named after the
+     *         installation, if any.
+     */
+    public String getAccountPool() {
+        return accountPool;
+    }
+
+    @DataBoundSetter
+    public void setAccountPool(String accountPool) {
+        this.accountPool = Util.fixEmptyAndTrim(accountPool);
+    }
+
+    /**
+     * @return the priority of this job's builds waiting for their account pool, higher goes first.
+     */
+    public int getPoolPriority() {
+        return poolPriority;
+    }
+
+    @DataBoundSetter
+    public void setPoolPriority(int poolPriority) {
+        this.poolPriority = poolPriority;
+    }
+
     public String getJsonTemplate() {
         return jsonTemplate;
     }
@@ -164,6 +409,18 @@ public class PackerPublisher extends Recorder {
         return params;
     }
 
+    /**
+     * The job params, tokenized once for as long as they do not change.
+     */
+    PackerArgumentPlan getParamsPlan() {
+        PackerArgumentPlan plan = paramsPlan;
+        if (plan == null || !plan.isFor(params)) {
+            plan = PackerArgumentPlan.compile(params, false);
+            paramsPlan = plan;
+        }
+        return plan;
+    }
+
     public void setParams(String params) {
         this.params = params;
     }
@@ -172,6 +429,15 @@ public class PackerPublisher extends Recorder {
         return useDebug;
     }
 
+    public boolean getUseMachineReadable() {
+        return useMachineReadable;
+    }
+
+    @DataBoundSetter
+    public void setUseMachineReadable(boolean useMachineReadable) {
+        this.useMachineReadable = useMachineReadable;
+    }
+
     public String getChangeDir() {
         return this.changeDir;
     }
@@ -195,13 +461,7 @@ public class PackerPublisher extends Recorder {
 
 
     public PackerInstallation getInstallation() {
-        for (PackerInstallation install : getDescriptor().getInstallations()) {
-            if (name != null && install.getName().equals(name)) {
-                return install;
-            }
-        }
-
-        return null;
+        return getDescriptor().getInstallation(name);
     }
 
     // in Windows packer installation has packer.exe is located in packer_home
@@ -209,32 +469,66 @@ public class PackerPublisher extends Recorder {
     public String getRemotePackerExec(AbstractBuild build, Launcher launcher,
                                       TaskListener listener) throws AbortException {
 
-        String home = getPackerHome();
-        String remoteExec = null;
-        if (Util.fixEmpty(home) == null) {
-            PackerInstallation install = getInstallation();
+        String remoteExec = getJobPackerExec(build);
+        if (remoteExec == null) {
+            PackerInstallation install = getNodeInstallation(build, listener);
             try {
-                install = install.forNode(build.getBuiltOn(), listener)
-                        .forEnvironment(build.getEnvironment(listener));
-
                 remoteExec = install.getExecutable(launcher);
             } catch (Exception ex) {
                 LOGGER.severe(convertException(ex));
                 throw new AbortException("Tool Installation Failed for: " + getName());
             }
-        } else {
-            FilePath execPath = getRemotePath(build, home);
-            if (!home.toLowerCase().endsWith(PackerInstallation.WINDOWS_PACKER_COMMAND)) {
-                execPath = new FilePath(execPath, isFilePathUnix(execPath) ?
-                        PackerInstallation.UNIX_PACKER_COMMAND  :
-                        PackerInstallation.WINDOWS_PACKER_COMMAND);
-            }
-            remoteExec = execPath.getRemote();
         }
         LOGGER.info("Using packer: " + remoteExec);
         return remoteExec;
     }
 
+    /**
+     * The packer executable within the job level packer home, no remote lookup is needed for it.
+     * @return the executable path or null if the job does not override the packer home.
+     */
+    protected String getJobPackerExec(AbstractBuild build) {
+        String home = getPackerHome();
+        if (Util.fixEmpty(home) == null) {
+            return null;
+        }
+        FilePath execPath = getRemotePath(build, home);
+        if (!home.toLowerCase().endsWith(PackerInstallation.WINDOWS_PACKER_COMMAND)) {
+            execPath = new FilePath(execPath, isFilePathUnix(execPath) ?
+                    PackerInstallation.UNIX_PACKER_COMMAND  :
+                    PackerInstallation.WINDOWS_PACKER_COMMAND);
+        }
+        return execPath.getRemote();
+    }
+
+    /**
+     * The installation translated for the node the build runs on, installing it if needed.
+     */
+    protected PackerInstallation getNodeInstallation(AbstractBuild build, TaskListener listener)
+            throws AbortException {
+        try {
+            return getNodeInstallation(new PackerBuildContext(build, listener, build.getEnvironment(listener),
+                    getInstallation()));
+        } catch (AbortException ex) {
+            throw ex;
+        } catch (Exception ex) {
+            LOGGER.severe(convertException(ex));
+            throw new AbortException("Tool Installation Failed for: " + getName());
+        }
+    }
+
+    protected PackerInstallation getNodeInstallation(PackerBuildContext context) throws AbortException {
+        PackerInstallation installation = context.getInstallation();
+        try {
+            PackerPrewarm.awaitInstalled(context.getNode(), installation.getName(), context.getListener());
+            return installation.forNode(context.getNode(), context.getListener())
+                    .forEnvironment(context.getEnv());
+        } catch (Exception ex) {
+            LOGGER.severe(convertException(ex));
+            throw new AbortException("Tool Installation Failed for: " + installation.getName());
+        }
+    }
+
     public String getRemoteTemplate(AbstractBuild build, String... remotePaths) {
         FilePath templatePath = getRemotePath(build, remotePaths);
         LOGGER.info("Using templatePath: " + templatePath);
@@ -296,77 +590,567 @@ public class PackerPublisher extends Recorder {
     @Override
     public boolean perform(AbstractBuild build, Launcher launcher,
                            BuildListener listener) {
-        ArgumentListBuilder args = new ArgumentListBuilder();
+        Execution execution = new Execution(build, launcher, listener);
         try {
-            args.add(getRemotePackerExec(build, launcher, listener)).add("build");
+            if (execution.perform()) {
+                listener.finished(Result.SUCCESS);
+                return true;
+            }
+        } catch (Exception e) {
+            LOGGER.severe(convertException(e));
+            listener.fatalError("Execution failed: " + execution.args);
+        } finally {
+            execution.cleanup();
+        }
+        listener.finished(Result.FAILURE);
+        return false;
+    }
+
+    /**
+     * A single run of the step, one method per phase: staging, the fingerprint of unchanged inputs, template
+     * validation, creating the packer processes and running them. What a phase resolves is kept for the next.
+     */
+    private final class Execution {
+        private final AbstractBuild<?, ?> build;
+        private final Launcher launcher;
+        private final BuildListener listener;
+        private final PackerTimingsAction timings = new PackerTimingsAction();
+        private final long stepStart = System.currentTimeMillis();
+        private final PackerRemoteCalls remoteCalls = new PackerRemoteCalls();
+        private String templateName = "inline";
+        private String outcome = PackerMetrics.FAILURE;
+        private ArgumentListBuilder args = new ArgumentListBuilder();
+
+        private EnvVars env;
+        private PackerInstallation installation;
+        private PackerBuildContext context;
+        private FilePath workingDir;
+        private String nodeName;
+        private PackerStaging staging;
+        private PackerStaging.Result staged;
+        private String remoteExec;
+        private String template;
+        // as the user configured it, text templates may be staged to a new file every build.
+        private String configuredTemplate;
+        private final List<String> templates = new ArrayList<>();
+        private final List<String> configuredTemplates = new ArrayList<>();
+        private ArgumentListBuilder params;
+        private ArgumentListBuilder flags;
+        private String pluginsKey;
+        private String fingerprint;
+
+        private PackerSharedCache.Lease cacheLease;
+        private PackerPluginCache pluginCache;
+        private FilePath buildDir;
+        private FilePath stagedTemplate;
+        private PackerBuilderFanout fanout;
+        private final List<PackerProcess> processes = new ArrayList<>();
+
+        Execution(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener) {
+            this.build = build;
+            this.launcher = launcher;
+            this.listener = listener;
+        }
 
-            EnvVars env = build.getEnvironment(listener);
+        /**
+         * @return whether packer succeeded, or its artifacts could be reused.
+         */
+        boolean perform() throws IOException, InterruptedException {
+            long mark = System.nanoTime();
+            env = build.getEnvironment(listener);
 
-            PackerInstallation installation = getInstallation();
+            installation = getInstallation();
+            if (installation == null) {
+                throw new AbortException("No Packer installation named: " + name);
+            }
+            context = new PackerBuildContext(build, listener, env, installation);
+            nodeName = context.getNodeName();
+            recordPoolWait();
 
-            // mask the global params.
-            for (String param : addParamsAsArgs(Util.fixNull(installation.getParams()))) {
-                String addParam = param.trim();
-                if (addParam.length() > 0) {
-                    args.add(Util.replaceMacro(addParam, env), true);
-                }
+            workingDir = workingDir(build, env);
+            LOGGER.info("using working dir: " + workingDir);
+
+            stage(mark);
+            prepareArgs();
+            if (isSkipIfUnchanged() && reuseUnchanged()) {
+                outcome = PackerMetrics.REUSED;
+                return true;
+            }
+            if (isValidateTemplate()) {
+                validate();
             }
+            createProcesses();
+            return runProcesses();
+        }
 
-            for (String param : addParamsAsArgs(getParams())) {
-                String addParam = param.trim();
-                if (addParam.length() > 0) {
-                    args.add(Util.replaceMacro(addParam, env));
+        private void recordPoolWait() {
+            PackerConcurrencyLimiter.WaitAction poolWait = build.getAction(PackerConcurrencyLimiter.WaitAction.class);
+            if (poolWait != null && poolWait.record()) {
+                if (poolWait.getWaitedMillis() >= 1000) {
+                    listener.getLogger().println("[packer] Waited " + Util.getTimeSpanString(poolWait.getWaitedMillis())
+                            + " in the queue for account pool " + poolWait.getPool());
                 }
+                timings.addPhase(PackerTimingsAction.QUEUE, poolWait.getWaitedMillis());
+                PackerMetrics.queueWaited(poolWait.getWaitedMillis());
             }
+        }
 
-            for (String val : addParamsAsArgs(createTempFileEntries(build.getWorkspace()))) {
-                args.add(val);
+        // collect everything needed on the agent so it can be staged in one remote call.
+        private void stage(long mark) throws IOException, InterruptedException {
+            FilePath cacheRoot = null;
+            if (getDescriptor().isUseStagingCache()) {
+                cacheRoot = PackerStagingCache.getCacheRoot(build.getBuiltOn(), build.getWorkspace());
             }
 
-            if (getUseDebug()) {
-                args.add("-debug");
+            staging = new PackerStaging().cacheRoot(cacheRoot).templateDir(workingDir)
+                    .varFile(isFileEntriesVarFile()).remoteCalls(remoteCalls);
+            if (cacheRoot == null) {
+                // everything generated for this build goes in one directory, removed when it is done.
+                buildDir = PackerBuildDirs.forBuild(build, build.getBuiltOn(), build.getWorkspace());
+                staging.stagingDir(buildDir);
             }
+            remoteExec = getJobPackerExec(build);
+            PackerExecutableCache.Entry cachedExec = null;
+            if (remoteExec == null) {
+                cachedExec = PackerExecutableCache.get(nodeName, installation);
+                if (cachedExec != null) {
+                    staging.expectExecutable(cachedExec);
+                } else {
+                    staging.packerHome(nodeInstallation().getHome());
+                }
+            }
+            staging.fileEntries(installation.getFileEntries());
+            // potentially replace a global, which is what we want.
+            staging.fileEntries(getFileEntries());
 
-            FilePath workingDir = workingDir(build, env);
-            LOGGER.info("using working dir: " + workingDir);
+            mark = timings.phase(PackerTimingsAction.TOOL, mark);
+
+            configureTemplate();
+
+            mark = timings.phase(PackerTimingsAction.TEMPLATE, mark);
+            if (template != null) {
+                templateName = template.substring(
+                        Math.max(template.lastIndexOf('/'), template.lastIndexOf('\\')) + 1);
+            }
+
+            try {
+                staged = staging.stage(build.getWorkspace());
+            } catch (IOException e) {
+                LOGGER.severe(convertException(e));
+                throw new AbortException("File Entry Generation Failed");
+            }
+            mark = timings.phase(PackerTimingsAction.STAGING, mark);
+            if (remoteExec == null) {
+                resolveExecutable(cachedExec);
+            }
+            timings.phase(PackerTimingsAction.TOOL, mark);
+            if (template == null) {
+                template = staged.getTemplate();
+                if (cacheRoot == null) {
+                    // a temp file, when named after its contents it is kept for later builds.
+                    stagedTemplate = new FilePath(workingDir.getChannel(), template);
+                }
+                LOGGER.info("Using temp file: " + template);
+            }
+            LOGGER.info("Using packer: " + remoteExec);
+        }
 
+        private void configureTemplate() throws AbortException {
             if (isGlobalTemplate()) {
                 LOGGER.info("Using GlobalTemplate");
                 if (installation.isFileTemplate()) {
-                    args.add(getRemoteTemplate(build, Util.replaceMacro(getChangeDir(), env),
-                                Util.replaceMacro(installation.getJsonTemplate(), env)));
+                    configuredTemplate = Util.replaceMacro(installation.getJsonTemplate(), env);
+                    template = getRemoteTemplate(build, Util.replaceMacro(getChangeDir(), env), configuredTemplate);
                 } else {
-                    args.add(createJsonTemplateTextTempFile(workingDir, installation.getJsonTemplateText()));
+                    configuredTemplate = TemplateMode.GLOBAL.toMode();
+                    staging.templateText(requireTemplateText(installation.getJsonTemplateText()));
                 }
             } else if (isTextTemplate()) {
                 LOGGER.info("Using TextTemplate");
-                args.add(createJsonTemplateTextTempFile(workingDir));
+                configuredTemplate = TemplateMode.TEXT.toMode();
+                staging.templateText(requireTemplateText(getJsonTemplateText()));
             } else if (isFileTemplate()) {
                 LOGGER.info("Using FileTemplate");
-                args.add(getRemoteTemplate(build, Util.replaceMacro(getChangeDir(), env),
-                            Util.replaceMacro(getJsonTemplate(), env)));
+                configuredTemplate = Util.replaceMacro(getJsonTemplate(), env);
+                template = getRemoteTemplate(build, Util.replaceMacro(getChangeDir(), env), configuredTemplate);
             } else { // throw
                 LOGGER.warning("Unknown Template");
                 throw new AbortException("Unknown Template / Loading Failed");
             }
+        }
+
+        private void resolveExecutable(PackerExecutableCache.Entry cachedExec)
+                throws IOException, InterruptedException {
+            PackerExecutableCache.Entry execEntry = staged.getExecutableEntry();
+            if (staged.isExecutableStale()) {
+                // changed since it was cached, resolve it again through the installation.
+                LOGGER.info("Packer executable changed on " + nodeName + ", resolving it again");
+                PackerExecutableCache.invalidate(nodeName, installation);
+                execEntry = new PackerStaging().packerHome(nodeInstallation().getHome()).remoteCalls(remoteCalls)
+                        .stage(build.getWorkspace()).getExecutableEntry();
+                cachedExec = null;
+            }
+            if (execEntry != null) {
+                remoteExec = execEntry.getExecutable();
+                if (cachedExec == null) {
+                    PackerExecutableCache.put(nodeName, installation, execEntry);
+                }
+            }
+            PackerMetrics.toolCache(PackerMetrics.EXECUTABLE_CACHE, cachedExec != null);
+        }
+
+        // the tool installation, translated for the build's node.
+        private PackerInstallation nodeInstallation() throws AbortException {
+            remoteCalls.count(workingDir);
+            return getNodeInstallation(context);
+        }
+
+        private void prepareArgs() throws IOException, InterruptedException {
+            params = createParams(installation, getParamsPlan(), env);
+
+            flags = new ArgumentListBuilder();
+            if (getUseDebug()) {
+                flags.add("-debug");
+            }
+
+            if (getUseMachineReadable()) {
+                flags.add("-machine-readable");
+            }
+
+            args = createArgs(remoteExec, params, staged.getFileEntries(), staged.getVarFile(), flags);
+
+            if (isInitPlugins()) {
+                pluginCache = new PackerPluginCache(launcher, listener, env, workingDir,
+                        PackerPluginCache.getCacheRoot(build.getBuiltOn(), build.getWorkspace()))
+                        .remoteCalls(remoteCalls);
+                pluginsKey = pluginCache.init(remoteExec, template);
+            }
 
+            templates.add(template);
+            configuredTemplates.add(configuredTemplate);
+            for (PackerTemplateEntry entry : getTemplateEntries()) {
+                String configured = Util.replaceMacro(entry.getJsonTemplate(), env);
+                templates.add(getRemoteTemplate(build, Util.replaceMacro(getChangeDir(), env), configured));
+                configuredTemplates.add(configured);
+            }
+        }
+
+        /**
+         * @return whether a previous build had the same inputs, so its artifacts are reused instead.
+         */
+        private boolean reuseUnchanged() throws IOException, InterruptedException {
+            PackerFingerprint inputs = new PackerFingerprint().stagedPaths(staged.getPaths())
+                    .addParams(params).addParams(flags)
+                    .addFileContents(staging.getFileEntries()).add(pluginsKey);
+            for (String configured : configuredTemplates) {
+                inputs.add(configured);
+            }
+            for (PackerTemplateEntry entry : getTemplateEntries()) {
+                inputs.add(entry.getLabel());
+                for (String param : entry.getParamsPlan().expand(env)) {
+                    inputs.add(param);
+                }
+            }
+            remoteCalls.count(workingDir);
+            fingerprint = inputs.compute(workingDir, remoteExec, templates, isFingerprintProvisionerFiles());
+            PackerFingerprintIndex.Entry previous = fingerprint == null ? null
+                    : PackerFingerprintIndex.lookup(build.getParent().getRootDir(), fingerprint);
+            if (previous == null) {
+                return false;
+            }
+            listener.getLogger().println("[packer] Inputs unchanged since build #" + previous.getBuildNumber()
+                    + ", reusing its artifacts instead of running packer build");
+            PackerArtifactsAction.of(build).addArtifacts(previous.getArtifacts());
+            return true;
+        }
+
+        // fail in seconds on a broken template, before any builder starts.
+        private void validate() throws IOException, InterruptedException {
+            long validateStart = System.nanoTime();
+            PackerPreflight preflight = new PackerPreflight(launcher, listener, env, workingDir, nodeName,
+                    isInspectTemplate()).remoteCalls(remoteCalls);
+            for (int i = 0; i < templates.size(); i++) {
+                if (!preflight.check(remoteExec, params, staged, staging.getFileEntries(),
+                        configuredTemplates.get(i), templates.get(i))) {
+                    throw new AbortException("Template validation failed: " + templates.get(i));
+                }
+            }
+            timings.phase(PackerTimingsAction.VALIDATE, validateStart);
+        }
+
+        // the step's own template, plus any additional templates built concurrently with it.
+        private void createProcesses() throws IOException, InterruptedException {
+            if (getDescriptor().isUseSharedCache() && !env.containsKey(PackerSharedCache.ENV)) {
+                // isos and boxes downloaded once per node, instead of once per workspace.
+                cacheLease = PackerSharedCache.acquire(
+                        PackerSharedCache.getCacheDir(build.getBuiltOn(), build.getWorkspace()), nodeName,
+                        build.getParent().getFullName() + "-" + build.getNumber());
+                env.put(PackerSharedCache.ENV, cacheLease.getDir());
+            }
+
+            // too long a command line fails to launch, its -var values go to var-files in the build's directory.
+            FilePath varsDir = buildDir != null ? buildDir
+                    : PackerBuildDirs.forBuild(build, build.getBuiltOn(), build.getWorkspace());
+            PackerVarSpill spill = new PackerVarSpill(varsDir, isFilePathUnix(workingDir));
+
+            if (isDistributeBuilders()) {
+                fanout = new PackerBuilderFanout(build, listener, env, installation, staging, workingDir);
+                fanout.remoteCalls(remoteCalls);
+                if (cacheLease != null) {
+                    fanout.useSharedCache(getDescriptor().getSharedCacheMaxSize());
+                }
+                fanout.initPlugins(isInitPlugins());
+                processes.addAll(fanout.createProcesses(getBuilderLabel(), launcher, template,
+                        remoteExec, staged, params, flags, getUseMachineReadable(), spill));
+            } else {
+                processes.add(new PackerProcess(launcher, spill.fit(args.clone().add(template)), workingDir, env,
+                        isParallel() ? "main" : null, getUseMachineReadable()));
+            }
+            for (int i = 0; i < getTemplateEntries().size(); i++) {
+                PackerTemplateEntry entry = getTemplateEntries().get(i);
+                ArgumentListBuilder entryArgs = entry.getParamsPlan().addTo(args.clone(), env);
+                entryArgs.add(templates.get(i + 1));
+                processes.add(new PackerProcess(launcher, spill.fit(entryArgs), workingDir, env,
+                        entry.getLabel(), getUseMachineReadable()));
+            }
+            if (spill.isUsed()) {
+                listener.getLogger().println("[packer] Command line too long for the node, passing its -var values"
+                        + " in var-files");
+                // removed with the build, even when the staging cache is used.
+                buildDir = varsDir;
+            }
+            args = processes.get(0).getArgs();
+            for (PackerProcess process : processes) {
+                process.timeouts(TimeUnit.MINUTES.toMillis(getTimeoutMinutes()),
+                        TimeUnit.MINUTES.toMillis(getIdleTimeoutMinutes()),
+                        TimeUnit.SECONDS.toMillis(getKillGraceSeconds())).deadline(deadline());
+            }
+            if (isBoundedLog()) {
+                // on the node of each process, entries may share a label.
+                Set<String> logNames = new HashSet<>();
+                for (PackerProcess process : processes) {
+                    String label = process.getLabel() != null ? process.getLabel() : "packer";
+                    label = label.replaceAll("[^A-Za-z0-9_.-]", "_");
+                    String logName = label;
+                    for (int n = 2; !logNames.add(logName); n++) {
+                        logName = label + "-" + n;
+                    }
+                    process.boundedLog(logsDir(build, process.getWorkingDir()).child(logName + ".log.gz"),
+                            getLogTailLines());
+                }
+            }
+        }
+
+        // the timeout counts from the start of the step, for every process and retry alike.
+        private long deadline() {
+            return getTimeoutMinutes() > 0 ? stepStart + TimeUnit.MINUTES.toMillis(getTimeoutMinutes()) : 0;
+        }
+
+        private boolean isParallel() {
+            return !getTemplateEntries().isEmpty() || isDistributeBuilders();
+        }
+
+        private boolean runProcesses() throws IOException, InterruptedException {
+            long runStart = System.nanoTime();
+            boolean success = false;
+            List<PackerProcess> retries = new ArrayList<>();
             try {
-                LOGGER.info("launch: " + args.toString());
-                if (launcher.launch().pwd(workingDir).cmds(args).envs(env).stdout(listener).join() == 0) {
-                    listener.finished(Result.SUCCESS);
-                    // parse the log to look for the image id
-                    return true;
+                if (isParallel()) {
+                    success = new PackerParallelRunner(getMaxConcurrency(), isCancelOnFailure())
+                            .run(processes, listener);
+                } else {
+                    success = processes.get(0).run(listener) == 0;
                 }
-            } catch (Exception ex) {
-                LOGGER.severe(convertException(ex));
-                listener.fatalError("Execution failed: " + args);
+                if (!success && getRetryAttempts() > 0) {
+                    success = new PackerRetry(getRetryAttempts(), TimeUnit.SECONDS.toMillis(getRetryBackoffSeconds()))
+                            .deadline(deadline()).run(processes, retries, listener);
+                }
+                if (success) {
+                    outcome = PackerMetrics.SUCCESS;
+                }
+                return success;
+            } finally {
+                // every attempt counts, the artifacts of the builders that succeeded early are kept.
+                processes.addAll(retries);
+                long launchMillis = 0;
+                for (PackerProcess process : processes) {
+                    launchMillis = Math.max(launchMillis, process.getLaunchMillis());
+                }
+                timings.addPhase(PackerTimingsAction.START, launchMillis);
+                timings.addPhase(PackerTimingsAction.RUN,
+                        Math.max(0, (System.nanoTime() - runStart) / 1000000 - launchMillis));
+                recordResults(success);
+            }
+        }
+
+        // the artifacts and errors reported by packer, whether it succeeded or not.
+        private void recordResults(boolean success) {
+            for (PackerProcess process : processes) {
+                if (process.getMachineOutput() != null) {
+                    PackerArtifactsAction.of(build).add(process.getMachineOutput());
+                    timings.add(process.getMachineOutput());
+                }
+            }
+            if (fanout != null) {
+                fanout.recordResults(PackerArtifactsAction.of(build), processes);
+            }
+            attachFullLogs(build, launcher, listener, processes, success);
+            if (success && fingerprint != null && getUseMachineReadable()) {
+                // only machine readable output reports the artifacts a later build could reuse.
+                try {
+                    PackerFingerprintIndex.record(build.getParent().getRootDir(), fingerprint, build.getNumber(),
+                            PackerArtifactsAction.of(build).getArtifacts());
+                } catch (IOException e) {
+                    LOGGER.warning("Failed to record packer fingerprint: " + e);
+                }
+            }
+        }
+
+        void cleanup() {
+            if (fanout != null) {
+                fanout.cleanup();
+            }
+            if (cacheLease != null) {
+                PackerSharedCache.release(cacheLease, getDescriptor().getSharedCacheMaxSize(), listener);
+            }
+            if (pluginCache != null) {
+                pluginCache.release();
+            }
+            if (buildDir != null) {
+                PackerBuildDirs.delete(buildDir);
+            }
+            if (stagedTemplate != null) {
+                PackerBuildDirs.delete(stagedTemplate);
+            }
+            if (workingDir != null) {
+                listener.getLogger().println("[packer] Prepared the build in " + remoteCalls.get()
+                        + " remote call(s)");
+            }
+            recordTimings(build, timings);
+            PackerMetrics.stepCompleted(templateName, outcome, System.currentTimeMillis() - stepStart);
+        }
+    }
+
+    // the full logs go to the build's directory on the node the process runs on.
+    private static FilePath logsDir(AbstractBuild build, FilePath workingDir) {
+        Computer computer = workingDir.toComputer();
+        return PackerBuildDirs.forBuild(build, computer != null ? computer.getNode() : null, workingDir)
+                .child("logs");
+    }
+
+    /**
+     * Archive the full logs of a failed build, a successful build does not need them. They are copied from the
+     * nodes once, when the build is done with them.
+     */
+    private static void attachFullLogs(AbstractBuild build, Launcher launcher, BuildListener listener,
+                                       List<PackerProcess> processes, boolean success) {
+        Map<String, String> logs = new LinkedHashMap<>();
+        Set<FilePath> logsDirs = new LinkedHashSet<>();
+        try {
+            for (PackerProcess process : processes) {
+                FilePath log = process.getFullLog();
+                if (log == null) {
+                    continue;
+                }
+                logsDirs.add(log.getParent());
+                if (!success && log.exists()) {
+                    log.copyTo(new FilePath(new File(build.getRootDir(), log.getName())));
+                    logs.put(log.getName(), log.getName());
+                }
+            }
+            if (!logs.isEmpty()) {
+                listener.getLogger().println("[packer] Archiving the full packer logs: " + logs.keySet());
+                build.pickArtifactManager().archive(new FilePath(build.getRootDir()), launcher, listener, logs);
             }
         } catch (Exception e) {
-            LOGGER.severe(convertException(e));
-            listener.fatalError("Execution failed: " + args);
+            LOGGER.warning("Failed to archive packer logs: " + e);
+        } finally {
+            for (String log : logs.keySet()) {
+                new File(build.getRootDir(), log).delete();
+            }
+            for (FilePath dir : logsDirs) {
+                PackerBuildDirs.delete(dir);
+            }
         }
-        listener.finished(Result.FAILURE);
-        return false;
+    }
+
+    private static void recordTimings(AbstractBuild build, PackerTimingsAction timings) {
+        Map<String, Long> phases = timings.getPhases();
+        if (phases.isEmpty()) {
+            return;
+        }
+        PackerTimingsAction.of(build).add(timings);
+        try {
+            PackerTimingsStore.append(build.getParent().getRootDir(), build.getNumber(), phases);
+        } catch (IOException e) {
+            LOGGER.warning("Failed to record packer timings: " + e);
+        }
+    }
+
+    /**
+     * The global params of the installation, masked, followed by the params of the job.
+     */
+    static ArgumentListBuilder createParams(PackerInstallation installation, String jobParams, EnvVars env) {
+        return createParams(installation, PackerArgumentPlan.compile(jobParams, false), env);
+    }
+
+    static ArgumentListBuilder createParams(PackerInstallation installation, PackerArgumentPlan jobParams,
+                                            EnvVars env) {
+        ArgumentListBuilder params = new ArgumentListBuilder();
+        installation.getParamsPlan().addTo(params, env);
+        jobParams.addTo(params, env);
+        return params;
+    }
+
+    /**
+     * Assemble the packer build command line, without the template.
+     */
+    static ArgumentListBuilder createArgs(String packerExec, ArgumentListBuilder params,
+                                          Map<String, String> fileEntries, ArgumentListBuilder flags) {
+        return createArgs(packerExec, params, fileEntries, null, flags);
+    }
+
+    /**
+     * @param varFile the var-file setting the file entry variables, or null to pass each of them.
+     */
+    static ArgumentListBuilder createArgs(String packerExec, ArgumentListBuilder params,
+                                          Map<String, String> fileEntries, String varFile,
+                                          ArgumentListBuilder flags) {
+        ArgumentListBuilder args = new ArgumentListBuilder();
+        args.add(packerExec).add("build");
+        addAll(args, params);
+        addFileEntries(args, fileEntries, varFile);
+        addAll(args, flags);
+        return args;
+    }
+
+    /**
+     * Set the file entry variables after the params, so they win over a <code>-var</code> of the same name.
+     */
+    static void addFileEntries(ArgumentListBuilder args, Map<String, String> fileEntries, String varFile) {
+        if (varFile != null) {
+            args.add("-var-file=" + varFile);
+            return;
+        }
+        for (Map.Entry<String, String> entry : fileEntries.entrySet()) {
+            args.add("-var").add(entry.getKey() + "=" + entry.getValue());
+        }
+    }
+
+    // keeps the masking, unlike ArgumentListBuilder.add(Iterable)
+    private static void addAll(ArgumentListBuilder args, ArgumentListBuilder toAdd) {
+        List<String> values = toAdd.toList();
+        boolean[] mask = toAdd.toMaskArray();
+        for (int i = 0; i < values.size(); i++) {
+            args.add(values.get(i), mask[i]);
+        }
+    }
+
+    static String requireTemplateText(String contents) throws AbortException {
+        if (Util.fixEmpty(contents) == null) {
+            throw new AbortException("Template Generation / Loading Failed");
+        }
+        return contents;
     }
 
 
@@ -404,13 +1188,13 @@ public class PackerPublisher extends Recorder {
             return args;
         }
 
-        char[] chars = params.toCharArray();
+        int length = params.length();
         int captureIndex = -1;
         char quoteChar = '\0';
         boolean inQuote = false;
         boolean stripQuotes = false;
-        for (int index = 0; index < chars.length; index++) {
-            char c = chars[index];
+        for (int index = 0; index < length; index++) {
+            char c = params.charAt(index);
 
             if (inQuote && c == quoteChar) { // finished
                 inQuote = false;
@@ -431,7 +1215,7 @@ public class PackerPublisher extends Recorder {
         }
         if (captureIndex > -1) {
             int start = stripQuotes ? captureIndex + 1 : captureIndex;
-            int stop = stripQuotes ? params.length() - 1 : params.length();
+            int stop = stripQuotes ? length - 1 : length;
             args.add(params.substring(start, stop));
         }
         return args;
@@ -466,15 +1250,147 @@ public class PackerPublisher extends Recorder {
         @CopyOnWrite
         private volatile PackerInstallation[] installations = new PackerInstallation[0];
 
+        // name lookup for installations, rebuilt whenever the installations change.
+        private transient volatile InstallationIndex installationIndex;
+
+        private boolean useStagingCache;
+        private boolean useDownloadCache;
+        private String downloadMirror;
+        private boolean prewarmInstallations;
+        private boolean useSharedCache;
+        private int sharedCacheMaxGigabytes = PackerSharedCache.DEFAULT_MAX_GIGABYTES;
+        private List<PackerAccountPool> accountPools = Collections.emptyList();
+
         public PackerInstallation[] getInstallations() {
             return installations;
         }
 
         public void setInstallations(PackerInstallation... installations) {
             this.installations = installations;
+            this.installationIndex = new InstallationIndex(installations);
+            PackerExecutableCache.invalidateAll();
             save();
         }
 
+        /**
+         * @return the installation with this name, or null if there is none.
+         */
+        public PackerInstallation getInstallation(String name) {
+            if (name == null) {
+                return null;
+            }
+            PackerInstallation[] current = installations;
+            InstallationIndex index = installationIndex;
+            if (index == null || index.source != current) {
+                // loaded from disk, or replaced without going through setInstallations
+                index = new InstallationIndex(current);
+                installationIndex = index;
+            }
+            return index.byName.get(name);
+        }
+
+        public boolean isUseStagingCache() {
+            return useStagingCache;
+        }
+
+        public void setUseStagingCache(boolean useStagingCache) {
+            this.useStagingCache = useStagingCache;
+        }
+
+        public boolean isUseDownloadCache() {
+            return useDownloadCache;
+        }
+
+        public void setUseDownloadCache(boolean useDownloadCache) {
+            this.useDownloadCache = useDownloadCache;
+        }
+
+        /**
+         * @return base url of a mirror of the packer downloads, or null to download from the original site.
+         */
+        public String getDownloadMirror() {
+            return downloadMirror;
+        }
+
+        public void setDownloadMirror(String downloadMirror) {
+            this.downloadMirror = Util.fixEmptyAndTrim(downloadMirror);
+        }
+
+        public boolean isPrewarmInstallations() {
+            return prewarmInstallations;
+        }
+
+        public void setPrewarmInstallations(boolean prewarmInstallations) {
+            this.prewarmInstallations = prewarmInstallations;
+        }
+
+        public boolean isUseSharedCache() {
+            return useSharedCache;
+        }
+
+        public void setUseSharedCache(boolean useSharedCache) {
+            this.useSharedCache = useSharedCache;
+        }
+
+        public int getSharedCacheMaxGigabytes() {
+            return sharedCacheMaxGigabytes;
+        }
+
+        public void setSharedCacheMaxGigabytes(int sharedCacheMaxGigabytes) {
+            this.sharedCacheMaxGigabytes = sharedCacheMaxGigabytes;
+        }
+
+        public long getSharedCacheMaxSize() {
+            int gigabytes = sharedCacheMaxGigabytes > 0 ? sharedCacheMaxGigabytes : PackerSharedCache.DEFAULT_MAX_GIGABYTES;
+            return gigabytes * 1024L * 1024 * 1024;
+        }
+
+        public List<PackerAccountPool> getAccountPools() {
+            return accountPools != null ? accountPools : Collections.<PackerAccountPool>emptyList();
+        }
+
+        public void setAccountPools(List<PackerAccountPool> accountPools) {
+            this.accountPools = new ArrayList<>(accountPools);
+        }
+
+        /**
+         * @return the account pool with this name, or null if there is none.
+         */
+        public PackerAccountPool getAccountPool(String name) {
+            if (name == null) {
+                return null;
+            }
+            for (PackerAccountPool pool : getAccountPools()) {
+                if (name.equals(pool.getName())) {
+                    return pool;
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public boolean configure(StaplerRequest req, JSONObject json) throws FormException {
+            setUseStagingCache(json.optBoolean("useStagingCache"));
+            setUseDownloadCache(json.optBoolean("useDownloadCache"));
+            setDownloadMirror(json.optString("downloadMirror", null));
+            setPrewarmInstallations(json.optBoolean("prewarmInstallations"));
+            setUseSharedCache(json.optBoolean("useSharedCache"));
+            setSharedCacheMaxGigabytes(json.optInt("sharedCacheMaxGigabytes", PackerSharedCache.DEFAULT_MAX_GIGABYTES));
+            setAccountPools(req.bindJSONToList(PackerAccountPool.class, json.opt("accountPools")));
+            save();
+            return true;
+        }
+
+        /**
+         * Forget every cached packer executable, so the next build on each node resolves it again.
+         */
+        public FormValidation doFlushExecutableCache() {
+            Jenkins.getInstance().checkPermission(Jenkins.ADMINISTER);
+            int flushed = PackerExecutableCache.size();
+            PackerExecutableCache.invalidateAll();
+            return FormValidation.ok("Flushed " + flushed + " cached packer executable(s)");
+        }
+
         public boolean isGlobalTemplateChecked(PackerPublisher instance) {
             boolean result = true;
             if (instance != null) {
@@ -503,12 +1419,34 @@ public class PackerPublisher extends Recorder {
             return true;
         }
 
+        private static final class InstallationIndex {
+            private final PackerInstallation[] source;
+            private final Map<String, PackerInstallation> byName;
+
+            InstallationIndex(PackerInstallation[] source) {
+                this.source = source;
+                Map<String, PackerInstallation> map = new HashMap<>();
+                for (PackerInstallation installation : source) {
+                    // the first one wins, same as the scan this replaces
+                    if (!map.containsKey(installation.getName())) {
+                        map.put(installation.getName(), installation);
+                    }
+                }
+                this.byName = Collections.unmodifiableMap(map);
+            }
+        }
+
         public String getDisplayName() {
             return "Packer";
         }
 
     }
 
+    @Override
+    public Action getProjectAction(AbstractProject<?, ?> project) {
+        return new PackerTimingsProjectAction(project);
+    }
+
     public BuildStepMonitor getRequiredMonitorService() {
         return BuildStepMonitor.NONE;
     }
@@ -0,0 +1,36 @@
+/**
+ * Copyright 2000-2014 NeuStar, Inc. All rights reserved.
+ * NeuStar, the Neustar logo and related names and logos are registered
+ * trademarks, service marks or tradenames of NeuStar, Inc. All other
+ * product names, company names, marks, logos and symbols may be trademarks
+ * of their respective owners.
+ */
+
+package biz.neustar.jenkins.plugins.packer;
+
+import hudson.FilePath;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The controller to agent calls a build step made, counted as they are made: each act on a path of the agent,
+ * each process launched there, and each tool installation translated for it. Paths of the controller cost
+ * nothing and are not counted.
+ */
+public final class PackerRemoteCalls {
+    private final AtomicInteger count = new AtomicInteger();
+
+    /**
+     * Count one call, if it goes to another machine.
+     * @param target the path the call acts on, or the working directory of the process it launches.
+     */
+    public void count(FilePath target) {
+        if (target != null && target.isRemote()) {
+            count.incrementAndGet();
+        }
+    }
+
+    public int get() {
+        return count.get();
+    }
+}
@@ -0,0 +1,146 @@
+/**
+ * Copyright 2000-2014 NeuStar, Inc. All rights reserved.
+ * NeuStar, the Neustar logo and related names and logos are registered
+ * trademarks, service marks or tradenames of NeuStar, Inc. All other
+ * product names, company names, marks, logos and symbols may be trademarks
+ * of their respective owners.
+ */
+
+package biz.neustar.jenkins.plugins.packer;
+
+import hudson.Util;
+import hudson.model.TaskListener;
+
+import java.io.IOException;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Runs failed packer processes again, with a growing pause in between and up to a number of attempts.
+ * Each attempt only runs the builders that failed in the previous one, through <code>-only</code>, so the
+ * images that were already built are neither built again nor lost.
+ *
+ * Only a packer that exited on its own and named the builders that failed is retried. One that was stopped on
+ * abort, cancellation or a timeout, or that never started, is not, and neither is one that failed without
+ * naming any builder, e.g. on a broken template.
+ */
+public class PackerRetry {
+    private static final Logger LOGGER = Logger.getLogger(PackerRetry.class.getName());
+
+    public static final int DEFAULT_BACKOFF_SECONDS = 30;
+
+    /** The pause between attempts doubles each time, up to this. The build keeps its executor meanwhile. */
+    static final long MAX_BACKOFF_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+    private final int attempts;
+    private final long backoffMillis;
+    private long deadline;
+
+    /**
+     * @param attempts how many times a failed process is run again.
+     * @param backoffMillis the pause before the first retry.
+     */
+    public PackerRetry(int attempts, long backoffMillis) {
+        this.attempts = attempts;
+        this.backoffMillis = backoffMillis;
+    }
+
+    /**
+     * Stop retrying once the step's timeout would run out before the next attempt starts.
+     * @param deadline in milliseconds since the epoch, 0 for none.
+     */
+    public PackerRetry deadline(long deadline) {
+        this.deadline = deadline;
+        return this;
+    }
+
+    /**
+     * Retry each of the processes that failed, one after another.
+     * @param retries receives every process run, so their artifacts and logs are kept with the first attempt's.
+     * @return whether every process succeeded in the end.
+     */
+    public boolean run(List<PackerProcess> processes, List<PackerProcess> retries, TaskListener listener)
+            throws InterruptedException {
+        boolean success = true;
+        for (PackerProcess process : processes) {
+            PackerProcess last = process;
+            Set<String> succeeded = new LinkedHashSet<>();
+            for (int attempt = 1; attempt <= attempts && isRetryable(last); attempt++) {
+                Set<String> failed = retryBuilders(last, succeeded);
+                if (failed.isEmpty()) {
+                    break;
+                }
+                long pause = backoff(attempt);
+                if (deadline > 0 && System.currentTimeMillis() + pause >= deadline) {
+                    listener.getLogger().println(prefix(process) + "Not retrying builder(s) " + Util.join(failed, ", ")
+                            + ", the step would time out first");
+                    break;
+                }
+                listener.getLogger().println(prefix(process) + "Retrying builder(s) " + Util.join(failed, ", ")
+                        + " in " + Util.getTimeSpanString(pause) + ", attempt " + attempt + " of " + attempts);
+                Thread.sleep(pause);
+
+                last = last.retry(failed, attempt);
+                retries.add(last);
+                try {
+                    last.run(listener);
+                } catch (IOException e) {
+                    LOGGER.severe(PackerPublisher.convertException(e));
+                    listener.getLogger().println(prefix(process) + "Execution failed: " + e);
+                }
+            }
+            success &= succeeded(last);
+        }
+        return success;
+    }
+
+    private static boolean succeeded(PackerProcess process) {
+        Integer exitCode = process.getExitCode();
+        return exitCode != null && exitCode == 0;
+    }
+
+    /**
+     * @return whether packer exited on its own with an error and named the builders that failed.
+     */
+    static boolean isRetryable(PackerProcess process) {
+        Integer exitCode = process.getExitCode();
+        return exitCode != null && exitCode != 0 && !process.isStopped() && !process.getFailedBuilders().isEmpty();
+    }
+
+    /**
+     * The builders to run again, those packer reported as errored.
+     * @param succeeded collects the builders that are done, which are not retried in later attempts either.
+     */
+    static Set<String> retryBuilders(PackerProcess process, Set<String> succeeded) {
+        Set<String> failed = new LinkedHashSet<>(process.getFailedBuilders());
+        MachineReadableOutputStream output = process.getMachineOutput();
+        if (output != null) {
+            Set<String> built = new LinkedHashSet<>();
+            for (PackerArtifact artifact : output.getArtifacts()) {
+                built.add(artifact.getBuilder());
+            }
+            for (String builder : output.getBuilders()) {
+                if (!failed.contains(builder) && built.contains(builder)) {
+                    succeeded.add(builder);
+                }
+            }
+        }
+        failed.removeAll(succeeded);
+        return failed;
+    }
+
+    long backoff(int attempt) {
+        long pause = backoffMillis;
+        for (int i = 1; i < attempt && pause < MAX_BACKOFF_MILLIS; i++) {
+            pause *= 2;
+        }
+        return Math.min(pause, MAX_BACKOFF_MILLIS);
+    }
+
+    private static String prefix(PackerProcess process) {
+        return "[" + (process.getLabel() != null ? process.getLabel() : "packer") + "] ";
+    }
+}
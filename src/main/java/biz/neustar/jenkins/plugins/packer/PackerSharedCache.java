@@ -0,0 +1,461 @@
+/**
+ * Copyright 2000-2014 NeuStar, Inc. All rights reserved.
+ * NeuStar, the Neustar logo and related names and logos are registered
+ * trademarks, service marks or tradenames of NeuStar, Inc. All other
+ * product names, company names, marks, logos and symbols may be trademarks
+ * of their respective owners.
+ */
+
+package biz.neustar.jenkins.plugins.packer;
+
+import hudson.FilePath;
+import hudson.model.Node;
+import hudson.model.TaskListener;
+import hudson.remoting.VirtualChannel;
+import jenkins.MasterToSlaveFileCallable;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * A <code>PACKER_CACHE_DIR</code> under the node root, shared by every packer build on that node, so the ISOs
+ * and boxes packer downloads are fetched once per node instead of once per workspace.
+ *
+ * A build holds a lease on the cache while it runs. Whenever a lease is released the least recently used
+ * entries are evicted down to the size cap, except those used since the oldest lease still held was taken, which
+ * another build may be reading. Leases and eviction are serialized by a file lock in the cache, which also covers
+ * builds of agents sharing the directory. Hits and misses are counted in the cache itself so they survive restarts.
+ */
+public final class PackerSharedCache {
+    private static final Logger LOGGER = Logger.getLogger(PackerSharedCache.class.getName());
+
+    public static final String CACHE_DIR = "packer-cache";
+    public static final String ENV = "PACKER_CACHE_DIR";
+
+    private static final String LOCK_FILE = ".lock";
+    private static final String LEASE_DIR = ".leases";
+    private static final String STATS_FILE = ".stats";
+
+    /** Default size cap of each node's cache. */
+    public static final int DEFAULT_MAX_GIGABYTES = 100;
+
+    /** Leases of builds that never released them, e.g. when the agent died, are ignored after this long. */
+    static long MAX_LEASE_AGE = Long.getLong(PackerSharedCache.class.getName() + ".maxLeaseAge", TimeUnit.DAYS.toMillis(2));
+
+    /** Entries changed this recently may still be downloading and are never evicted. */
+    static long MIN_AGE = Long.getLong(PackerSharedCache.class.getName() + ".minAge", TimeUnit.HOURS.toMillis(1));
+
+    // node name to the latest totals reported by that node's cache.
+    private static final ConcurrentMap<String, Stats> STATS = new ConcurrentHashMap<>();
+
+    // FileLock is per process, builds within one agent JVM also need to exclude each other.
+    private static final ConcurrentMap<String, Object> LOCAL_LOCKS = new ConcurrentHashMap<>();
+
+    private PackerSharedCache() {
+    }
+
+    public static FilePath getCacheDir(Node node, FilePath fallback) {
+        FilePath root = node != null ? node.getRootPath() : null;
+        if (root == null) {
+            root = fallback;
+        }
+        return root.child(CACHE_DIR);
+    }
+
+    /**
+     * @return the totals of each node's cache, as of the last build released there.
+     */
+    public static Map<String, Stats> getStats() {
+        return new HashMap<>(STATS);
+    }
+
+    public static Lease acquire(FilePath cacheDir, String nodeName, String owner) throws IOException, InterruptedException {
+        String leaseId = owner.replaceAll("[^A-Za-z0-9_.-]", "_") + "-" + UUID.randomUUID();
+        HashMap<String, Long> before = cacheDir.act(new Acquire(leaseId));
+        return new Lease(cacheDir, nodeName, leaseId, before);
+    }
+
+    /**
+     * Release the lease, evicting down to the size cap what no other build used while it held the cache.
+     * @return the totals of the cache, including what this build added.
+     */
+    public static Stats release(Lease lease, long maxSize) throws IOException, InterruptedException {
+        Stats stats = lease.cacheDir.act(new Release(lease.leaseId, lease.before, maxSize));
+        STATS.put(lease.nodeName, stats);
+        return stats;
+    }
+
+    /**
+     * Release the lease and report what the build downloaded, a failure to release only costs the eviction.
+     */
+    public static void release(Lease lease, long maxSize, TaskListener listener) {
+        try {
+            Stats stats = release(lease, maxSize);
+            listener.getLogger().println("[packer] Packer cache on " + lease.getNodeName() + ": "
+                    + stats.getBuildMisses() + " new download(s) of "
+                    + formatSize(stats.getBuildBytesDownloaded())
+                    + ", " + stats.getHits() + " hit(s) and " + stats.getMisses() + " miss(es) in total, "
+                    + formatSize(stats.getSize()) + " cached");
+        } catch (IOException e) {
+            LOGGER.warning("Failed to release packer cache on " + lease.getNodeName() + ": " + e);
+        } catch (InterruptedException e) {
+            LOGGER.warning("Interrupted releasing packer cache on " + lease.getNodeName());
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * A build's hold on a node's cache.
+     */
+    public static final class Lease {
+        private final FilePath cacheDir;
+        private final String nodeName;
+        private final String leaseId;
+        private final HashMap<String, Long> before;
+
+        Lease(FilePath cacheDir, String nodeName, String leaseId, HashMap<String, Long> before) {
+            this.cacheDir = cacheDir;
+            this.nodeName = nodeName;
+            this.leaseId = leaseId;
+            this.before = before;
+        }
+
+        public String getDir() {
+            return cacheDir.getRemote();
+        }
+
+        public String getNodeName() {
+            return nodeName;
+        }
+    }
+
+    /**
+     * Counts of a node's cache since it was created. A hit is a build that downloaded nothing into a cache
+     * that had entries, a miss is an entry a build had to download.
+     */
+    public static final class Stats implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        long hits;
+        long misses;
+        long bytesDownloaded;
+        long evictions;
+        long bytesEvicted;
+        long size;
+        // of the build that released, not persisted
+        long buildMisses;
+        long buildBytesDownloaded;
+
+        public long getHits() {
+            return hits;
+        }
+
+        public long getMisses() {
+            return misses;
+        }
+
+        public long getBytesDownloaded() {
+            return bytesDownloaded;
+        }
+
+        public long getEvictions() {
+            return evictions;
+        }
+
+        public long getBytesEvicted() {
+            return bytesEvicted;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getBuildMisses() {
+            return buildMisses;
+        }
+
+        public long getBuildBytesDownloaded() {
+            return buildBytesDownloaded;
+        }
+
+        static Stats load(File file) throws IOException {
+            Stats stats = new Stats();
+            if (!file.isFile()) {
+                return stats;
+            }
+            Properties p = new Properties();
+            InputStream in = new FileInputStream(file);
+            try {
+                p.load(in);
+            } finally {
+                in.close();
+            }
+            stats.hits = get(p, "hits");
+            stats.misses = get(p, "misses");
+            stats.bytesDownloaded = get(p, "bytesDownloaded");
+            stats.evictions = get(p, "evictions");
+            stats.bytesEvicted = get(p, "bytesEvicted");
+            return stats;
+        }
+
+        void save(File file) throws IOException {
+            Properties p = new Properties();
+            p.setProperty("hits", Long.toString(hits));
+            p.setProperty("misses", Long.toString(misses));
+            p.setProperty("bytesDownloaded", Long.toString(bytesDownloaded));
+            p.setProperty("evictions", Long.toString(evictions));
+            p.setProperty("bytesEvicted", Long.toString(bytesEvicted));
+            OutputStream out = new FileOutputStream(file);
+            try {
+                p.store(out, null);
+            } finally {
+                out.close();
+            }
+        }
+
+        private static long get(Properties p, String key) {
+            try {
+                return Long.parseLong(p.getProperty(key, "0"));
+            } catch (NumberFormatException e) {
+                return 0;
+            }
+        }
+    }
+
+    /**
+     * Runs with the cache locked against other builds, in this agent and any other process.
+     */
+    abstract static class Locked<T> extends MasterToSlaveFileCallable<T> {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public T invoke(File dir, VirtualChannel channel) throws IOException, InterruptedException {
+            if (!dir.isDirectory() && !dir.mkdirs() && !dir.isDirectory()) {
+                throw new IOException("Unable to create packer cache: " + dir);
+            }
+            String key = dir.getCanonicalPath();
+            Object localLock = LOCAL_LOCKS.get(key);
+            if (localLock == null) {
+                Object newLock = new Object();
+                localLock = LOCAL_LOCKS.putIfAbsent(key, newLock);
+                if (localLock == null) {
+                    localLock = newLock;
+                }
+            }
+            synchronized (localLock) {
+                RandomAccessFile lockFile = new RandomAccessFile(new File(dir, LOCK_FILE), "rw");
+                try {
+                    FileLock lock = lockFile.getChannel().lock();
+                    try {
+                        return locked(dir);
+                    } finally {
+                        lock.release();
+                    }
+                } finally {
+                    lockFile.close();
+                }
+            }
+        }
+
+        abstract T locked(File dir) throws IOException;
+    }
+
+    private static class Acquire extends Locked<HashMap<String, Long>> {
+        private static final long serialVersionUID = 1L;
+        private final String leaseId;
+
+        Acquire(String leaseId) {
+            this.leaseId = leaseId;
+        }
+
+        @Override
+        HashMap<String, Long> locked(File dir) throws IOException {
+            File leases = new File(dir, LEASE_DIR);
+            if (!leases.isDirectory() && !leases.mkdirs() && !leases.isDirectory()) {
+                throw new IOException("Unable to create " + leases);
+            }
+            if (!new File(leases, leaseId).createNewFile()) {
+                throw new IOException("Lease already exists: " + leaseId);
+            }
+            HashMap<String, Long> sizes = new HashMap<>();
+            for (File entry : entries(dir)) {
+                sizes.put(entry.getName(), size(entry));
+            }
+            return sizes;
+        }
+    }
+
+    private static class Release extends Locked<Stats> {
+        private static final long serialVersionUID = 1L;
+        private final String leaseId;
+        private final HashMap<String, Long> before;
+        private final long maxSize;
+
+        Release(String leaseId, HashMap<String, Long> before, long maxSize) {
+            this.leaseId = leaseId;
+            this.before = before;
+            this.maxSize = maxSize;
+        }
+
+        @Override
+        Stats locked(File dir) throws IOException {
+            new File(new File(dir, LEASE_DIR), leaseId).delete();
+
+            File statsFile = new File(dir, STATS_FILE);
+            Stats stats = Stats.load(statsFile);
+            List<File> entries = entries(dir);
+            for (File entry : entries) {
+                Long previous = before.get(entry.getName());
+                long size = size(entry);
+                if (previous == null || previous != size) {
+                    stats.buildMisses++;
+                    stats.buildBytesDownloaded += Math.max(0, size - (previous == null ? 0 : previous));
+                }
+            }
+            if (stats.buildMisses == 0 && !before.isEmpty()) {
+                stats.hits++;
+            }
+            stats.misses += stats.buildMisses;
+            stats.bytesDownloaded += stats.buildBytesDownloaded;
+
+            evict(entries, maxSize, stats, heldSince(dir));
+            for (File entry : entries(dir)) {
+                stats.size += size(entry);
+            }
+            stats.save(statsFile);
+            return stats;
+        }
+    }
+
+    /**
+     * @return when the oldest lease still held was taken, or {@link Long#MAX_VALUE} if no build holds the cache.
+     */
+    private static long heldSince(File dir) {
+        File[] leases = new File(dir, LEASE_DIR).listFiles();
+        if (leases == null) {
+            return Long.MAX_VALUE;
+        }
+        long since = Long.MAX_VALUE;
+        long stale = System.currentTimeMillis() - MAX_LEASE_AGE;
+        for (File lease : leases) {
+            if (lease.lastModified() < stale) {
+                LOGGER.info("Removing stale packer cache lease: " + lease);
+                lease.delete();
+            } else {
+                since = Math.min(since, lease.lastModified());
+            }
+        }
+        return since;
+    }
+
+    /**
+     * @param heldSince entries used since then may be read by a build holding the cache and are kept.
+     */
+    static void evict(List<File> entries, long maxSize, Stats stats, long heldSince) throws IOException {
+        final Map<File, Long> lastUsed = new HashMap<>();
+        long total = 0;
+        for (File entry : entries) {
+            lastUsed.put(entry, lastUsed(entry));
+            total += size(entry);
+        }
+        List<File> byAge = new ArrayList<>(entries);
+        Collections.sort(byAge, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                return Long.compare(lastUsed.get(a), lastUsed.get(b));
+            }
+        });
+
+        long recent = System.currentTimeMillis() - MIN_AGE;
+        for (File entry : byAge) {
+            if (total <= maxSize) {
+                break;
+            }
+            if (entry.lastModified() > recent || lastUsed.get(entry) >= heldSince || entry.getName().endsWith(".lock")) {
+                continue;
+            }
+            long size = size(entry);
+            LOGGER.info("Evicting from packer cache: " + entry);
+            if (deleteRecursive(entry)) {
+                total -= size;
+                stats.evictions++;
+                stats.bytesEvicted += size;
+            }
+        }
+    }
+
+    // packer's own entries, without the lock, leases and stats kept here.
+    static List<File> entries(File dir) {
+        List<File> entries = new ArrayList<>();
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (!file.getName().startsWith(".")) {
+                    entries.add(file);
+                }
+            }
+        }
+        return entries;
+    }
+
+    static long size(File entry) {
+        if (!entry.isDirectory()) {
+            return entry.length();
+        }
+        long size = 0;
+        File[] files = entry.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                size += size(file);
+            }
+        }
+        return size;
+    }
+
+    // reading an ISO does not change its mtime, the access time is the best hint where the filesystem keeps it.
+    private static long lastUsed(File entry) throws IOException {
+        BasicFileAttributes attrs = Files.readAttributes(entry.toPath(), BasicFileAttributes.class);
+        return Math.max(attrs.lastAccessTime().toMillis(), attrs.lastModifiedTime().toMillis());
+    }
+
+    static String formatSize(long bytes) {
+        if (bytes < 1024 * 1024) {
+            return (bytes / 1024) + " KB";
+        }
+        if (bytes < 1024L * 1024 * 1024) {
+            return (bytes / (1024 * 1024)) + " MB";
+        }
+        return String.format("%.1f GB", bytes / (1024.0 * 1024 * 1024));
+    }
+
+    private static boolean deleteRecursive(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursive(child);
+            }
+        }
+        return file.delete();
+    }
+}
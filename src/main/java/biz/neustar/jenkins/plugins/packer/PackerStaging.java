@@ -0,0 +1,414 @@
+/**
+ * Copyright 2000-2014 NeuStar, Inc. All rights reserved.
+ * NeuStar, the Neustar logo and related names and logos are registered
+ * trademarks, service marks or tradenames of NeuStar, Inc. All other
+ * product names, company names, marks, logos and symbols may be trademarks
+ * of their respective owners.
+ */
+
+package biz.neustar.jenkins.plugins.packer;
+
+import hudson.FilePath;
+import hudson.remoting.VirtualChannel;
+import jenkins.MasterToSlaveFileCallable;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Serializable;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
+
+/**
+ * Everything a build needs on the agent before packer can start: the executable lookup,
+ * the file entries and the template text. All of it is shipped in a single remote call. With a cache root,
+ * only the SHA-256 of the contents is shipped at first, and a second call ships the contents the agent did not
+ * have cached.
+ */
+public class PackerStaging implements Serializable {
+    private static final long serialVersionUID = 1L;
+    private static final Logger LOGGER = Logger.getLogger(PackerStaging.class.getName());
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private String packerHome;
+    private String expectedExecutable;
+    private long expectedSize;
+    private long expectedLastModified;
+    private String templateText;
+    private String cacheDir;
+    private String stagingDir;
+    private String templateDir;
+    private boolean varFile;
+    private final LinkedHashMap<String, String> fileEntries = new LinkedHashMap<>();
+    // the SHA-256 of each file entry and of the template text, whose contents are only shipped when missing.
+    private LinkedHashMap<String, String> fileHashes;
+    private String templateHash;
+    private transient PackerRemoteCalls remoteCalls;
+
+    /**
+     * Resolve the packer executable within this home on the agent.
+     */
+    public PackerStaging packerHome(String packerHome) {
+        this.packerHome = packerHome;
+        return this;
+    }
+
+    /**
+     * Use a previously resolved executable, provided it is unchanged on the agent.
+     */
+    public PackerStaging expectExecutable(PackerExecutableCache.Entry entry) {
+        this.expectedExecutable = entry.getExecutable();
+        this.expectedSize = entry.getSize();
+        this.expectedLastModified = entry.getLastModified();
+        return this;
+    }
+
+    public PackerStaging templateText(String templateText) {
+        this.templateText = templateText;
+        return this;
+    }
+
+    /**
+     * Stage into this {@link PackerStagingCache} directory instead of creating new temp files.
+     */
+    public PackerStaging cacheRoot(FilePath cacheRoot) {
+        this.cacheDir = cacheRoot != null ? cacheRoot.getRemote() : null;
+        return this;
+    }
+
+    /**
+     * Stage new files into this directory of the build instead of the temp dir, so they can be removed with it.
+     */
+    public PackerStaging stagingDir(FilePath stagingDir) {
+        this.stagingDir = stagingDir != null ? stagingDir.getRemote() : null;
+        return this;
+    }
+
+    /**
+     * Write the template text into this directory, usually the working directory, so paths relative to
+     * <code>{{template_dir}}</code> resolve as they would for a template file there. With a cache root it is
+     * named after the SHA-256 of the text and reused by later builds, otherwise the caller removes it.
+     */
+    public PackerStaging templateDir(FilePath templateDir) {
+        this.templateDir = templateDir != null ? templateDir.getRemote() : null;
+        return this;
+    }
+
+    /**
+     * Also write one JSON var-file that sets each file entry variable to the staged path, to pass to packer
+     * instead of a <code>-var</code> per entry.
+     */
+    public PackerStaging varFile(boolean varFile) {
+        this.varFile = varFile;
+        return this;
+    }
+
+    public boolean isVarFile() {
+        return varFile;
+    }
+
+    /**
+     * Later entries with the same variable name replace earlier ones, so job entries override global ones.
+     */
+    public PackerStaging fileEntries(Iterable<PackerFileEntry> entries) {
+        for (PackerFileEntry entry : entries) {
+            fileEntries.put(entry.getVarFileName(), entry.getContents());
+        }
+        return this;
+    }
+
+    /**
+     * @param entries variable name to contents.
+     */
+    public PackerStaging fileEntries(Map<String, String> entries) {
+        fileEntries.putAll(entries);
+        return this;
+    }
+
+    /**
+     * @return variable name to contents of every file entry.
+     */
+    public Map<String, String> getFileEntries() {
+        return Collections.unmodifiableMap(fileEntries);
+    }
+
+    public String getTemplateText() {
+        return templateText;
+    }
+
+    /**
+     * @return the size of the template text and file entries sent along to the agent.
+     */
+    long getContentBytes() {
+        long bytes = templateText != null ? templateText.getBytes(UTF8).length : 0;
+        for (String contents : fileEntries.values()) {
+            if (contents != null) {
+                bytes += contents.getBytes(UTF8).length;
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Count the calls to the agent in those of the build.
+     */
+    public PackerStaging remoteCalls(PackerRemoteCalls remoteCalls) {
+        this.remoteCalls = remoteCalls;
+        return this;
+    }
+
+    /**
+     * Stage everything in one call to the agent of the workspace, or two with a cache root when some
+     * contents are not cached there yet.
+     */
+    public Result stage(FilePath workspace) throws IOException, InterruptedException {
+        if (cacheDir == null) {
+            return stage(workspace, this);
+        }
+        Result result = stage(workspace, withContents(Collections.<String>emptySet()));
+        if (!result.missing.isEmpty()) {
+            result = stage(workspace, withContents(result.missing));
+        }
+        return result;
+    }
+
+    private Result stage(FilePath workspace, PackerStaging staging) throws IOException, InterruptedException {
+        if (remoteCalls != null) {
+            remoteCalls.count(workspace);
+        }
+        PackerMetrics.staged(staging.getContentBytes());
+        return workspace.act(new Stage(staging));
+    }
+
+    /**
+     * @param hashes the SHA-256 of the contents to ship, the others are only named by it.
+     */
+    private PackerStaging withContents(Set<String> hashes) {
+        PackerStaging staging = new PackerStaging();
+        staging.packerHome = packerHome;
+        staging.expectedExecutable = expectedExecutable;
+        staging.expectedSize = expectedSize;
+        staging.expectedLastModified = expectedLastModified;
+        staging.cacheDir = cacheDir;
+        staging.stagingDir = stagingDir;
+        staging.templateDir = templateDir;
+        staging.varFile = varFile;
+        staging.fileHashes = new LinkedHashMap<>();
+        for (Map.Entry<String, String> entry : fileEntries.entrySet()) {
+            String contents = entry.getValue() != null ? entry.getValue() : "";
+            String hash = PackerStagingCache.sha256(contents);
+            staging.fileHashes.put(entry.getKey(), hash);
+            staging.fileEntries.put(entry.getKey(), hashes.contains(hash) ? contents : null);
+        }
+        if (templateText != null) {
+            staging.templateHash = PackerStagingCache.sha256(templateText);
+            staging.templateText = hashes.contains(staging.templateHash) ? templateText : null;
+        }
+        return staging;
+    }
+
+    Result stageLocal() throws IOException {
+        Result result = new Result();
+        if (expectedExecutable != null) {
+            File exe = new File(expectedExecutable);
+            if (exe.isFile() && exe.length() == expectedSize && exe.lastModified() == expectedLastModified) {
+                result.executable = exe.getPath();
+                result.executableEntry = new PackerExecutableCache.Entry(result.executable, expectedSize, expectedLastModified);
+            } else {
+                result.executableStale = true;
+            }
+        } else if (packerHome != null) {
+            File exe = PackerInstallation.getExeFile(packerHome);
+            if (exe.exists()) {
+                result.executable = exe.getPath();
+                result.executableEntry = new PackerExecutableCache.Entry(result.executable, exe.length(), exe.lastModified());
+            }
+        }
+
+        for (Map.Entry<String, String> entry : fileEntries.entrySet()) {
+            // should be at least 1 character otherwise that shouldnt be allowed.
+            String prefix = "packer-plugin-" + entry.getKey();
+            String hash = fileHashes != null ? fileHashes.get(entry.getKey()) : null;
+            result.fileEntries.put(entry.getKey(), write(prefix, ".tmp", entry.getValue(), hash, result));
+        }
+
+        if (templateText != null || templateHash != null) {
+            if (templateDir == null) {
+                result.template = write("packer", ".json", templateText, templateHash, result);
+            } else if (cacheDir != null) {
+                String hash = templateHash != null ? templateHash : PackerStagingCache.sha256(templateText);
+                result.template = PackerStagingCache.writeOnce(new File(templateDir),
+                        "packer-" + hash + ".json", templateText);
+                if (result.template == null) {
+                    result.missing.add(hash);
+                }
+            } else {
+                result.template = writeTemp(new File(templateDir), "packer", ".json", templateText);
+            }
+        }
+
+        // its paths are only known once every entry is staged.
+        if (varFile && !result.fileEntries.isEmpty() && result.missing.isEmpty()) {
+            result.varFile = write("packer-plugin-vars", ".json", toJson(result.fileEntries), null, result);
+        }
+        return result;
+    }
+
+    /**
+     * @return the variables as a JSON object, in the order given.
+     */
+    static String toJson(Map<String, String> vars) {
+        StringBuilder json = new StringBuilder("{");
+        for (Map.Entry<String, String> entry : vars.entrySet()) {
+            json.append(json.length() > 1 ? ",\n  " : "\n  ");
+            quote(json, entry.getKey()).append(": ");
+            quote(json, entry.getValue());
+        }
+        return json.append("\n}\n").toString();
+    }
+
+    private static StringBuilder quote(StringBuilder json, String value) {
+        json.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                json.append('\\').append(c);
+            } else if (c < 0x20) {
+                json.append(String.format("\\u%04x", (int) c));
+            } else {
+                json.append(c);
+            }
+        }
+        return json.append('"');
+    }
+
+    /**
+     * @param hash the SHA-256 of the contents, which are null if they were not shipped.
+     */
+    private String write(String prefix, String suffix, String contents, String hash, Result result)
+            throws IOException {
+        if (cacheDir != null) {
+            if (hash == null) {
+                contents = contents != null ? contents : "";
+                hash = PackerStagingCache.sha256(contents);
+            }
+            String path = PackerStagingCache.stageLocal(new File(cacheDir), prefix + "-" + hash + suffix, contents);
+            if (path == null) {
+                result.missing.add(hash);
+            }
+            return path;
+        }
+
+        return writeTemp(new File(stagingDir != null ? stagingDir : System.getProperty("java.io.tmpdir")),
+                prefix, suffix, contents != null ? contents : "");
+    }
+
+    private static String writeTemp(File dir, String prefix, String suffix, String text) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs() && !dir.isDirectory()) {
+            throw new IOException("Unable to create staging dir: " + dir);
+        }
+        File file = File.createTempFile(prefix, suffix, dir);
+        Writer w = new FileWriter(file);
+        try {
+            w.write(text);
+        } finally {
+            w.close();
+        }
+        LOGGER.fine("Staged temp file: " + file);
+        return file.getAbsolutePath();
+    }
+
+    /**
+     * Paths of everything staged on the agent.
+     */
+    public static class Result implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private String executable;
+        private PackerExecutableCache.Entry executableEntry;
+        private boolean executableStale;
+        private String template;
+        private String varFile;
+        private final LinkedHashMap<String, String> fileEntries = new LinkedHashMap<>();
+        // the SHA-256 of the contents not shipped and not cached on the agent.
+        private final Set<String> missing = new HashSet<>();
+
+        /**
+         * @return the resolved packer executable, or null if it does not exist or was not requested.
+         */
+        public String getExecutable() {
+            return executable;
+        }
+
+        /**
+         * @return the executable along with its size and modification time, or null if it was not found.
+         */
+        public PackerExecutableCache.Entry getExecutableEntry() {
+            return executableEntry;
+        }
+
+        /**
+         * @return whether the expected executable was missing or changed on the agent.
+         */
+        public boolean isExecutableStale() {
+            return executableStale;
+        }
+
+        /**
+         * @return the staged template text, or null if there was no template text.
+         */
+        public String getTemplate() {
+            return template;
+        }
+
+        /**
+         * @return variable name to staged path of every file entry.
+         */
+        public Map<String, String> getFileEntries() {
+            return Collections.unmodifiableMap(fileEntries);
+        }
+
+        /**
+         * @return the var-file setting every file entry variable, or null if the entries are passed one by one.
+         */
+        public String getVarFile() {
+            return varFile;
+        }
+
+        /**
+         * @return every path staged for the build, which may differ from one build to the next.
+         */
+        public List<String> getPaths() {
+            List<String> paths = new ArrayList<>(fileEntries.values());
+            if (template != null) {
+                paths.add(template);
+            }
+            if (varFile != null) {
+                paths.add(varFile);
+            }
+            return paths;
+        }
+    }
+
+    private static class Stage extends MasterToSlaveFileCallable<Result> {
+        private static final long serialVersionUID = 1L;
+        private final PackerStaging staging;
+
+        Stage(PackerStaging staging) {
+            this.staging = staging;
+        }
+
+        @Override
+        public Result invoke(File workspace, VirtualChannel channel) throws IOException, InterruptedException {
+            return staging.stageLocal();
+        }
+    }
+}
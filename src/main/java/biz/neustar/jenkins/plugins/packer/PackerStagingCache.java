@@ -0,0 +1,152 @@
+/**
+ * Copyright 2000-2014 NeuStar, Inc. All rights reserved.
+ * NeuStar, the Neustar logo and related names and logos are registered
+ * trademarks, service marks or tradenames of NeuStar, Inc. All other
+ * product names, company names, marks, logos and symbols may be trademarks
+ * of their respective owners.
+ */
+
+package biz.neustar.jenkins.plugins.packer;
+
+import hudson.FilePath;
+import hudson.model.Node;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Content-addressed cache for the templates and file entries staged on a node.
+ * Each file is named after the SHA-256 of its contents, so unchanged content is
+ * reused by later builds instead of being written again.
+ */
+public final class PackerStagingCache {
+    private static final Logger LOGGER = Logger.getLogger(PackerStagingCache.class.getName());
+
+    public static final String CACHE_DIR = "packer-staging";
+
+    /** Upper bound of the cache directory before the least recently used files are evicted. */
+    static long MAX_SIZE = Long.getLong(PackerStagingCache.class.getName() + ".maxSize", 64L * 1024 * 1024);
+
+    /** Files not used for this long are evicted regardless of the cache size. */
+    static long MAX_AGE = Long.getLong(PackerStagingCache.class.getName() + ".maxAge", TimeUnit.DAYS.toMillis(7));
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private PackerStagingCache() {
+    }
+
+    /**
+     * The cache lives under the node root so it is shared by every workspace on that node,
+     * falling back to the given path when the node is unavailable.
+     */
+    public static FilePath getCacheRoot(Node node, FilePath fallback) {
+        FilePath root = node != null ? node.getRootPath() : null;
+        if (root == null) {
+            root = fallback;
+        }
+        return root.child(CACHE_DIR);
+    }
+
+    public static String sha256(String contents) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] hash = digest.digest(contents.getBytes(UTF8));
+            StringBuilder hex = new StringBuilder(hash.length * 2);
+            for (byte b : hash) {
+                hex.append(Character.forDigit((b >> 4) & 0xf, 16));
+                hex.append(Character.forDigit(b & 0xf, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not supported", e);
+        }
+    }
+
+    /**
+     * @param contents null to only reuse a file staged before.
+     * @return the path of the staged file, or null if there were no contents and nothing to reuse.
+     */
+    static String stageLocal(File dir, String fileName, String contents) throws IOException {
+        File target = new File(dir, fileName);
+        // refresh the timestamp so eviction treats it as recently used, unless it was evicted meanwhile.
+        if (target.isFile() && target.setLastModified(System.currentTimeMillis())) {
+            return target.getPath();
+        }
+        if (contents == null) {
+            return null;
+        }
+        writeOnce(dir, fileName, contents);
+        evict(dir, target);
+        return target.getPath();
+    }
+
+    /**
+     * Write the contents under a name derived from them, unless the file is there already. Nothing else in
+     * the directory is touched, so it may be a workspace.
+     * @param contents null to only reuse a file written before.
+     * @return the path of the file, or null if there were no contents and nothing to reuse.
+     */
+    static String writeOnce(File dir, String fileName, String contents) throws IOException {
+        File target = new File(dir, fileName);
+        if (target.isFile()) {
+            return target.getPath();
+        }
+        if (contents == null) {
+            return null;
+        }
+
+        if (!dir.isDirectory() && !dir.mkdirs() && !dir.isDirectory()) {
+            throw new IOException("Unable to create staging cache: " + dir);
+        }
+        File temp = File.createTempFile(fileName, ".partial", dir);
+        OutputStream out = new FileOutputStream(temp);
+        try {
+            out.write(contents.getBytes(UTF8));
+        } finally {
+            out.close();
+        }
+        // another build may have staged the same contents concurrently, either copy is fine.
+        if (!temp.renameTo(target) && !target.isFile()) {
+            temp.delete();
+            throw new IOException("Unable to stage file: " + target);
+        }
+        temp.delete();
+        return target.getPath();
+    }
+
+    static void evict(File dir, File keep) {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                long diff = b.lastModified() - a.lastModified();
+                return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+            }
+        });
+
+        long expired = System.currentTimeMillis() - MAX_AGE;
+        long size = keep.length();
+        for (File file : files) {
+            if (!file.isFile() || file.equals(keep) || file.getName().endsWith(".partial")) {
+                continue;
+            }
+            size += file.length();
+            if (file.lastModified() < expired || size > MAX_SIZE) {
+                LOGGER.fine("Evicting staged file: " + file);
+                file.delete();
+            }
+        }
+    }
+}
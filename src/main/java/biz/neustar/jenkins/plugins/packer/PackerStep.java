@@ -0,0 +1,137 @@
+/**
+ * Copyright 2000-2014 NeuStar, Inc. All rights reserved.
+ * NeuStar, the Neustar logo and related names and logos are registered
+ * trademarks, service marks or tradenames of NeuStar, Inc. All other
+ * product names, company names, marks, logos and symbols may be trademarks
+ * of their respective owners.
+ */
+
+package biz.neustar.jenkins.plugins.packer;
+
+import hudson.Extension;
+import hudson.Util;
+import hudson.util.ListBoxModel;
+import jenkins.model.Jenkins;
+import org.jenkinsci.plugins.workflow.steps.AbstractStepDescriptorImpl;
+import org.jenkinsci.plugins.workflow.steps.AbstractStepImpl;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Pipeline step running <code>packer build</code> as a durable task: packer keeps running on the agent
+ * while the controller only polls its output, and the step picks it up again after a controller restart.
+ *
+ * <pre>
+ * node('packer') {
+ *     packer name: 'packer-1.0', template: 'ami.json', params: '-var region=us-east-1'
+ * }
+ * </pre>
+ */
+public class PackerStep extends AbstractStepImpl {
+
+    private final String name;
+    private String template;
+    private String templateText;
+    private String params;
+    private boolean useDebug;
+    private String changeDir;
+    private List<PackerFileEntry> fileEntries = Collections.emptyList();
+
+    @DataBoundConstructor
+    public PackerStep(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getTemplate() {
+        return template;
+    }
+
+    /**
+     * Template file, relative to the workspace or absolute. Uses the installation's template when neither
+     * this nor the template text is set.
+     */
+    @DataBoundSetter
+    public void setTemplate(String template) {
+        this.template = Util.fixEmpty(template);
+    }
+
+    public String getTemplateText() {
+        return templateText;
+    }
+
+    @DataBoundSetter
+    public void setTemplateText(String templateText) {
+        this.templateText = Util.fixEmpty(templateText);
+    }
+
+    public String getParams() {
+        return params;
+    }
+
+    @DataBoundSetter
+    public void setParams(String params) {
+        this.params = params;
+    }
+
+    public boolean getUseDebug() {
+        return useDebug;
+    }
+
+    @DataBoundSetter
+    public void setUseDebug(boolean useDebug) {
+        this.useDebug = useDebug;
+    }
+
+    public String getChangeDir() {
+        return changeDir;
+    }
+
+    @DataBoundSetter
+    public void setChangeDir(String changeDir) {
+        this.changeDir = Util.fixEmpty(changeDir);
+    }
+
+    public List<PackerFileEntry> getFileEntries() {
+        return fileEntries;
+    }
+
+    @DataBoundSetter
+    public void setFileEntries(List<PackerFileEntry> fileEntries) {
+        this.fileEntries = fileEntries != null ? new ArrayList<>(fileEntries) : Collections.<PackerFileEntry>emptyList();
+    }
+
+    @Extension(optional = true)
+    public static final class DescriptorImpl extends AbstractStepDescriptorImpl {
+
+        public DescriptorImpl() {
+            super(PackerStepExecution.class);
+        }
+
+        @Override
+        public String getFunctionName() {
+            return "packer";
+        }
+
+        @Override
+        public String getDisplayName() {
+            return "Run packer build";
+        }
+
+        public ListBoxModel doFillNameItems() {
+            ListBoxModel items = new ListBoxModel();
+            for (PackerInstallation installation : Jenkins.getInstance()
+                    .getDescriptorByType(PackerPublisher.DescriptorImpl.class).getInstallations()) {
+                items.add(installation.getName());
+            }
+            return items;
+        }
+    }
+}
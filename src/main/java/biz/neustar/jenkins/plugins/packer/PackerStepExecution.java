@@ -0,0 +1,360 @@
+/**
+ * Copyright 2000-2014 NeuStar, Inc. All rights reserved.
+ * NeuStar, the Neustar logo and related names and logos are registered
+ * trademarks, service marks or tradenames of NeuStar, Inc. All other
+ * product names, company names, marks, logos and symbols may be trademarks
+ * of their respective owners.
+ */
+
+package biz.neustar.jenkins.plugins.packer;
+
+import com.google.inject.Inject;
+import hudson.AbortException;
+import hudson.EnvVars;
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.Util;
+import hudson.model.Computer;
+import hudson.model.Node;
+import hudson.model.TaskListener;
+import hudson.remoting.VirtualChannel;
+import hudson.util.ArgumentListBuilder;
+import jenkins.model.Jenkins;
+import jenkins.util.Timer;
+import org.jenkinsci.plugins.durabletask.BourneShellScript;
+import org.jenkinsci.plugins.durabletask.Controller;
+import org.jenkinsci.plugins.durabletask.DurableTask;
+import org.jenkinsci.plugins.durabletask.WindowsBatchScript;
+import org.jenkinsci.plugins.workflow.steps.AbstractStepExecutionImpl;
+import org.jenkinsci.plugins.workflow.steps.StepContext;
+import org.jenkinsci.plugins.workflow.steps.StepContextParameter;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Stages the build the same way {@link PackerPublisher} does, then hands packer to a durable task on the
+ * agent. No thread waits for it: the output is copied to the build log by a short check scheduled on
+ * {@link Timer}, which backs off while packer is quiet and starts over after a controller restart.
+ *
+ * Stopping the step interrupts packer first, so its builders can tear down what they created, and only stops
+ * the task if packer is still running after a grace period or the step is stopped again.
+ */
+public class PackerStepExecution extends AbstractStepExecutionImpl {
+    private static final long serialVersionUID = 1L;
+    private static final Logger LOGGER = Logger.getLogger(PackerStepExecution.class.getName());
+
+    static final long MIN_RECURRENCE_PERIOD = 250; // ms
+    static final long MAX_RECURRENCE_PERIOD = 15000; // ms
+
+    /** Prefix of the variables passing masked args to the script, which is written to disk on the agent. */
+    static final String SECRET_ENV = "PACKER_PLUGIN_ARG_";
+
+    @Inject(optional = true)
+    private transient PackerStep step;
+    @StepContextParameter
+    private transient FilePath workspace;
+    @StepContextParameter
+    private transient Launcher launcher;
+    @StepContextParameter
+    private transient TaskListener listener;
+    @StepContextParameter
+    private transient EnvVars env;
+    @StepContextParameter
+    private transient Computer computer;
+
+    private Controller controller;
+    private String nodeName;
+    private String remote;
+    private final List<String> stagedFiles = new ArrayList<>();
+    private final String cookie = UUID.randomUUID().toString();
+    private String executable;
+    private long recurrencePeriod = MIN_RECURRENCE_PERIOD;
+    private volatile boolean done;
+    // set once packer was interrupted, the step fails with it when packer exits.
+    private volatile Throwable stopCause;
+
+    public PackerStepExecution() {
+    }
+
+    // resuming a task launched before a restart
+    PackerStepExecution(StepContext context, Controller controller, String nodeName, String remote) {
+        super(context);
+        this.controller = controller;
+        this.nodeName = nodeName;
+        this.remote = remote;
+    }
+
+    @Override
+    public boolean start() throws Exception {
+        PackerInstallation installation = Jenkins.getInstance()
+                .getDescriptorByType(PackerPublisher.DescriptorImpl.class).getInstallation(step.getName());
+        if (installation == null) {
+            throw new AbortException("No Packer installation named: " + step.getName());
+        }
+        Node node = computer.getNode();
+        if (node == null) {
+            throw new AbortException(computer.getDisplayName() + " is offline");
+        }
+
+        FilePath workingDir = workspace;
+        if (step.getChangeDir() != null) {
+            workingDir = new FilePath(workspace, Util.replaceMacro(step.getChangeDir(), env));
+        }
+
+        PackerPrewarm.awaitInstalled(node, installation.getName(), listener);
+        PackerInstallation nodeInstallation;
+        try {
+            nodeInstallation = installation.forNode(node, listener).forEnvironment(env);
+        } catch (Exception ex) {
+            LOGGER.severe(PackerPublisher.convertException(ex));
+            throw new AbortException("Tool Installation Failed for: " + installation.getName());
+        }
+
+        FilePath cacheRoot = null;
+        if (Jenkins.getInstance().getDescriptorByType(PackerPublisher.DescriptorImpl.class).isUseStagingCache()) {
+            cacheRoot = PackerStagingCache.getCacheRoot(node, workspace);
+        }
+        PackerStaging staging = new PackerStaging()
+                .cacheRoot(cacheRoot)
+                .templateDir(workingDir)
+                .packerHome(nodeInstallation.getHome())
+                .fileEntries(installation.getFileEntries())
+                .fileEntries(step.getFileEntries());
+
+        String template = null;
+        if (step.getTemplateText() != null) {
+            staging.templateText(step.getTemplateText());
+        } else if (step.getTemplate() != null) {
+            template = new FilePath(workspace, Util.replaceMacro(step.getTemplate(), env)).getRemote();
+        } else if (installation.isFileTemplate()) {
+            template = new FilePath(workspace, Util.replaceMacro(installation.getJsonTemplate(), env)).getRemote();
+        } else {
+            staging.templateText(PackerPublisher.requireTemplateText(installation.getJsonTemplateText()));
+        }
+
+        PackerStaging.Result staged = staging.stage(workspace);
+        if (staged.getExecutable() == null) {
+            throw new AbortException("Tool Installation Failed for: " + installation.getName());
+        }
+        if (cacheRoot == null) {
+            // the cache keeps its own files, anything else is removed once packer is done.
+            stagedFiles.addAll(staged.getFileEntries().values());
+        }
+        if (staged.getTemplate() != null) {
+            // next to the working directory, never in the cache.
+            stagedFiles.add(staged.getTemplate());
+        }
+        if (template == null) {
+            template = staged.getTemplate();
+        }
+
+        ArgumentListBuilder flags = new ArgumentListBuilder();
+        if (step.getUseDebug()) {
+            flags.add("-debug");
+        }
+        ArgumentListBuilder args = PackerPublisher.createArgs(staged.getExecutable(),
+                PackerPublisher.createParams(installation, step.getParams(), env), staged.getFileEntries(), flags);
+        args.add(template);
+
+        boolean unix = launcher.isUnix();
+        DurableTask task = unix
+                ? new BourneShellScript(toScript(args.toList(), args.toMaskArray(), true))
+                : new WindowsBatchScript(toScript(args.toList(), args.toMaskArray(), false));
+        listener.getLogger().println("[packer] Running packer build " + template);
+        EnvVars taskEnv = new EnvVars(env);
+        taskEnv.putAll(secrets(args.toList(), args.toMaskArray()));
+        taskEnv.put(PackerProcess.COOKIE, cookie);
+        executable = staged.getExecutable();
+        controller = task.launch(taskEnv, workingDir, launcher, listener);
+        nodeName = node.getNodeName();
+        remote = workingDir.getRemote();
+        schedule();
+        return false;
+    }
+
+    @Override
+    public void stop(final Throwable cause) throws Exception {
+        FilePath dir = getWorkingDir();
+        if (stopCause == null && controller != null && dir != null
+                && PackerProcess.interrupt(dir, cookie, executable)) {
+            stopCause = cause;
+            final long graceMillis = TimeUnit.SECONDS.toMillis(PackerProcess.DEFAULT_GRACE_SECONDS);
+            getContext().get(TaskListener.class).getLogger().println("[packer] Aborted, interrupting packer so it "
+                    + "can clean up; it is killed if still running in " + Util.getTimeSpanString(graceMillis));
+            Timer.get().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    kill(cause);
+                }
+            }, graceMillis, TimeUnit.MILLISECONDS);
+            return;
+        }
+        kill(cause);
+    }
+
+    // stops the task right away, unless packer already exited.
+    private void kill(Throwable cause) {
+        if (!finishing()) {
+            return;
+        }
+        FilePath dir = getWorkingDir();
+        if (controller != null && dir != null) {
+            try {
+                controller.stop(dir, getContext().get(Launcher.class));
+            } catch (Exception e) {
+                LOGGER.warning("Failed to stop packer on " + nodeName + ": " + e);
+            }
+            finish(dir);
+        }
+        getContext().onFailure(cause);
+    }
+
+    // only once, packer exiting and the step being stopped may race.
+    private synchronized boolean finishing() {
+        if (done) {
+            return false;
+        }
+        done = true;
+        return true;
+    }
+
+    @Override
+    public void onResume() {
+        super.onResume();
+        recurrencePeriod = MIN_RECURRENCE_PERIOD;
+        schedule();
+    }
+
+    private void schedule() {
+        if (done) {
+            return;
+        }
+        Timer.get().schedule(new Runnable() {
+            @Override
+            public void run() {
+                check();
+            }
+        }, recurrencePeriod, TimeUnit.MILLISECONDS);
+    }
+
+    private void check() {
+        if (done) {
+            return;
+        }
+        try {
+            FilePath dir = getWorkingDir();
+            if (dir == null) {
+                LOGGER.fine("Waiting for " + nodeName + " to come back online");
+                recurrencePeriod = MAX_RECURRENCE_PERIOD;
+                schedule();
+                return;
+            }
+            TaskListener taskListener = getContext().get(TaskListener.class);
+            if (controller.writeLog(dir, taskListener.getLogger())) {
+                recurrencePeriod = MIN_RECURRENCE_PERIOD;
+            } else {
+                recurrencePeriod = Math.min(recurrencePeriod * 2, MAX_RECURRENCE_PERIOD);
+            }
+
+            Integer exitCode = controller.exitStatus(dir, getContext().get(Launcher.class));
+            if (exitCode == null) {
+                schedule();
+                return;
+            }
+            if (!finishing()) {
+                return;
+            }
+            controller.writeLog(dir, taskListener.getLogger());
+            finish(dir);
+            if (stopCause != null) {
+                getContext().onFailure(stopCause);
+            } else if (exitCode == 0) {
+                getContext().onSuccess(null);
+            } else {
+                getContext().onFailure(new AbortException("packer build failed with exit code " + exitCode));
+            }
+        } catch (IOException e) {
+            // most likely the agent went away, packer is still running there.
+            LOGGER.warning("Failed to check packer on " + nodeName + ": " + e);
+            recurrencePeriod = MAX_RECURRENCE_PERIOD;
+            schedule();
+        } catch (Exception e) {
+            done = true;
+            getContext().onFailure(e);
+        }
+    }
+
+    private void finish(FilePath dir) {
+        try {
+            controller.cleanup(dir);
+        } catch (Exception e) {
+            LOGGER.warning("Failed to clean up packer task in " + dir + ": " + e);
+        }
+        for (String file : stagedFiles) {
+            try {
+                new FilePath(dir.getChannel(), file).delete();
+            } catch (Exception e) {
+                LOGGER.warning("Failed to remove " + file + ": " + e);
+            }
+        }
+    }
+
+    /**
+     * @return the directory packer runs in, or null while its node is offline.
+     */
+    private FilePath getWorkingDir() {
+        Jenkins jenkins = Jenkins.getInstance();
+        Computer c = nodeName == null || nodeName.isEmpty() ? jenkins.toComputer() : jenkins.getComputer(nodeName);
+        VirtualChannel channel = c != null ? c.getChannel() : null;
+        if (channel == null) {
+            return null;
+        }
+        return new FilePath(channel, remote);
+    }
+
+    /**
+     * The command line as a script, quoted so that the shell or cmd passes every argument through unchanged.
+     * Masked args are never written to the script, it takes them from the variables of {@link #secrets}.
+     * On Windows such an arg must not contain a double quote.
+     */
+    static String toScript(List<String> args, boolean[] mask, boolean unix) {
+        StringBuilder script = new StringBuilder();
+        // durable scripts run with tracing on, which would echo masked params into the log.
+        script.append(unix ? "set +x\n" : "@echo off\r\n");
+        for (int i = 0; i < args.size(); i++) {
+            if (i > 0) {
+                script.append(' ');
+            }
+            String arg = args.get(i);
+            if (mask[i]) {
+                script.append(unix ? "\"$" + SECRET_ENV + i + "\"" : "\"%" + SECRET_ENV + i + "%\"");
+            } else if (unix) {
+                script.append('\'').append(arg.replace("'", "'\\''")).append('\'');
+            } else {
+                script.append('"').append(arg.replace("%", "%%").replace("\"", "\"\"")).append('"');
+            }
+        }
+        script.append(unix ? "\n" : "\r\n");
+        return script.toString();
+    }
+
+    /**
+     * @return the environment of the script for the masked args it refers to.
+     */
+    static Map<String, String> secrets(List<String> args, boolean[] mask) {
+        Map<String, String> secrets = new HashMap<>();
+        for (int i = 0; i < args.size(); i++) {
+            if (mask[i]) {
+                secrets.put(SECRET_ENV + i, args.get(i));
+            }
+        }
+        return secrets;
+    }
+}
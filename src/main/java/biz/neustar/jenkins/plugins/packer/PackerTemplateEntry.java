@@ -0,0 +1,87 @@
+/**
+ * Copyright 2000-2014 NeuStar, Inc. All rights reserved.
+ * NeuStar, the Neustar logo and related names and logos are registered
+ * trademarks, service marks or tradenames of NeuStar, Inc. All other
+ * product names, company names, marks, logos and symbols may be trademarks
+ * of their respective owners.
+ */
+
+package biz.neustar.jenkins.plugins.packer;
+
+import hudson.Extension;
+import hudson.Util;
+import hudson.model.AbstractDescribableImpl;
+import hudson.model.Descriptor;
+import java.io.Serializable;
+import org.kohsuke.stapler.DataBoundConstructor;
+
+/**
+ * An additional template built by the same step, concurrently with the step's own template.
+ */
+public class PackerTemplateEntry extends AbstractDescribableImpl<PackerTemplateEntry> implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+    private String name;
+    private String jsonTemplate;
+    private String params;
+    private transient volatile PackerArgumentPlan paramsPlan;
+
+    @DataBoundConstructor
+    public PackerTemplateEntry(String name, String jsonTemplate, String params) {
+        this.name = name;
+        this.jsonTemplate = jsonTemplate;
+        this.params = params;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    public String getJsonTemplate() {
+        return jsonTemplate;
+    }
+
+    public void setJsonTemplate(String jsonTemplate) {
+        this.jsonTemplate = jsonTemplate;
+    }
+
+    public String getParams() {
+        return params;
+    }
+
+    public void setParams(String params) {
+        this.params = params;
+    }
+
+    PackerArgumentPlan getParamsPlan() {
+        PackerArgumentPlan plan = paramsPlan;
+        if (plan == null || !plan.isFor(params)) {
+            plan = PackerArgumentPlan.compile(params, false);
+            paramsPlan = plan;
+        }
+        return plan;
+    }
+
+    /**
+     * The name used to prefix this template's output, defaults to the template file.
+     */
+    public String getLabel() {
+        if (Util.fixEmpty(name) != null) {
+            return name;
+        }
+        String template = Util.fixNull(jsonTemplate);
+        return template.substring(Math.max(template.lastIndexOf('/'), template.lastIndexOf('\\')) + 1);
+    }
+
+    @Extension
+    public static class DescriptorImpl extends Descriptor<PackerTemplateEntry> {
+        @Override
+        public String getDisplayName() {
+            return "";
+        }
+    }
+}
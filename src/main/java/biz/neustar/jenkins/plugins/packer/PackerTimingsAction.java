@@ -0,0 +1,151 @@
+/**
+ * Copyright 2000-2014 NeuStar, Inc. All rights reserved.
+ * NeuStar, the Neustar logo and related names and logos are registered
+ * trademarks, service marks or tradenames of NeuStar, Inc. All other
+ * product names, company names, marks, logos and symbols may be trademarks
+ * of their respective owners.
+ */
+
+package biz.neustar.jenkins.plugins.packer;
+
+import hudson.model.AbstractBuild;
+import hudson.model.Action;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Where the time of a build's packer steps went: each phase of the step and, with machine-readable
+ * output, each builder and provisioner.
+ */
+public class PackerTimingsAction implements Action {
+
+    /** Waiting in the queue for a slot in the account pool. */
+    public static final String QUEUE = "queue";
+    /** Resolving the installation and the packer executable. */
+    public static final String TOOL = "tool";
+    /** Locating the template or reading its text. */
+    public static final String TEMPLATE = "template";
+    /** Writing the file entries and template text to the agent. */
+    public static final String STAGING = "staging";
+    /** Running packer validate before the build. */
+    public static final String VALIDATE = "validate";
+    /** Starting the packer processes. */
+    public static final String START = "start";
+    /** Packer itself, until every process exited. */
+    public static final String RUN = "run";
+
+    public static final List<String> PHASES = Collections.unmodifiableList(
+            Arrays.asList(QUEUE, TOOL, TEMPLATE, STAGING, VALIDATE, START, RUN));
+
+    private final Map<String, Long> phases = new LinkedHashMap<>();
+    private final Map<String, Long> builders = new LinkedHashMap<>();
+    private final Map<String, Long> provisioners = new LinkedHashMap<>();
+
+    /**
+     * The action of the build, added to it if it has none yet.
+     */
+    public static PackerTimingsAction of(AbstractBuild<?, ?> build) {
+        synchronized (build) {
+            PackerTimingsAction action = build.getAction(PackerTimingsAction.class);
+            if (action == null) {
+                action = new PackerTimingsAction();
+                build.addAction(action);
+            }
+            return action;
+        }
+    }
+
+    /**
+     * Add the time since <code>startNanos</code> to a phase.
+     * @return now, to start timing the next phase from.
+     */
+    public long phase(String phase, long startNanos) {
+        long now = System.nanoTime();
+        addPhase(phase, (now - startNanos) / 1000000);
+        return now;
+    }
+
+    /**
+     * Several packer steps of a build add up.
+     */
+    public synchronized void addPhase(String phase, long millis) {
+        add(phases, phase, millis);
+    }
+
+    public synchronized void add(MachineReadableOutputStream output) {
+        for (Map.Entry<String, Long> entry : output.getBuilderDurations().entrySet()) {
+            add(builders, entry.getKey(), entry.getValue());
+        }
+        for (Map.Entry<String, Long> entry : output.getProvisionerDurations().entrySet()) {
+            add(provisioners, entry.getKey(), entry.getValue());
+        }
+    }
+
+    public synchronized void add(PackerTimingsAction other) {
+        for (Map.Entry<String, Long> entry : other.getPhases().entrySet()) {
+            add(phases, entry.getKey(), entry.getValue());
+        }
+        for (Map.Entry<String, Long> entry : other.getBuilders().entrySet()) {
+            add(builders, entry.getKey(), entry.getValue());
+        }
+        for (Map.Entry<String, Long> entry : other.getProvisioners().entrySet()) {
+            add(provisioners, entry.getKey(), entry.getValue());
+        }
+    }
+
+    private static void add(Map<String, Long> timings, String key, long millis) {
+        Long total = timings.get(key);
+        timings.put(key, total == null ? millis : total + millis);
+    }
+
+    /**
+     * @return phase to milliseconds, in the order the phases ran.
+     */
+    public synchronized Map<String, Long> getPhases() {
+        return new LinkedHashMap<>(phases);
+    }
+
+    public synchronized Map<String, Long> getBuilders() {
+        return new LinkedHashMap<>(builders);
+    }
+
+    public synchronized Map<String, Long> getProvisioners() {
+        return new LinkedHashMap<>(provisioners);
+    }
+
+    public synchronized List<Map.Entry<String, Long>> getPhaseEntries() {
+        return new ArrayList<>(phases.entrySet());
+    }
+
+    public synchronized List<Map.Entry<String, Long>> getBuilderEntries() {
+        return new ArrayList<>(builders.entrySet());
+    }
+
+    public synchronized List<Map.Entry<String, Long>> getProvisionerEntries() {
+        return new ArrayList<>(provisioners.entrySet());
+    }
+
+    public static String formatMillis(long millis) {
+        if (millis < 1000) {
+            return millis + " ms";
+        }
+        return String.format("%.1f s", millis / 1000.0);
+    }
+
+    public String getIconFileName() {
+        return null;
+    }
+
+    public String getDisplayName() {
+        return "Packer Timings";
+    }
+
+    public String getUrlName() {
+        return null;
+    }
+}
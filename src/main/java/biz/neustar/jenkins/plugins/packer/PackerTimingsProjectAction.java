@@ -0,0 +1,87 @@
+/**
+ * Copyright 2000-2014 NeuStar, Inc. All rights reserved.
+ * NeuStar, the Neustar logo and related names and logos are registered
+ * trademarks, service marks or tradenames of NeuStar, Inc. All other
+ * product names, company names, marks, logos and symbols may be trademarks
+ * of their respective owners.
+ */
+
+package biz.neustar.jenkins.plugins.packer;
+
+import hudson.model.AbstractProject;
+import hudson.model.Action;
+import hudson.util.ChartUtil;
+import hudson.util.Graph;
+import org.jfree.chart.ChartFactory;
+import org.jfree.chart.JFreeChart;
+import org.jfree.chart.plot.PlotOrientation;
+import org.jfree.data.category.DefaultCategoryDataset;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Calendar;
+import java.util.Map;
+
+/**
+ * The trend of a job's packer phase timings, drawn from {@link PackerTimingsStore}.
+ */
+public class PackerTimingsProjectAction implements Action {
+
+    static final int TREND_BUILDS = 50;
+
+    private final AbstractProject<?, ?> project;
+
+    public PackerTimingsProjectAction(AbstractProject<?, ?> project) {
+        this.project = project;
+    }
+
+    public AbstractProject<?, ?> getProject() {
+        return project;
+    }
+
+    public boolean isTrendVisible() {
+        return new File(project.getRootDir(), PackerTimingsStore.FILE_NAME).isFile();
+    }
+
+    public void doTrend(StaplerRequest req, StaplerResponse rsp) throws IOException {
+        if (ChartUtil.awtProblemCause != null) {
+            rsp.sendRedirect2(req.getContextPath() + "/images/headless.png");
+            return;
+        }
+
+        File file = new File(project.getRootDir(), PackerTimingsStore.FILE_NAME);
+        final DefaultCategoryDataset dataset = new DefaultCategoryDataset();
+        for (Map.Entry<Integer, Map<String, Long>> build
+                : PackerTimingsStore.load(project.getRootDir(), TREND_BUILDS).entrySet()) {
+            String label = "#" + build.getKey();
+            for (String phase : PackerTimingsAction.PHASES) {
+                Long millis = build.getValue().get(phase);
+                dataset.addValue(millis == null ? 0 : millis / 1000.0, phase, label);
+            }
+        }
+
+        Calendar timestamp = Calendar.getInstance();
+        timestamp.setTimeInMillis(file.lastModified());
+        new Graph(timestamp, 500, 200) {
+            @Override
+            protected JFreeChart createGraph() {
+                return ChartFactory.createStackedAreaChart(null, null, "seconds", dataset,
+                        PlotOrientation.VERTICAL, true, true, false);
+            }
+        }.doPng(req, rsp);
+    }
+
+    public String getIconFileName() {
+        return null;
+    }
+
+    public String getDisplayName() {
+        return "Packer Timings";
+    }
+
+    public String getUrlName() {
+        return "packerTimings";
+    }
+}
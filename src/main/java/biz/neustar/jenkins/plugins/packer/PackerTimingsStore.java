@@ -0,0 +1,149 @@
+/**
+ * Copyright 2000-2014 NeuStar, Inc. All rights reserved.
+ * NeuStar, the Neustar logo and related names and logos are registered
+ * trademarks, service marks or tradenames of NeuStar, Inc. All other
+ * product names, company names, marks, logos and symbols may be trademarks
+ * of their respective owners.
+ */
+
+package biz.neustar.jenkins.plugins.packer;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.logging.Logger;
+
+/**
+ * The phase timings of a job's builds, one line per build in a small file next to the builds, so the
+ * trend can be drawn without loading any build:
+ * <pre>
+ * 42 tool=12 template=0 staging=85 start=40 run=2712000
+ * </pre>
+ */
+public final class PackerTimingsStore {
+    private static final Logger LOGGER = Logger.getLogger(PackerTimingsStore.class.getName());
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    public static final String FILE_NAME = "packer-timings.txt";
+
+    /** Builds kept when the file is compacted. */
+    static final int MAX_BUILDS = Integer.getInteger(PackerTimingsStore.class.getName() + ".maxBuilds", 200);
+    // compact once the file is about twice what MAX_BUILDS needs.
+    private static final long COMPACT_SIZE = MAX_BUILDS * 2 * 80L;
+
+    private PackerTimingsStore() {
+    }
+
+    public static synchronized void append(File jobDir, int buildNumber, Map<String, Long> phases) throws IOException {
+        File file = new File(jobDir, FILE_NAME);
+        StringBuilder line = new StringBuilder().append(buildNumber);
+        for (Map.Entry<String, Long> phase : phases.entrySet()) {
+            line.append(' ').append(phase.getKey()).append('=').append(phase.getValue());
+        }
+        line.append('\n');
+
+        Writer w = new OutputStreamWriter(new FileOutputStream(file, true), UTF8);
+        try {
+            w.write(line.toString());
+        } finally {
+            w.close();
+        }
+
+        if (file.length() > COMPACT_SIZE) {
+            compact(file);
+        }
+    }
+
+    /**
+     * @return build number to phase timings of the most recent builds, oldest first.
+     */
+    public static synchronized TreeMap<Integer, Map<String, Long>> load(File jobDir, int maxBuilds) throws IOException {
+        TreeMap<Integer, Map<String, Long>> builds = new TreeMap<>();
+        File file = new File(jobDir, FILE_NAME);
+        if (!file.isFile()) {
+            return builds;
+        }
+
+        BufferedReader r = new BufferedReader(new InputStreamReader(new FileInputStream(file), UTF8));
+        try {
+            String line;
+            while ((line = r.readLine()) != null) {
+                parse(line, builds);
+            }
+        } finally {
+            r.close();
+        }
+        while (builds.size() > maxBuilds) {
+            builds.pollFirstEntry();
+        }
+        return builds;
+    }
+
+    static void parse(String line, Map<Integer, Map<String, Long>> builds) {
+        String[] fields = line.trim().split(" ");
+        int number;
+        try {
+            number = Integer.parseInt(fields[0]);
+        } catch (NumberFormatException e) {
+            return;
+        }
+        Map<String, Long> phases = builds.get(number);
+        if (phases == null) {
+            phases = new LinkedHashMap<>();
+            builds.put(number, phases);
+        }
+        for (int i = 1; i < fields.length; i++) {
+            int eq = fields[i].indexOf('=');
+            if (eq <= 0) {
+                continue;
+            }
+            try {
+                long millis = Long.parseLong(fields[i].substring(eq + 1));
+                String phase = fields[i].substring(0, eq);
+                // several packer steps in one build add up.
+                Long total = phases.get(phase);
+                phases.put(phase, total == null ? millis : total + millis);
+            } catch (NumberFormatException e) {
+                // skip it
+            }
+        }
+    }
+
+    private static void compact(File file) throws IOException {
+        List<String> lines = new ArrayList<>();
+        BufferedReader r = new BufferedReader(new InputStreamReader(new FileInputStream(file), UTF8));
+        try {
+            String line;
+            while ((line = r.readLine()) != null) {
+                lines.add(line);
+            }
+        } finally {
+            r.close();
+        }
+
+        File tmp = new File(file.getPath() + ".tmp");
+        Writer w = new OutputStreamWriter(new FileOutputStream(tmp), UTF8);
+        try {
+            for (String line : lines.subList(Math.max(0, lines.size() - MAX_BUILDS), lines.size())) {
+                w.write(line);
+                w.write('\n');
+            }
+        } finally {
+            w.close();
+        }
+        if (!tmp.renameTo(file) && !(file.delete() && tmp.renameTo(file))) {
+            LOGGER.warning("Failed to compact " + file);
+        }
+    }
+}
@@ -0,0 +1,198 @@
+/**
+ * Copyright 2000-2014 NeuStar, Inc. All rights reserved.
+ * NeuStar, the Neustar logo and related names and logos are registered
+ * trademarks, service marks or tradenames of NeuStar, Inc. All other
+ * product names, company names, marks, logos and symbols may be trademarks
+ * of their respective owners.
+ */
+
+package biz.neustar.jenkins.plugins.packer;
+
+import hudson.FilePath;
+import hudson.util.ArgumentListBuilder;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Moves the <code>-var</code> pairs of a packer command line into generated var-files when the command line
+ * would be too long for the OS to launch, e.g. with hundreds of params on Windows.
+ *
+ * Packer applies <code>-var</code> and <code>-var-file</code> in the order given, so the pairs between two
+ * <code>-var-file</code> args go into one var-file in their place. Values that were masked are no longer on the
+ * command line at all, only the path of their var-file is.
+ *
+ * Var-file values are written as JSON strings, which packer converts to the number or bool an HCL2 variable
+ * is declared as. A list, map or object value cannot be converted from a string, so such a value stays on the
+ * command line, where packer parses it by the variable's type.
+ */
+public class PackerVarSpill {
+
+    /** CreateProcess allows 32767 characters, but cmd.exe only 8191 and packer may be launched through it. */
+    static int WINDOWS_LIMIT = Integer.getInteger(PackerVarSpill.class.getName() + ".windowsLimit", 8000);
+
+    /** Well under the usual ARG_MAX, and the 128KB Linux allows a single argument. */
+    static int UNIX_LIMIT = Integer.getInteger(PackerVarSpill.class.getName() + ".unixLimit", 128 * 1024);
+
+    private final FilePath dir;
+    private final boolean unix;
+    private boolean used;
+
+    /**
+     * @param dir where to write the var-files, removed with the build.
+     * @param unix whether packer runs on a Unix node, rather than Windows.
+     */
+    public PackerVarSpill(FilePath dir, boolean unix) {
+        this.dir = dir;
+        this.unix = unix;
+    }
+
+    /**
+     * @return whether any command line was too long, so var-files were written.
+     */
+    public boolean isUsed() {
+        return used;
+    }
+
+    /**
+     * @return the length of the command line as launched, counting the quotes Windows needs.
+     */
+    static int length(ArgumentListBuilder args, boolean unix) {
+        int length = 0;
+        for (String arg : args.toList()) {
+            length += arg.length() + (unix ? 1 : 3);
+        }
+        return length;
+    }
+
+    static boolean exceeds(ArgumentListBuilder args, boolean unix) {
+        return length(args, unix) > (unix ? UNIX_LIMIT : WINDOWS_LIMIT);
+    }
+
+    /**
+     * @return the args unchanged if they fit, otherwise the args with the <code>-var</code> pairs moved to
+     *         var-files.
+     */
+    public ArgumentListBuilder fit(ArgumentListBuilder args) throws IOException, InterruptedException {
+        if (!exceeds(args, unix)) {
+            return args;
+        }
+        used = true;
+        List<String> values = args.toList();
+        boolean[] mask = args.toMaskArray();
+        List<Map<String, String>> runs = runs(values);
+        List<Set<String>> kept = new ArrayList<>();
+        for (Map<String, String> run : runs) {
+            Set<String> names = new HashSet<>();
+            for (Iterator<Map.Entry<String, String>> it = run.entrySet().iterator(); it.hasNext(); ) {
+                Map.Entry<String, String> var = it.next();
+                if (isStructured(var.getValue())) {
+                    names.add(var.getKey());
+                    it.remove();
+                }
+            }
+            kept.add(names);
+        }
+        List<String> varFiles = new ArrayList<>();
+        for (Map<String, String> run : runs) {
+            if (run.isEmpty()) {
+                varFiles.add(null);
+            } else {
+                dir.mkdirs();
+                varFiles.add(dir.createTextTempFile("packer-plugin-vars", ".json", PackerStaging.toJson(run), true)
+                        .getRemote());
+            }
+        }
+
+        ArgumentListBuilder spilled = new ArgumentListBuilder();
+        int run = 0;
+        boolean placed = false;
+        for (int i = 0; i < values.size(); i++) {
+            String value = values.get(i);
+            if (isVarFile(value, i + 1 < values.size())) {
+                run++;
+                placed = false;
+            }
+            int pair = varPair(values, i);
+            if (pair > 0 && kept.get(run).contains(var(values, i, pair)[0])) {
+                // every pair of the name, in order, so the same one wins.
+                for (int j = i; j < i + pair; j++) {
+                    spilled.add(values.get(j), mask[j]);
+                }
+                i += pair - 1;
+                continue;
+            }
+            if (pair > 0) {
+                if (!placed && varFiles.get(run) != null) {
+                    spilled.add("-var-file=" + varFiles.get(run));
+                    placed = true;
+                }
+                i += pair - 1;
+                continue;
+            }
+            spilled.add(value, mask[i]);
+        }
+        return spilled;
+    }
+
+    /**
+     * @return the <code>-var</code> pairs between each <code>-var-file</code>, later values of a name winning.
+     */
+    static List<Map<String, String>> runs(List<String> values) {
+        List<Map<String, String>> runs = new ArrayList<>();
+        Map<String, String> run = new LinkedHashMap<>();
+        runs.add(run);
+        for (int i = 0; i < values.size(); i++) {
+            if (isVarFile(values.get(i), i + 1 < values.size())) {
+                run = new LinkedHashMap<>();
+                runs.add(run);
+            }
+            int pair = varPair(values, i);
+            if (pair > 0) {
+                String[] var = var(values, i, pair);
+                run.put(var[0], var[1]);
+                i += pair - 1;
+            }
+        }
+        return runs;
+    }
+
+    /**
+     * @return the name and value of the <code>-var</code> pair at <code>i</code>.
+     */
+    private static String[] var(List<String> values, int i, int pair) {
+        String var = pair == 2 ? values.get(i + 1) : values.get(i).substring("-var=".length());
+        int eq = var.indexOf('=');
+        // same as packer, "name" without a value sets it to empty.
+        return new String[] {eq >= 0 ? var.substring(0, eq) : var, eq >= 0 ? var.substring(eq + 1) : ""};
+    }
+
+    /**
+     * @return whether the value is an HCL2 list, map or object, which a var-file string would not be.
+     */
+    static boolean isStructured(String value) {
+        String trimmed = value.trim();
+        return trimmed.startsWith("[") || trimmed.startsWith("{");
+    }
+
+    private static boolean isVarFile(String value, boolean hasNext) {
+        return value.startsWith("-var-file=") || (value.equals("-var-file") && hasNext);
+    }
+
+    /**
+     * @return the number of args of the <code>-var</code> pair at <code>i</code>, 0 if there is none.
+     */
+    private static int varPair(List<String> values, int i) {
+        String value = values.get(i);
+        if (value.equals("-var") && i + 1 < values.size()) {
+            return 2;
+        }
+        return value.startsWith("-var=") ? 1 : 0;
+    }
+}
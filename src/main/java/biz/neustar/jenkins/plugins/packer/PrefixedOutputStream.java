@@ -0,0 +1,60 @@
+/**
+ * Copyright 2000-2014 NeuStar, Inc. All rights reserved.
+ * NeuStar, the Neustar logo and related names and logos are registered
+ * trademarks, service marks or tradenames of NeuStar, Inc. All other
+ * product names, company names, marks, logos and symbols may be trademarks
+ * of their respective owners.
+ */
+
+package biz.neustar.jenkins.plugins.packer;
+
+import hudson.console.LineTransformationOutputStream;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+
+/**
+ * Prefixes every line, so the output of concurrent packer processes can share one build log.
+ * Each line is written in a single call, which keeps lines from different processes whole.
+ */
+public class PrefixedOutputStream extends LineTransformationOutputStream {
+    private final OutputStream out;
+    private final byte[] prefix;
+    private byte[] line;
+
+    public PrefixedOutputStream(OutputStream out, String prefix) {
+        this.out = out;
+        this.prefix = prefix.getBytes(Charset.forName("UTF-8"));
+        this.line = new byte[this.prefix.length + 256];
+        System.arraycopy(this.prefix, 0, line, 0, this.prefix.length);
+    }
+
+    // the prefix stays at the start of the buffer, only the line after it is rewritten.
+    private byte[] ensureCapacity(int size) {
+        if (line.length < size) {
+            byte[] grown = new byte[Math.max(size, line.length * 2)];
+            System.arraycopy(prefix, 0, grown, 0, prefix.length);
+            line = grown;
+        }
+        return line;
+    }
+
+    @Override
+    protected void eol(byte[] b, int len) throws IOException {
+        byte[] buf = ensureCapacity(prefix.length + len);
+        System.arraycopy(b, 0, buf, prefix.length, len);
+        out.write(buf, 0, prefix.length + len);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        super.close();
+        out.flush();
+    }
+}
@@ -0,0 +1,82 @@
+package biz.neustar.jenkins.plugins.packer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStreamReader;
+import java.io.LineNumberReader;
+import java.util.zip.GZIPInputStream;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class BoundedLogOutputStreamTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void showsErrorsAndTheTailOnly() throws Exception {
+        ByteArrayOutputStream console = new ByteArrayOutputStream();
+        File file = tmp.newFile("packer.log.gz");
+        BoundedLogOutputStream out = new BoundedLogOutputStream(console, file, 3);
+        out.write("==> amazon-ebs: Launching a source AWS instance...\n".getBytes("UTF-8"));
+        for (int i = 0; i < 1000; i++) {
+            out.write(("2017/01/01 00:00:00 packer: debug line " + i + "\n").getBytes("UTF-8"));
+        }
+        out.write("Build 'amazon-ebs' errored: Script exited with non-zero exit status: 1\n".getBytes("UTF-8"));
+        out.write("last line\n".getBytes("UTF-8"));
+        out.close();
+
+        String shown = console.toString("UTF-8");
+        assertTrue(shown.contains("==> amazon-ebs: Launching"));
+        assertTrue(shown.contains("errored"));
+        assertTrue(shown.contains("debug line 999"));
+        assertTrue(shown.contains("last line"));
+        assertFalse(shown.contains("debug line 998"));
+        assertTrue(shown.contains("1003 lines of output"));
+
+        LineNumberReader r = new LineNumberReader(new InputStreamReader(
+                new GZIPInputStream(new FileInputStream(file)), "UTF-8"));
+        try {
+            while (r.readLine() != null) {
+                // count them
+            }
+            assertEquals(1003, r.getLineNumber());
+        } finally {
+            r.close();
+        }
+    }
+
+    @Test
+    public void keepsTheTailInOrderWithLongLinesCut() throws Exception {
+        ByteArrayOutputStream console = new ByteArrayOutputStream();
+        BoundedLogOutputStream out = new BoundedLogOutputStream(console, tmp.newFile("packer.log.gz"), 2);
+        StringBuilder longLine = new StringBuilder();
+        for (int i = 0; i < BoundedLogOutputStream.MAX_LINE * 2; i++) {
+            longLine.append('x');
+        }
+        out.write("first\n".getBytes("UTF-8"));
+        out.write((longLine + "\n").getBytes("UTF-8"));
+        out.write("third\n".getBytes("UTF-8"));
+        out.close();
+
+        String shown = console.toString("UTF-8");
+        assertFalse(shown.contains("first"));
+        String[] lines = shown.split("\n");
+        assertEquals("third", lines[lines.length - 1]);
+        assertEquals(BoundedLogOutputStream.MAX_LINE - 1, lines[lines.length - 2].length());
+    }
+
+    @Test
+    public void matchesIgnoringCase() throws Exception {
+        byte[] line = "Step FAILED\n".getBytes("UTF-8");
+        assertTrue(BoundedLogOutputStream.matches(line, line.length));
+        line = "all good\n".getBytes("UTF-8");
+        assertFalse(BoundedLogOutputStream.matches(line, line.length));
+    }
+}
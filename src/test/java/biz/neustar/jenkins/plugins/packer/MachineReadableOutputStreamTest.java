@@ -0,0 +1,91 @@
+package biz.neustar.jenkins.plugins.packer;
+
+import hudson.EnvVars;
+import java.io.ByteArrayOutputStream;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class MachineReadableOutputStreamTest {
+
+    private static final String OUTPUT =
+            "1506456750,,ui,say,==> amazon-ebs: Prevalidating AMI Name...\n" +
+            "1506456751,amazon-ebs,ui,message,    amazon-ebs: Found Image ID: ami-fce3c696\n" +
+            "1506456752,googlecompute,ui,error,Build 'googlecompute' errored: quota exceeded%!(PACKER_COMMA) retry later\n" +
+            "1506456753,amazon-ebs,artifact-count,1\n" +
+            "1506456753,amazon-ebs,artifact,0,builder-id,mitchellh.amazonebs\n" +
+            "1506456753,amazon-ebs,artifact,0,id,us-east-1:ami-123456\n" +
+            "1506456753,amazon-ebs,artifact,0,string,AMIs were created:\\nus-east-1: ami-123456\n" +
+            "1506456753,amazon-ebs,artifact,0,end\n" +
+            "1506456754,,error,1 error(s) occurred";
+
+    @Test
+    public void parsesArtifactsBuildersAndErrors() throws Exception {
+        ByteArrayOutputStream log = new ByteArrayOutputStream();
+        MachineReadableOutputStream out = new MachineReadableOutputStream(log);
+        out.write(OUTPUT.getBytes("UTF-8"));
+        out.close();
+
+        // passed through untouched
+        assertEquals(OUTPUT, log.toString("UTF-8"));
+
+        assertEquals(2, out.getBuilders().size());
+        assertEquals("amazon-ebs", out.getBuilders().get(0));
+        assertEquals("googlecompute", out.getBuilders().get(1));
+
+        List<PackerArtifact> artifacts = out.getArtifacts();
+        assertEquals(1, artifacts.size());
+        assertEquals("amazon-ebs", artifacts.get(0).getBuilder());
+        assertEquals("us-east-1:ami-123456", artifacts.get(0).getId());
+        assertEquals("mitchellh.amazonebs", artifacts.get(0).getBuilderId());
+        assertEquals("AMIs were created:\nus-east-1: ami-123456", artifacts.get(0).getDescription());
+
+        assertEquals(2, out.getErrors().size());
+        assertEquals("Build 'googlecompute' errored: quota exceeded, retry later", out.getErrors().get(0));
+        assertEquals("1 error(s) occurred", out.getErrors().get(1));
+
+        assertEquals(Collections.singleton("googlecompute"), out.getFailedBuilders());
+    }
+
+    @Test
+    public void contributesEnvironment() throws Exception {
+        MachineReadableOutputStream out = new MachineReadableOutputStream(new ByteArrayOutputStream());
+        out.write(OUTPUT.getBytes("UTF-8"));
+        out.close();
+
+        PackerArtifactsAction action = new PackerArtifactsAction();
+        action.add(out);
+        EnvVars env = new EnvVars();
+        action.buildEnvVars(null, env);
+
+        assertEquals("us-east-1:ami-123456", env.get("PACKER_ARTIFACT_IDS"));
+        assertEquals("amazon-ebs,googlecompute", env.get("PACKER_BUILDERS"));
+        assertEquals("us-east-1:ami-123456", env.get("PACKER_ARTIFACT_AMAZON_EBS_ID"));
+        assertEquals("us-east-1:ami-123456", env.get("PACKER_ARTIFACT_AMAZON_EBS_0_ID"));
+    }
+
+    @Test
+    public void timesBuildersAndProvisioners() throws Exception {
+        String output =
+                "1000,amazon-ebs,ui,say,==> amazon-ebs: Launching a source AWS instance...\n" +
+                "1060,amazon-ebs,ui,say,==> amazon-ebs: Provisioning with shell script: /tmp/packer-shell1\n" +
+                "1090,amazon-ebs,ui,say,==> amazon-ebs: Provisioning with Ansible...\n" +
+                "1100,,ui,say,==> docker: Provisioning with shell script: /tmp/packer-shell2\n" +
+                "1150,amazon-ebs,ui,say,==> amazon-ebs: Stopping the source instance...\n" +
+                "1160,docker,ui,say,==> docker: Exporting the container\n";
+        MachineReadableOutputStream out = new MachineReadableOutputStream(new ByteArrayOutputStream());
+        out.write(output.getBytes("UTF-8"));
+        out.close();
+
+        assertEquals(Long.valueOf(150000), out.getBuilderDurations().get("amazon-ebs"));
+        assertEquals(Long.valueOf(60000), out.getBuilderDurations().get("docker"));
+
+        Map<String, Long> provisioners = out.getProvisionerDurations();
+        assertEquals(Long.valueOf(30000), provisioners.get("amazon-ebs: shell script"));
+        assertEquals(Long.valueOf(60000), provisioners.get("amazon-ebs: Ansible"));
+        assertEquals(Long.valueOf(60000), provisioners.get("docker: shell script"));
+    }
+}
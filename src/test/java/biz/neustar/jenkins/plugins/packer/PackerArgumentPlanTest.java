@@ -0,0 +1,74 @@
+package biz.neustar.jenkins.plugins.packer;
+
+import hudson.EnvVars;
+import hudson.Util;
+import hudson.util.ArgumentListBuilder;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PackerArgumentPlanTest {
+
+    private static final String[] PARAMS = {
+            "-var region=${REGION} -var 'ami_name=base ${BUILD_NUMBER}'",
+            "-var a=$A$B -var b=$$A -var c=${A}x${B.C} -var d=$",
+            "-var unknown=${NOT_SET} -var partial=${A -var empty=${}",
+            "-var \"user_data=echo $HOME\" -var self=${SELF}",
+            "   -var   spaced=$A   ",
+            "-var e=$$$A -var f=$${A} -var g=cost$$ -var h=$$$$",
+            "-var i=$$",
+            "",
+    };
+
+    private static EnvVars env() {
+        EnvVars env = new EnvVars();
+        env.put("REGION", "us-east-1");
+        env.put("BUILD_NUMBER", "42");
+        env.put("A", "a-value");
+        env.put("B", "b-value");
+        env.put("B.C", "dotted");
+        env.put("HOME", "/home/jenkins");
+        env.put("SELF", "${A}");
+        return env;
+    }
+
+    @Test
+    public void expandsLikeReplaceMacro() {
+        EnvVars env = env();
+        for (String params : PARAMS) {
+            List<String> expected = new ArrayList<>();
+            for (String param : PackerPublisher.addParamsAsArgs(params)) {
+                String arg = param.trim();
+                if (arg.length() > 0) {
+                    expected.add(Util.replaceMacro(arg, env));
+                }
+            }
+            assertEquals(params, expected, PackerArgumentPlan.compile(params, false).expand(env));
+        }
+    }
+
+    @Test
+    public void masksGlobalParams() {
+        ArgumentListBuilder args = new ArgumentListBuilder();
+        PackerArgumentPlan.compile("-var secret=$A", true).addTo(args, env());
+        PackerArgumentPlan.compile("-var region=$REGION", false).addTo(args, env());
+
+        assertEquals("[-var, secret=a-value, -var, region=us-east-1]", args.toList().toString());
+        boolean[] mask = args.toMaskArray();
+        assertTrue(mask[0] && mask[1]);
+        assertFalse(mask[2] || mask[3]);
+    }
+
+    @Test
+    public void remembersItsSource() {
+        PackerArgumentPlan plan = PackerArgumentPlan.compile("-var a=b", false);
+        assertTrue(plan.isFor("-var a=b"));
+        assertFalse(plan.isFor("-var a=c"));
+        assertTrue(PackerArgumentPlan.compile(null, false).isFor(null));
+        assertEquals(0, PackerArgumentPlan.compile("", false).size());
+    }
+}
@@ -0,0 +1,42 @@
+package biz.neustar.jenkins.plugins.packer;
+
+import hudson.AbortException;
+import hudson.FilePath;
+import java.io.File;
+import java.util.Arrays;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class PackerBuilderFanoutTest {
+
+    @Test
+    public void builderNames() throws Exception {
+        String template = "{\"builders\": [{\"type\": \"amazon-ebs\"}, {\"type\": \"vmware-iso\", \"name\": \"vmware\"}]}";
+        assertEquals(Arrays.asList("amazon-ebs", "vmware"), PackerBuilderFanout.getBuilderNames(template));
+    }
+
+    @Test(expected = AbortException.class)
+    public void noBuilders() throws Exception {
+        PackerBuilderFanout.getBuilderNames("{\"provisioners\": []}");
+    }
+
+    @Test(expected = AbortException.class)
+    public void notJson() throws Exception {
+        PackerBuilderFanout.getBuilderNames("source \"amazon-ebs\" \"main\" {}");
+    }
+
+    @Test
+    public void relocateTemplate() throws Exception {
+        FilePath from = new FilePath(new File("/ws/job"));
+        FilePath to = new FilePath(new File("/agent/packer-fanout/job-1"));
+        assertEquals("/agent/packer-fanout/job-1/images/web.json",
+                PackerBuilderFanout.relocate("/ws/job/images/web.json", from, to));
+    }
+
+    @Test(expected = AbortException.class)
+    public void relocateOutsideWorkingDir() throws Exception {
+        PackerBuilderFanout.relocate("/ws/job2/web.json", new FilePath(new File("/ws/job")),
+                new FilePath(new File("/agent/packer-fanout/job-1")));
+    }
+}
@@ -0,0 +1,87 @@
+package biz.neustar.jenkins.plugins.packer;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import hudson.model.TaskListener;
+import hudson.util.StreamTaskListener;
+import java.io.File;
+import java.io.IOException;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class PackerDownloadCacheTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private final TaskListener listener = StreamTaskListener.fromStdout();
+
+    private String publish(File mirror, String version, String contents, String sha256) throws IOException {
+        File dir = new File(mirror, "packer/" + version);
+        dir.mkdirs();
+        String fileName = "packer_" + version + "_linux_amd64.zip";
+        Files.write(contents, new File(dir, fileName), Charsets.UTF_8);
+        Files.write(sha256 + "  " + fileName + "\n", new File(dir, "packer_" + version + "_SHA256SUMS"), Charsets.UTF_8);
+        return "https://releases.hashicorp.com/packer/" + version + "/" + fileName;
+    }
+
+    @Test
+    public void downloadsOnceFromMirror() throws Exception {
+        File mirror = tmp.newFolder("mirror");
+        File cache = tmp.newFolder("cache");
+        String url = publish(mirror, "1.0.0", "zip", PackerStagingCache.sha256("zip"));
+        String mirrorUrl = PackerDownloadCache.mirror(url, mirror.toURI().toString());
+
+        File first = PackerDownloadCache.fetch(cache, "1.0.0-linux-amd64", mirrorUrl, listener);
+        assertEquals("zip", Files.toString(first, Charsets.UTF_8));
+
+        // served from the cache even once the mirror is gone, checksums and all
+        new File(mirror, "packer/1.0.0/packer_1.0.0_linux_amd64.zip").delete();
+        new File(mirror, "packer/1.0.0/packer_1.0.0_SHA256SUMS").delete();
+        File second = PackerDownloadCache.fetch(cache, "1.0.0-linux-amd64", mirrorUrl, listener);
+        assertEquals(first, second);
+    }
+
+    @Test
+    public void rejectsChecksumMismatch() throws Exception {
+        File mirror = tmp.newFolder("mirror");
+        File cache = tmp.newFolder("cache");
+        String url = publish(mirror, "1.0.1", "tampered", PackerStagingCache.sha256("zip"));
+        try {
+            PackerDownloadCache.fetch(cache, "1.0.1-linux-amd64", PackerDownloadCache.mirror(url, mirror.toURI().toString()), listener);
+            fail("checksum mismatch not detected");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("Checksum mismatch"));
+        }
+        assertEquals(0, cache.listFiles()[0].listFiles()[0].listFiles().length);
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsed() throws Exception {
+        int maxArchives = PackerDownloadCache.MAX_ARCHIVES;
+        PackerDownloadCache.MAX_ARCHIVES = 2;
+        try {
+            File mirror = tmp.newFolder("mirror");
+            File cache = tmp.newFolder("cache");
+            File[] archives = new File[3];
+            for (int i = 0; i < 3; i++) {
+                String version = "1.0." + i;
+                String url = publish(mirror, version, "zip" + i, PackerStagingCache.sha256("zip" + i));
+                archives[i] = PackerDownloadCache.fetch(cache, version, PackerDownloadCache.mirror(url, mirror.toURI().toString()), listener);
+                archives[i].setLastModified(System.currentTimeMillis() - (3 - i) * 60000L);
+            }
+            PackerDownloadCache.evict(cache, archives[2]);
+            assertFalse(archives[0].exists());
+            assertTrue(archives[1].exists());
+            assertTrue(archives[2].exists());
+        } finally {
+            PackerDownloadCache.MAX_ARCHIVES = maxArchives;
+        }
+    }
+}
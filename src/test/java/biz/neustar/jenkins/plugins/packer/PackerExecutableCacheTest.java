@@ -0,0 +1,73 @@
+package biz.neustar.jenkins.plugins.packer;
+
+import hudson.FilePath;
+import java.io.File;
+import java.util.ArrayList;
+import net.sf.json.JSONObject;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class PackerExecutableCacheTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @After
+    public void flush() {
+        PackerExecutableCache.invalidateAll();
+    }
+
+    private PackerInstallation installation(String home) {
+        JSONObject templateJsonObj = new JSONObject();
+        templateJsonObj.put("value", TemplateMode.TEXT.toMode());
+        templateJsonObj.put("jsonTemplateText", "{\"here\": \"i am\"}");
+        return new PackerInstallation("TestPacker", home, "", templateJsonObj, new ArrayList<PackerFileEntry>(), null);
+    }
+
+    @Test
+    public void cachedPerNode() {
+        PackerInstallation installation = installation("/opt/packer");
+        PackerExecutableCache.Entry entry = new PackerExecutableCache.Entry("/opt/packer/packer", 10, 20);
+
+        PackerExecutableCache.put("agent1", installation, entry);
+        assertSame(entry, PackerExecutableCache.get("agent1", installation));
+        assertNull(PackerExecutableCache.get("agent2", installation));
+
+        PackerExecutableCache.invalidateNode("agent1");
+        assertNull(PackerExecutableCache.get("agent1", installation));
+    }
+
+    @Test
+    public void homeWithVariablesNotCached() {
+        PackerInstallation installation = installation("${HOME}/packer");
+        assertFalse(PackerExecutableCache.isCacheable(installation));
+        PackerExecutableCache.put("agent1", installation, new PackerExecutableCache.Entry("/home/packer/packer", 10, 20));
+        assertEquals(0, PackerExecutableCache.size());
+    }
+
+    @Test
+    public void changedExecutableIsStale() throws Exception {
+        File exe = tmp.newFile(PackerInstallation.UNIX_PACKER_COMMAND);
+        PackerStaging.Result resolved = new PackerStaging().packerHome(tmp.getRoot().getPath())
+                .stage(new FilePath(tmp.getRoot()));
+        PackerExecutableCache.Entry entry = resolved.getExecutableEntry();
+        assertEquals(exe.getPath(), entry.getExecutable());
+
+        PackerStaging.Result unchanged = new PackerStaging().expectExecutable(entry).stage(new FilePath(tmp.getRoot()));
+        assertFalse(unchanged.isExecutableStale());
+        assertEquals(exe.getPath(), unchanged.getExecutable());
+
+        exe.setLastModified(entry.getLastModified() - 60000);
+        PackerStaging.Result changed = new PackerStaging().expectExecutable(entry).stage(new FilePath(tmp.getRoot()));
+        assertTrue(changed.isExecutableStale());
+        assertNull(changed.getExecutable());
+    }
+}
@@ -0,0 +1,98 @@
+package biz.neustar.jenkins.plugins.packer;
+
+import java.io.File;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class PackerFingerprintIndexTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Before
+    public void clear() {
+        PackerFingerprintIndex.clear();
+    }
+
+    private static PackerArtifact artifact(String builder, int index, String id) {
+        PackerArtifact artifact = new PackerArtifact(builder, index);
+        artifact.setBuilderId("mitchellh.amazonebs");
+        artifact.setId(id);
+        return artifact;
+    }
+
+    @Test
+    public void findsTheLatestBuildOfAFingerprint() throws Exception {
+        File jobDir = tmp.getRoot();
+        PackerFingerprintIndex.record(jobDir, "abc", 1, Arrays.asList(artifact("amazon-ebs", 0, "us-east-1:ami-1")));
+        PackerFingerprintIndex.record(jobDir, "def", 2, Arrays.asList(artifact("amazon-ebs", 0, "us-east-1:ami-2")));
+        PackerFingerprintIndex.record(jobDir, "abc", 3, Arrays.asList(artifact("amazon-ebs", 0, "us-east-1:ami 3")));
+
+        PackerFingerprintIndex.Entry entry = PackerFingerprintIndex.lookup(jobDir, "abc");
+        assertEquals(3, entry.getBuildNumber());
+        assertEquals("us-east-1:ami 3", entry.getArtifacts().get(0).getId());
+        assertEquals("mitchellh.amazonebs", entry.getArtifacts().get(0).getBuilderId());
+        assertNull(PackerFingerprintIndex.lookup(jobDir, "xyz"));
+    }
+
+    @Test
+    public void readsTheFileAgainWhenItChanges() throws Exception {
+        File jobDir = tmp.getRoot();
+        PackerFingerprintIndex.record(jobDir, "abc", 1, Collections.<PackerArtifact>emptyList());
+        PackerFingerprintIndex.clear();
+
+        PackerFingerprintIndex.Entry entry = PackerFingerprintIndex.lookup(jobDir, "abc");
+        assertNotNull(entry);
+        assertTrue(entry.getArtifacts().isEmpty());
+
+        Files.write(new File(jobDir, PackerFingerprintIndex.FILE_NAME).toPath(),
+                PackerFingerprintIndex.format("def", 2, Collections.<PackerArtifact>emptyList()).getBytes("UTF-8"),
+                StandardOpenOption.APPEND);
+        assertEquals(2, PackerFingerprintIndex.lookup(jobDir, "def").getBuildNumber());
+    }
+
+    @Test
+    public void keepsTheIndexesOfRecentJobsOnly() throws Exception {
+        for (int job = 0; job <= PackerFingerprintIndex.MAX_JOBS; job++) {
+            PackerFingerprintIndex.lookup(tmp.newFolder("job" + job), "abc");
+        }
+        assertEquals(PackerFingerprintIndex.MAX_JOBS, PackerFingerprintIndex.size());
+
+        File folder = tmp.newFolder("folder");
+        File jobDir = new File(folder, "jobs/a");
+        assertTrue(jobDir.mkdirs());
+        PackerFingerprintIndex.record(jobDir, "abc", 1, Collections.<PackerArtifact>emptyList());
+        assertEquals(PackerFingerprintIndex.MAX_JOBS, PackerFingerprintIndex.size());
+        PackerFingerprintIndex.evict(folder);
+        assertEquals(PackerFingerprintIndex.MAX_JOBS - 1, PackerFingerprintIndex.size());
+    }
+
+    @Test
+    public void compactsSupersededLines() throws Exception {
+        File jobDir = tmp.getRoot();
+        for (int build = 1; build <= 300; build++) {
+            PackerFingerprintIndex.record(jobDir, "fp" + (build % 2), build,
+                    Arrays.asList(artifact("docker", 0, "sha256:" + build)));
+        }
+        List<String> lines = Files.readAllLines(new File(jobDir, PackerFingerprintIndex.FILE_NAME).toPath(),
+                Charset.forName("UTF-8"));
+        assertTrue(lines.size() < 300);
+
+        PackerFingerprintIndex.clear();
+        assertEquals(300, PackerFingerprintIndex.lookup(jobDir, "fp0").getBuildNumber());
+        assertEquals(299, PackerFingerprintIndex.lookup(jobDir, "fp1").getBuildNumber());
+    }
+}
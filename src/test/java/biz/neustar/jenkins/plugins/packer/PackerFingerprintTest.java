@@ -0,0 +1,56 @@
+package biz.neustar.jenkins.plugins.packer;
+
+import hudson.FilePath;
+import hudson.util.ArgumentListBuilder;
+import java.io.File;
+import java.util.Collections;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class PackerFingerprintTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private String fingerprint(File template, String fileEntry, ArgumentListBuilder params) throws Exception {
+        File exe = new File(tmp.getRoot(), "packer");
+        exe.createNewFile();
+        return new PackerFingerprint().stagedPaths(Collections.singletonList(fileEntry))
+                .addParams(params).add("text")
+                .compute(new FilePath(tmp.getRoot()), exe.getPath(),
+                        Collections.singletonList(template.getPath()), false);
+    }
+
+    private File file(String contents) throws Exception {
+        File file = tmp.newFile();
+        new FilePath(file).write(contents, "UTF-8");
+        return file;
+    }
+
+    @Test
+    public void ignoresThePathsStagedForTheBuild() throws Exception {
+        String first = fingerprint(file("{}"), "/tmp/entry-1.tmp",
+                new ArgumentListBuilder("-var", "cert=/tmp/entry-1.tmp"));
+        String second = fingerprint(file("{}"), "/tmp/entry-2.tmp",
+                new ArgumentListBuilder("-var", "cert=/tmp/entry-2.tmp"));
+        assertEquals(first, second);
+        assertFalse(first.equals(fingerprint(file("{\"builders\": []}"), "/tmp/entry-1.tmp",
+                new ArgumentListBuilder("-var", "cert=/tmp/entry-1.tmp"))));
+    }
+
+    @Test
+    public void hashesTheContentsOfVarFiles() throws Exception {
+        File template = file("{}");
+        File vars = file("{\"region\": \"us-east-1\"}");
+        ArgumentListBuilder params = new ArgumentListBuilder("-var-file=" + vars.getName());
+        String before = fingerprint(template, "", params);
+        assertEquals(before, fingerprint(template, "", params));
+
+        new FilePath(vars).write("{\"region\": \"eu-west-1\"}", "UTF-8");
+        assertFalse(before.equals(fingerprint(template, "", params)));
+    }
+}
@@ -22,6 +22,7 @@ import hudson.model.FreeStyleProject;
 import hudson.model.Node;
 import hudson.model.TaskListener;
 import hudson.remoting.LocalChannel;
+import hudson.util.ArgumentListBuilder;
 import net.sf.json.JSONObject;
 import org.junit.Rule;
 import org.junit.Test;
@@ -33,12 +34,14 @@ import org.mockito.stubbing.Answer;
 
 import java.io.File;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import org.junit.Ignore;
 import static org.mockito.Matchers.any;
@@ -104,6 +107,144 @@ public class PackerJenkinsPluginTest {
         System.out.println("testFileVariables result: " + result);
     }
 
+    @Test
+    @WithoutJenkins
+    public void testStagingInOneCall() throws Exception {
+        FilePath path = new FilePath(new LocalChannel(MoreExecutors.sameThreadExecutor()),
+                System.getProperty("java.io.tmpdir"));
+
+        List<PackerFileEntry> globalEntries = new ArrayList<>();
+        globalEntries.add(new PackerFileEntry("x509_cert", "cert here"));
+        globalEntries.add(new PackerFileEntry("x509_key", "the key"));
+        List<PackerFileEntry> jobEntries = new ArrayList<>();
+        jobEntries.add(new PackerFileEntry("x509_cert", "in build"));
+
+        PackerStaging staging = new PackerStaging()
+                .packerHome(PLUGIN_HOME)
+                .fileEntries(globalEntries)
+                .fileEntries(jobEntries)
+                .templateText("{ \"here\": \"i am\"}");
+        PackerStaging.Result result = staging.stage(path);
+
+        assertNull(result.getExecutable());
+        assertEquals(2, result.getFileEntries().size());
+        assertEquals("in build", Files.toString(new File(result.getFileEntries().get("x509_cert")), Charsets.UTF_8));
+        assertTrue(result.getTemplate().endsWith(".json"));
+    }
+
+    @Test
+    @WithoutJenkins
+    public void testFileEntriesInOneVarFile() throws Exception {
+        FilePath path = new FilePath(new LocalChannel(MoreExecutors.sameThreadExecutor()),
+                System.getProperty("java.io.tmpdir"));
+
+        PackerStaging staging = new PackerStaging()
+                .varFile(true)
+                .fileEntries(Arrays.asList(new PackerFileEntry("x509_cert", "cert here"),
+                        new PackerFileEntry("x509_key", "the key")))
+                .fileEntries(Collections.singletonList(new PackerFileEntry("x509_cert", "in build")));
+        PackerStaging.Result result = staging.stage(path);
+
+        JSONObject vars = JSONObject.fromObject(Files.toString(new File(result.getVarFile()), Charsets.UTF_8));
+        assertEquals(2, vars.size());
+        assertEquals(result.getFileEntries().get("x509_cert"), vars.getString("x509_cert"));
+        assertEquals("in build", Files.toString(new File(vars.getString("x509_cert")), Charsets.UTF_8));
+
+        List<String> args = PackerPublisher.createArgs("packer", new ArgumentListBuilder("-var", "a=b"),
+                result.getFileEntries(), result.getVarFile(), new ArgumentListBuilder()).toList();
+        assertEquals(Arrays.asList("packer", "build", "-var", "a=b", "-var-file=" + result.getVarFile()), args);
+
+        assertEquals("{\n  \"a\\\"\": \"C:\\\\packer\"\n}\n",
+                PackerStaging.toJson(Collections.singletonMap("a\"", "C:\\packer")));
+    }
+
+    @Test
+    @WithoutJenkins
+    public void testSpillVarsWhenTooLong() throws Exception {
+        FilePath path = new FilePath(new LocalChannel(MoreExecutors.sameThreadExecutor()),
+                System.getProperty("java.io.tmpdir"));
+        ArgumentListBuilder args = new ArgumentListBuilder("packer", "build", "-var", "a=1")
+                .addMasked("-var=secret=shh").add("-var-file=user.json").add("-var").add("a=2")
+                .add("-force").add("template.json");
+
+        PackerVarSpill spill = new PackerVarSpill(path, true);
+        assertSame(args, spill.fit(args));
+        assertFalse(spill.isUsed());
+
+        int limit = PackerVarSpill.UNIX_LIMIT;
+        PackerVarSpill.UNIX_LIMIT = 20;
+        try {
+            ArgumentListBuilder spilled = spill.fit(args);
+            assertTrue(spill.isUsed());
+            List<String> values = spilled.toList();
+            assertEquals(7, values.size());
+            assertEquals("-var-file=user.json", values.get(3));
+            assertEquals(Arrays.asList("-force", "template.json"), values.subList(5, 7));
+            assertFalse(values.toString().contains("shh"));
+
+            JSONObject first = JSONObject.fromObject(Files.toString(
+                    new File(values.get(2).substring("-var-file=".length())), Charsets.UTF_8));
+            assertEquals("1", first.getString("a"));
+            assertEquals("shh", first.getString("secret"));
+            JSONObject second = JSONObject.fromObject(Files.toString(
+                    new File(values.get(4).substring("-var-file=".length())), Charsets.UTF_8));
+            assertEquals("2", second.getString("a"));
+        } finally {
+            PackerVarSpill.UNIX_LIMIT = limit;
+        }
+    }
+
+    @Test
+    @WithoutJenkins
+    public void testSpillKeepsStructuredVarsOnTheCommandLine() throws Exception {
+        FilePath path = new FilePath(new LocalChannel(MoreExecutors.sameThreadExecutor()),
+                System.getProperty("java.io.tmpdir"));
+        ArgumentListBuilder args = new ArgumentListBuilder("packer", "build", "-var", "count=3")
+                .add("-var").add("regions=[\"us-east-1\", \"eu-west-1\"]").add("-var=tags={a = \"b\"}")
+                .add("template.pkr.hcl");
+
+        int limit = PackerVarSpill.UNIX_LIMIT;
+        PackerVarSpill.UNIX_LIMIT = 20;
+        try {
+            List<String> values = new PackerVarSpill(path, true).fit(args).toList();
+            assertEquals(Arrays.asList("-var", "regions=[\"us-east-1\", \"eu-west-1\"]", "-var=tags={a = \"b\"}",
+                    "template.pkr.hcl"), values.subList(3, 7));
+
+            // packer converts the string to the number the variable is declared as.
+            JSONObject spilled = JSONObject.fromObject(Files.toString(
+                    new File(values.get(2).substring("-var-file=".length())), Charsets.UTF_8));
+            assertEquals("3", spilled.getString("count"));
+            assertEquals(1, spilled.size());
+        } finally {
+            PackerVarSpill.UNIX_LIMIT = limit;
+        }
+    }
+
+    @Test
+    public void testStagingIntoBuildDir() throws Exception {
+        FreeStyleProject project = jenkins.createFreeStyleProject();
+        FreeStyleBuild build = jenkins.buildAndAssertSuccess(project);
+        FilePath buildDir = PackerBuildDirs.forBuild(build, jenkins.jenkins, null);
+
+        PackerStaging.Result result = new PackerStaging()
+                .stagingDir(buildDir)
+                .fileEntries(Collections.singletonList(new PackerFileEntry("x509_cert", "cert here")))
+                .templateText("{ \"here\": \"i am\"}")
+                .stage(buildDir.getParent());
+
+        assertTrue(result.getTemplate().startsWith(buildDir.getRemote()));
+        assertTrue(result.getFileEntries().get("x509_cert").startsWith(buildDir.getRemote()));
+
+        // template text next to the working dir, for {{template_dir}}.
+        FilePath workspace = build.getWorkspace();
+        result = new PackerStaging().stagingDir(buildDir).templateDir(workspace)
+                .templateText("{ \"here\": \"i am\"}").stage(workspace);
+        assertEquals(workspace.getRemote(), new File(result.getTemplate()).getParent());
+
+        PackerBuildDirs.delete(buildDir);
+        assertFalse(buildDir.exists());
+    }
+
     @Test
     public void testPackerInstaller() throws Exception {
         final String jsonText = "{ \"here\": \"i am\"}";
@@ -289,6 +430,43 @@ public class PackerJenkinsPluginTest {
         assertTrue(plugin.getGlobalTemplate().length() > 0);
     }
 
+    @Test
+    public void testPrewarmInstallations() throws Exception {
+        PackerInstallation installation = new PackerInstallation(name, home,
+                params, createTemplateModeJson(TemplateMode.TEXT, "{}"), emptyFileEntries, null);
+        Node node = jenkins.createOnlineSlave();
+
+        PackerPrewarm.prewarm(node, new PackerInstallation[] {installation});
+        for (int i = 0; i < 100 && !PackerPrewarm.isWarm(node.getNodeName()); i++) {
+            Thread.sleep(100);
+        }
+        assertEquals(PackerPrewarm.State.READY, PackerPrewarm.getState(node.getNodeName(), name));
+        assertNull(PackerPrewarm.getState(node.getNodeName(), "other"));
+    }
+
+    @Test
+    public void testInstallationLookupByName() {
+        PackerInstallation first = new PackerInstallation("first", home,
+                params, createTemplateModeJson(TemplateMode.TEXT, "{}"), emptyFileEntries, null);
+        PackerInstallation second = new PackerInstallation("second", home,
+                params, createTemplateModeJson(TemplateMode.TEXT, "{}"), emptyFileEntries, null);
+        PackerInstallation duplicate = new PackerInstallation("first", "/other",
+                params, createTemplateModeJson(TemplateMode.TEXT, "{}"), emptyFileEntries, null);
+
+        PackerPublisher.DescriptorImpl desc = jenkins.jenkins.getDescriptorByType(PackerPublisher.DescriptorImpl.class);
+        desc.setInstallations(first, second, duplicate);
+
+        assertSame(first, desc.getInstallation("first"));
+        assertSame(second, desc.getInstallation("second"));
+        assertNull(desc.getInstallation("third"));
+        assertNull(desc.getInstallation(null));
+
+        // the index follows the installations when they are replaced
+        desc.setInstallations(second);
+        assertNull(desc.getInstallation("first"));
+        assertSame(second, desc.getInstallation("second"));
+    }
+
 
     @Test
     public void testPluginInJobPathExec() throws Exception {
@@ -512,6 +690,7 @@ public class PackerJenkinsPluginTest {
 
         Launcher launcherMock = mock(Launcher.class);
         BuildListener buildListenerMock = mock(BuildListener.class);
+        when(buildListenerMock.getLogger()).thenReturn(System.out);
 
         final Proc procMock = mock(Proc.class);
         when(procMock.join()).thenReturn(0);
@@ -584,6 +763,7 @@ public class PackerJenkinsPluginTest {
 
         Launcher launcherMock = mock(Launcher.class);
         BuildListener buildListenerMock = mock(BuildListener.class);
+        when(buildListenerMock.getLogger()).thenReturn(System.out);
 
         final Proc procMock = mock(Proc.class);
         when(procMock.join()).thenReturn(0);
@@ -656,6 +836,7 @@ public class PackerJenkinsPluginTest {
 
         Launcher launcherMock = mock(Launcher.class);
         BuildListener buildListenerMock = mock(BuildListener.class);
+        when(buildListenerMock.getLogger()).thenReturn(System.out);
 
         final Proc procMock = mock(Proc.class);
         when(procMock.join()).thenReturn(0);
@@ -670,4 +851,112 @@ public class PackerJenkinsPluginTest {
 
         assertTrue(plugin.perform((AbstractBuild) build, launcherMock, buildListenerMock));
     }
+
+    @Test
+    public void testPluginBuildAdditionalTemplates() throws Exception {
+        final String jsonText = "{ \"here\": \"i am\"}";
+        PackerInstallation installation = new PackerInstallation(name, home,
+                "", createTemplateModeJson(TemplateMode.TEXT, jsonText), emptyFileEntries, null);
+
+        PackerPublisher plugin = new PackerPublisher(name,
+                null, null, "bin", "-var 'ami=123'", emptyFileEntries, false, "");
+        plugin.setTemplateMode(TemplateMode.GLOBAL.toMode());
+        List<PackerTemplateEntry> templates = new ArrayList<>();
+        templates.add(new PackerTemplateEntry("web", "web.json", "-var 'role=web'"));
+        templates.add(new PackerTemplateEntry(null, "images/db.json", ""));
+        plugin.setTemplateEntries(templates);
+        plugin.setMaxConcurrency(2);
+        plugin.getDescriptor().setInstallations(installation);
+
+        FreeStyleProject project = jenkins.createFreeStyleProject();
+        final FreeStyleBuild build = project.scheduleBuild2(0).get();
+
+        Launcher launcherMock = mock(Launcher.class);
+        BuildListener buildListenerMock = mock(BuildListener.class);
+        when(buildListenerMock.getLogger()).thenReturn(System.out);
+
+        final List<String> templatesBuilt = Collections.synchronizedList(new ArrayList<String>());
+        final Proc procMock = mock(Proc.class);
+        when(procMock.join()).thenReturn(0);
+        when(launcherMock.launch(any(Launcher.ProcStarter.class))).then(new Answer<Proc>() {
+            public Proc answer(InvocationOnMock invocation) throws Throwable {
+                Launcher.ProcStarter param = (Launcher.ProcStarter) invocation.getArguments()[0];
+                List<String> cmds = param.cmds();
+                assertEquals("ami=123", cmds.get(3));
+                templatesBuilt.add(cmds.get(cmds.size() - 1));
+                if (cmds.get(cmds.size() - 1).endsWith("web.json")) {
+                    assertEquals("role=web", cmds.get(5));
+                }
+                return procMock;
+            }
+        });
+
+        assertTrue(plugin.perform((AbstractBuild) build, launcherMock, buildListenerMock));
+        assertEquals(3, templatesBuilt.size());
+        assertTrue(templatesBuilt.contains(build.getWorkspace().getRemote() + "/web.json"));
+        assertTrue(templatesBuilt.contains(build.getWorkspace().getRemote() + "/images/db.json"));
+        assertEquals("db.json", templates.get(1).getLabel());
+    }
+
+    @Test
+    public void testValidationCachedForTextTemplate() throws Exception {
+        PackerInstallation installation = new PackerInstallation(name, home,
+                "", createTemplateModeJson(TemplateMode.TEXT, "{}"), emptyFileEntries, null);
+        PackerPublisher plugin = new PackerPublisher(name,
+                null, "{ \"builders\": [] }", "bin", "-var 'ami=123'", emptyFileEntries, false, "");
+        plugin.setTemplateMode(TemplateMode.TEXT.toMode());
+        plugin.setValidateTemplate(true);
+        plugin.getDescriptor().setInstallations(installation);
+
+        FreeStyleProject project = jenkins.createFreeStyleProject();
+        BuildListener buildListenerMock = mock(BuildListener.class);
+        when(buildListenerMock.getLogger()).thenReturn(System.out);
+        Launcher launcherMock = mock(Launcher.class);
+        final List<String> commands = Collections.synchronizedList(new ArrayList<String>());
+        final List<String> templatesRun = Collections.synchronizedList(new ArrayList<String>());
+        final Proc procMock = mock(Proc.class);
+        when(procMock.join()).thenReturn(0);
+        when(launcherMock.launch(any(Launcher.ProcStarter.class))).then(new Answer<Proc>() {
+            public Proc answer(InvocationOnMock invocation) throws Throwable {
+                List<String> cmds = ((Launcher.ProcStarter) invocation.getArguments()[0]).cmds();
+                commands.add(cmds.get(1));
+                templatesRun.add(cmds.get(cmds.size() - 1));
+                return procMock;
+            }
+        });
+
+        assertTrue(plugin.perform((AbstractBuild) project.scheduleBuild2(0).get(), launcherMock, buildListenerMock));
+        assertEquals(Arrays.asList("validate", "build"), commands);
+        commands.clear();
+
+        // staged to another file, but unchanged.
+        assertTrue(plugin.perform((AbstractBuild) project.scheduleBuild2(0).get(), launcherMock, buildListenerMock));
+        assertEquals(Collections.singletonList("build"), commands);
+        assertFalse(templatesRun.get(0).equals(templatesRun.get(2)));
+    }
+
+    @Test
+    public void testAccountPools() throws Exception {
+        PackerPublisher.DescriptorImpl desc = jenkins.jenkins.getDescriptorByType(PackerPublisher.DescriptorImpl.class);
+        PackerAccountPool aws = new PackerAccountPool("aws", 2);
+        PackerAccountPool byInstallation = new PackerAccountPool(name, 1);
+        desc.setAccountPools(Arrays.asList(aws, byInstallation, new PackerAccountPool("unlimited", 0)));
+
+        PackerPublisher plugin = new PackerPublisher(name,
+                null, null, "bin", "", emptyFileEntries, false, "");
+        FreeStyleProject project = jenkins.createFreeStyleProject();
+        project.getPublishersList().add(plugin);
+
+        assertSame(byInstallation, PackerConcurrencyLimiter.poolOf(project, desc));
+        plugin.setAccountPool("aws");
+        assertSame(aws, PackerConcurrencyLimiter.poolOf(project, desc));
+        plugin.setAccountPool("unlimited");
+        assertNull(PackerConcurrencyLimiter.poolOf(project, desc));
+        assertNull(PackerConcurrencyLimiter.poolOf(jenkins.createFreeStyleProject(), desc));
+
+        // priority first, then the longest waiting.
+        assertTrue(PackerConcurrencyLimiter.isAhead(1, 2000, 2, 0, 1000, 1));
+        assertTrue(PackerConcurrencyLimiter.isAhead(0, 1000, 2, 0, 2000, 1));
+        assertFalse(PackerConcurrencyLimiter.isAhead(0, 1000, 2, 0, 1000, 1));
+    }
 }
@@ -0,0 +1,52 @@
+package biz.neustar.jenkins.plugins.packer;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PackerMetricsTest {
+
+    @Test
+    public void countsAcrossThreads() throws Exception {
+        final PackerMetrics.Counter counter = new PackerMetrics.Counter();
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < 10000; j++) {
+                        counter.add(1);
+                    }
+                }
+            };
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(80000, counter.sum());
+    }
+
+    @Test
+    public void exposesHistogramsAsText() {
+        PackerMetrics.stepCompleted("metrics-test.json", PackerMetrics.SUCCESS, 30000);
+        PackerMetrics.stepCompleted("metrics-test.json", PackerMetrics.FAILURE, 400000);
+        PackerMetrics.processStarted("agent \"1\"");
+
+        String text = PackerMetrics.toText();
+        assertTrue(text.contains("# TYPE packer_step_duration_seconds histogram\n"));
+        assertTrue(text.contains("packer_step_duration_seconds_bucket{template=\"metrics-test.json\",le=\"60\"} 1\n"));
+        assertTrue(text.contains("packer_step_duration_seconds_bucket{template=\"metrics-test.json\",le=\"600\"} 2\n"));
+        assertTrue(text.contains("packer_step_duration_seconds_bucket{template=\"metrics-test.json\",le=\"+Inf\"} 2\n"));
+        assertTrue(text.contains("packer_step_duration_seconds_sum{template=\"metrics-test.json\"} 430.0\n"));
+        assertTrue(text.contains("packer_step_duration_seconds_count{template=\"metrics-test.json\"} 2\n"));
+        assertTrue(text.contains("packer_processes_running{node=\"agent \\\"1\\\"\"} 1\n"));
+
+        PackerMetrics.processFinished("agent \"1\"");
+        assertTrue(PackerMetrics.toText().contains("packer_processes_running{node=\"agent \\\"1\\\"\"} 0\n"));
+    }
+}
@@ -0,0 +1,85 @@
+package biz.neustar.jenkins.plugins.packer;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.List;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PackerPluginCacheTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private final long maxSize = PackerPluginCache.MAX_SIZE;
+    private final long minAge = PackerPluginCache.MIN_AGE;
+
+    @After
+    public void restore() {
+        PackerPluginCache.MAX_SIZE = maxSize;
+        PackerPluginCache.MIN_AGE = minAge;
+    }
+
+    @Test
+    public void extractsRequiredPluginsIgnoringWhitespace() {
+        String hcl = "packer {\n  required_plugins {\n    amazon = {\n      version = \">= 1.0.0\"\n"
+                + "      source  = \"github.com/hashicorp/amazon\"\n    }\n  }\n}\n"
+                + "source \"amazon-ebs\" \"x\" { region = \"us-east-1\" }\n";
+        List<String> blocks = PackerPluginCache.requiredPlugins(hcl);
+        assertEquals(1, blocks.size());
+        assertTrue(blocks.get(0).contains("github.com/hashicorp/amazon"));
+        assertFalse(blocks.get(0).contains("us-east-1"));
+
+        assertEquals(blocks, PackerPluginCache.requiredPlugins(hcl.replace("\n", "\r\n")));
+        assertTrue(PackerPluginCache.requiredPlugins("{\"builders\": []}").isEmpty());
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsedEntries() throws Exception {
+        PackerPluginCache.MAX_SIZE = 0;
+        PackerPluginCache.MIN_AGE = 0;
+        File old = entry("old", System.currentTimeMillis() - 100000);
+        File keep = entry("keep", System.currentTimeMillis() - 200000);
+        File partial = tmp.newFolder("abc.partial-1");
+
+        PackerPluginCache.evict(tmp.getRoot(), keep);
+        assertFalse(old.exists());
+        assertTrue(keep.exists());
+        assertTrue("may still be installing", partial.exists());
+    }
+
+    @Test
+    public void keepsEntriesOfRunningBuilds() throws Exception {
+        PackerPluginCache.MAX_SIZE = 0;
+        PackerPluginCache.MIN_AGE = 0;
+        File leased = entry("leased", System.currentTimeMillis() - 100000);
+        File leases = new File(tmp.getRoot(), ".leases");
+        assertTrue(leases.mkdirs());
+        assertTrue(new File(leases, "leased.build-1").createNewFile());
+
+        PackerPluginCache.evict(tmp.getRoot(), null);
+        assertTrue(leased.exists());
+        assertTrue("still found by lookups", new File(leased, ".initialized").isFile());
+
+        assertTrue(new File(leases, "leased.build-1").delete());
+        PackerPluginCache.evict(tmp.getRoot(), null);
+        assertFalse(leased.exists());
+    }
+
+    private File entry(String name, long lastUsed) throws Exception {
+        File dir = tmp.newFolder(name);
+        File plugin = new File(dir, "packer-plugin-amazon");
+        assertTrue(plugin.createNewFile());
+        Files.write(plugin.toPath(), new byte[10]);
+        File marker = new File(dir, ".initialized");
+        assertTrue(marker.createNewFile());
+        marker.setLastModified(lastUsed);
+        return dir;
+    }
+}
@@ -0,0 +1,37 @@
+package biz.neustar.jenkins.plugins.packer;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PackerPreflightTest {
+
+    @Test
+    public void remembersValidatedTemplatesPerNode() {
+        PackerPreflight.invalidateNode("node-a");
+        assertFalse(PackerPreflight.isValidated("node-a", "hash"));
+
+        PackerPreflight.markValidated("node-a", "hash");
+        assertTrue(PackerPreflight.isValidated("node-a", "hash"));
+        assertFalse(PackerPreflight.isValidated("node-b", "hash"));
+
+        PackerPreflight.invalidateNode("node-a");
+        assertFalse(PackerPreflight.isValidated("node-a", "hash"));
+    }
+
+    @Test
+    public void evictsLeastRecentlyValidated() {
+        PackerPreflight.invalidateNode("node-c");
+        for (int i = 0; i <= PackerPreflight.MAX_ENTRIES; i++) {
+            PackerPreflight.markValidated("node-c", "hash" + i);
+            if (i == 1) {
+                // used again, so hash1 outlives hash0
+                assertTrue(PackerPreflight.isValidated("node-c", "hash0"));
+            }
+        }
+        assertTrue(PackerPreflight.isValidated("node-c", "hash0"));
+        assertFalse(PackerPreflight.isValidated("node-c", "hash1"));
+        assertTrue(PackerPreflight.isValidated("node-c", "hash" + PackerPreflight.MAX_ENTRIES));
+    }
+}
@@ -0,0 +1,165 @@
+package biz.neustar.jenkins.plugins.packer;
+
+import hudson.EnvVars;
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.util.ArgumentListBuilder;
+import hudson.util.StreamTaskListener;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.junit.Assume;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PackerProcessTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private PackerProcess process(String script) {
+        ArgumentListBuilder args = new ArgumentListBuilder().add("sh").add("-c").add(script);
+        return new PackerProcess(new Launcher.LocalLauncher(StreamTaskListener.fromStdout()), args,
+                new FilePath(tmp.getRoot()), new EnvVars(), null, false);
+    }
+
+    @Test
+    public void stopsPackerWithoutOutput() throws Exception {
+        Assume.assumeTrue(File.pathSeparatorChar == ':');
+        ByteArrayOutputStream log = new ByteArrayOutputStream();
+
+        long start = System.currentTimeMillis();
+        int exitCode = process("echo started; sleep 60").timeouts(0, 500, 0)
+                .run(new StreamTaskListener(log));
+
+        assertTrue(exitCode != 0);
+        assertTrue(System.currentTimeMillis() - start < 30000);
+        assertTrue(log.toString("UTF-8").contains("No output for"));
+    }
+
+    @Test
+    public void stopsPackerAfterTheTimeout() throws Exception {
+        Assume.assumeTrue(File.pathSeparatorChar == ':');
+        ByteArrayOutputStream log = new ByteArrayOutputStream();
+
+        int exitCode = process("while true; do echo busy; sleep 0.1; done").timeouts(500, 0, 0)
+                .run(new StreamTaskListener(log));
+
+        assertTrue(exitCode != 0);
+        assertTrue(log.toString("UTF-8").contains("Timed out after"));
+    }
+
+    @Test
+    public void doesNotStartPackerPastTheDeadline() throws Exception {
+        Assume.assumeTrue(File.pathSeparatorChar == ':');
+        ByteArrayOutputStream log = new ByteArrayOutputStream();
+
+        int exitCode = process("echo started").timeouts(500, 0, 0).deadline(System.currentTimeMillis() - 1)
+                .run(new StreamTaskListener(log));
+
+        assertTrue(exitCode != 0);
+        assertFalse(log.toString("UTF-8").contains("started"));
+        assertTrue(log.toString("UTF-8").contains("not starting packer"));
+    }
+
+    @Test(timeout = 60000)
+    public void waitsForAbortedPackersToCleanUp() throws Exception {
+        Assume.assumeTrue(File.pathSeparatorChar == ':');
+        final ByteArrayOutputStream log = new ByteArrayOutputStream();
+        final StreamTaskListener listener = new StreamTaskListener(log);
+        final List<PackerProcess> processes = Collections.singletonList(
+                process("trap 'sleep 1; echo cleaned up; exit 1' INT; echo started; while true; do sleep 0.1; done")
+                        .timeouts(0, 0, 30000));
+        final AtomicBoolean aborted = new AtomicBoolean();
+        Thread runner = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    new PackerParallelRunner(0, false).run(processes, listener);
+                } catch (InterruptedException e) {
+                    aborted.set(true);
+                }
+            }
+        };
+        runner.start();
+        while (!log.toString("UTF-8").contains("started")) {
+            Thread.sleep(50);
+        }
+
+        runner.interrupt();
+        runner.join();
+        assertTrue(aborted.get());
+        assertTrue(log.toString("UTF-8").contains("cleaned up"));
+    }
+
+    @Test
+    public void retriesOnlyTheFailedBuilders() throws Exception {
+        Assume.assumeTrue(File.pathSeparatorChar == ':');
+        ByteArrayOutputStream log = new ByteArrayOutputStream();
+        // the template comes last, like for packer.
+        ArgumentListBuilder args = new ArgumentListBuilder().add("sh").add("-c")
+                .add("if [ \"$1\" = -only=docker ]; then echo built; else echo \"Build 'docker' errored: boom\"; "
+                        + "exit 1; fi").add("packer").add("template.json");
+        PackerProcess process = new PackerProcess(new Launcher.LocalLauncher(StreamTaskListener.fromStdout()), args,
+                new FilePath(tmp.getRoot()), new EnvVars(), null, false);
+        StreamTaskListener listener = new StreamTaskListener(log);
+
+        assertEquals(1, process.run(listener));
+        assertEquals(Collections.singleton("docker"), process.getFailedBuilders());
+
+        List<PackerProcess> retries = new ArrayList<>();
+        assertTrue(new PackerRetry(2, 1).run(Collections.singletonList(process), retries, listener));
+        assertEquals(1, retries.size());
+        assertTrue(retries.get(0).getArgs().toList().contains("-only=docker"));
+        assertEquals("template.json", retries.get(0).getArgs().toList().get(5));
+        assertTrue(log.toString("UTF-8").contains("Retrying builder(s) docker"));
+    }
+
+    @Test
+    public void doesNotRetryAStoppedPacker() throws Exception {
+        Assume.assumeTrue(File.pathSeparatorChar == ':');
+        ByteArrayOutputStream log = new ByteArrayOutputStream();
+        StreamTaskListener listener = new StreamTaskListener(log);
+        PackerProcess process = process("echo \"Build 'docker' errored: boom\"; sleep 60").timeouts(500, 0, 0);
+
+        process.run(listener);
+        assertTrue(process.isStopped());
+        assertEquals(Collections.singleton("docker"), process.getFailedBuilders());
+
+        List<PackerProcess> retries = new ArrayList<>();
+        assertFalse(new PackerRetry(2, 1).run(Collections.singletonList(process), retries, listener));
+        assertTrue(retries.isEmpty());
+    }
+
+    @Test
+    public void doesNotRetryPastTheDeadline() throws Exception {
+        Assume.assumeTrue(File.pathSeparatorChar == ':');
+        ByteArrayOutputStream log = new ByteArrayOutputStream();
+        StreamTaskListener listener = new StreamTaskListener(log);
+        PackerProcess process = process("echo \"Build 'docker' errored: boom\"; exit 1");
+
+        assertEquals(1, process.run(listener));
+
+        List<PackerProcess> retries = new ArrayList<>();
+        assertFalse(new PackerRetry(2, 60000).deadline(System.currentTimeMillis() + 1000)
+                .run(Collections.singletonList(process), retries, listener));
+        assertTrue(retries.isEmpty());
+        assertTrue(log.toString("UTF-8").contains("Not retrying builder(s) docker"));
+    }
+
+    @Test
+    public void backsOffExponentially() {
+        PackerRetry retry = new PackerRetry(10, 1000);
+        assertEquals(1000, retry.backoff(1));
+        assertEquals(4000, retry.backoff(3));
+        assertEquals(PackerRetry.MAX_BACKOFF_MILLIS, retry.backoff(30));
+    }
+}
@@ -0,0 +1,108 @@
+package biz.neustar.jenkins.plugins.packer;
+
+import hudson.FilePath;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributeView;
+import java.nio.file.attribute.FileTime;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PackerSharedCacheTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private final long minAge = PackerSharedCache.MIN_AGE;
+
+    @After
+    public void restore() {
+        PackerSharedCache.MIN_AGE = minAge;
+    }
+
+    private static File write(File dir, String name, int size, long lastModified) throws IOException {
+        File file = new File(dir, name);
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(new byte[size]);
+        } finally {
+            out.close();
+        }
+        FileTime time = FileTime.fromMillis(lastModified);
+        Files.getFileAttributeView(file.toPath(), BasicFileAttributeView.class).setTimes(time, time, null);
+        return file;
+    }
+
+    @Test
+    public void countsDownloadsAsMissesAndReuseAsHits() throws Exception {
+        FilePath dir = new FilePath(tmp.getRoot());
+
+        PackerSharedCache.Lease first = PackerSharedCache.acquire(dir, "node", "job-1");
+        write(tmp.getRoot(), "a.iso", 100, System.currentTimeMillis());
+        PackerSharedCache.Stats stats = PackerSharedCache.release(first, 1000);
+        assertEquals(1, stats.getBuildMisses());
+        assertEquals(100, stats.getBuildBytesDownloaded());
+        assertEquals(0, stats.getHits());
+
+        PackerSharedCache.Lease second = PackerSharedCache.acquire(dir, "node", "job-2");
+        stats = PackerSharedCache.release(second, 1000);
+        assertEquals(0, stats.getBuildMisses());
+        assertEquals(1, stats.getHits());
+        assertEquals(1, stats.getMisses());
+        assertEquals(100, stats.getSize());
+        assertEquals(1, PackerSharedCache.getStats().get("node").getHits());
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsedOnceNoBuildHoldsTheCache() throws Exception {
+        PackerSharedCache.MIN_AGE = 0;
+        FilePath dir = new FilePath(tmp.getRoot());
+        long now = System.currentTimeMillis();
+        File old = write(tmp.getRoot(), "old.iso", 600, now - 100000);
+        File recent = write(tmp.getRoot(), "recent.iso", 600, now - 1000);
+
+        PackerSharedCache.Stats stats = PackerSharedCache.release(PackerSharedCache.acquire(dir, "node", "job-1"),
+                1000);
+        assertFalse(old.exists());
+        assertTrue(recent.exists());
+        assertEquals(1, stats.getEvictions());
+        assertEquals(600, stats.getSize());
+    }
+
+    @Test
+    public void evictsWhatRunningBuildsDidNotUse() throws Exception {
+        PackerSharedCache.MIN_AGE = 0;
+        FilePath dir = new FilePath(tmp.getRoot());
+        long now = System.currentTimeMillis();
+        File unused = write(tmp.getRoot(), "unused.iso", 600, now - 200000);
+        File used = write(tmp.getRoot(), "used.iso", 600, now - 100000);
+
+        PackerSharedCache.Lease running = PackerSharedCache.acquire(dir, "node", "job-1");
+        // read by the running build.
+        write(tmp.getRoot(), "used.iso", 600, System.currentTimeMillis());
+        PackerSharedCache.Stats stats = PackerSharedCache.release(PackerSharedCache.acquire(dir, "node", "job-2"),
+                1000);
+        assertFalse("the cache is held, but not this entry", unused.exists());
+        assertTrue(used.exists());
+        assertEquals(1, stats.getEvictions());
+
+        stats = PackerSharedCache.release(running, 500);
+        assertFalse(used.exists());
+        assertEquals(0, stats.getSize());
+    }
+
+    @Test
+    public void keepsItsOwnFilesOutOfTheEntries() throws Exception {
+        PackerSharedCache.release(PackerSharedCache.acquire(new FilePath(tmp.getRoot()), "node", "job"), 1000);
+        assertTrue(new File(tmp.getRoot(), ".stats").isFile());
+        assertTrue(PackerSharedCache.entries(tmp.getRoot()).isEmpty());
+    }
+}
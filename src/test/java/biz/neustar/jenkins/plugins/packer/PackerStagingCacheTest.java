@@ -0,0 +1,105 @@
+package biz.neustar.jenkins.plugins.packer;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import hudson.FilePath;
+import java.io.File;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class PackerStagingCacheTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void reusesUnchangedContents() throws Exception {
+        FilePath root = new FilePath(tmp.getRoot()).child(PackerStagingCache.CACHE_DIR);
+
+        String first = new PackerStaging().cacheRoot(root).templateText("{ \"here\": \"i am\"}")
+                .stage(root).getTemplate();
+        String second = new PackerStaging().cacheRoot(root).templateText("{ \"here\": \"i am\"}")
+                .stage(root).getTemplate();
+        String changed = new PackerStaging().cacheRoot(root).templateText("{ \"here\": \"changed\"}")
+                .stage(root).getTemplate();
+
+        assertEquals(first, second);
+        assertNotEquals(first, changed);
+        assertTrue(first.endsWith(".json"));
+        assertEquals("{ \"here\": \"i am\"}", Files.toString(new File(first), Charsets.UTF_8));
+        assertEquals(2, root.list().size());
+    }
+
+    @Test
+    public void evictsExpiredFiles() throws Exception {
+        File dir = tmp.newFolder(PackerStagingCache.CACHE_DIR);
+        File old = new File(PackerStagingCache.stageLocal(dir, "old.tmp", "old"));
+        old.setLastModified(System.currentTimeMillis() - PackerStagingCache.MAX_AGE - 1000);
+
+        File fresh = new File(PackerStagingCache.stageLocal(dir, "fresh.tmp", "fresh"));
+
+        assertFalse(old.exists());
+        assertTrue(fresh.exists());
+    }
+
+    @Test
+    public void templateTextStaysInTheWorkingDir() throws Exception {
+        FilePath workingDir = new FilePath(tmp.newFolder("workspace"));
+        FilePath root = new FilePath(tmp.getRoot()).child(PackerStagingCache.CACHE_DIR);
+        File old = new File(workingDir.getRemote(), "old.tmp");
+        Files.write("old", old, Charsets.UTF_8);
+        old.setLastModified(System.currentTimeMillis() - PackerStagingCache.MAX_AGE - 1000);
+
+        PackerStaging staging = new PackerStaging().cacheRoot(root).templateDir(workingDir)
+                .templateText("{ \"here\": \"i am\"}");
+        String first = staging.stage(workingDir).getTemplate();
+        String second = staging.stage(workingDir).getTemplate();
+
+        assertEquals(first, second);
+        assertEquals(new File(workingDir.getRemote(),
+                "packer-" + PackerStagingCache.sha256("{ \"here\": \"i am\"}") + ".json").getPath(), first);
+        // nothing of the workspace is evicted.
+        assertTrue(old.exists());
+    }
+
+    @Test
+    public void onlyMissingContentsAreShipped() throws Exception {
+        File dir = tmp.newFolder(PackerStagingCache.CACHE_DIR);
+        String fileName = "packer-" + PackerStagingCache.sha256("cert") + ".tmp";
+
+        // without contents, only a file staged before is reused.
+        assertNull(PackerStagingCache.stageLocal(dir, fileName, null));
+        String staged = PackerStagingCache.stageLocal(dir, fileName, "cert");
+        assertEquals(staged, PackerStagingCache.stageLocal(dir, fileName, null));
+    }
+
+    @Test
+    public void stagesFromHashesWhenCached() throws Exception {
+        FilePath workspace = new FilePath(tmp.newFolder("workspace"));
+        FilePath root = new FilePath(tmp.getRoot()).child(PackerStagingCache.CACHE_DIR);
+        Map<String, String> entries = new LinkedHashMap<>();
+        entries.put("x509_cert", "cert here");
+        entries.put("x509_key", "the key");
+
+        PackerStaging.Result first = new PackerStaging().cacheRoot(root).varFile(true).fileEntries(entries)
+                .stage(workspace);
+        entries.put("x509_key", "another key");
+        PackerStaging.Result second = new PackerStaging().cacheRoot(root).varFile(true).fileEntries(entries)
+                .stage(workspace);
+
+        assertEquals(first.getFileEntries().get("x509_cert"), second.getFileEntries().get("x509_cert"));
+        assertNotEquals(first.getFileEntries().get("x509_key"), second.getFileEntries().get("x509_key"));
+        assertEquals("another key", Files.toString(new File(second.getFileEntries().get("x509_key")), Charsets.UTF_8));
+        assertEquals(PackerStaging.toJson(second.getFileEntries()),
+                Files.toString(new File(second.getVarFile()), Charsets.UTF_8));
+    }
+}
@@ -0,0 +1,115 @@
+package biz.neustar.jenkins.plugins.packer;
+
+import hudson.EnvVars;
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.model.Computer;
+import hudson.model.TaskListener;
+import hudson.util.ArgumentListBuilder;
+import hudson.util.StreamTaskListener;
+import org.jenkinsci.plugins.durabletask.Controller;
+import org.jenkinsci.plugins.workflow.steps.StepContext;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.WithoutJenkins;
+
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class PackerStepExecutionTest {
+
+    @Rule
+    public JenkinsRule jenkinsRule = new JenkinsRule();
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private static boolean[] noMask(int size) {
+        return new boolean[size];
+    }
+
+    @WithoutJenkins
+    @Test
+    public void testUnixScript() {
+        String script = PackerStepExecution.toScript(
+                Arrays.asList("/opt/packer", "build", "-var", "name=it's $HOME", "/tmp/my template.json"),
+                noMask(5), true);
+        assertEquals("set +x\n'/opt/packer' 'build' '-var' 'name=it'\\''s $HOME' '/tmp/my template.json'\n", script);
+    }
+
+    @WithoutJenkins
+    @Test
+    public void testWindowsScript() {
+        String script = PackerStepExecution.toScript(
+                Arrays.asList("C:\\packer\\packer.exe", "build", "-var", "path=%TEMP%", "a\"b.json"), noMask(5), false);
+        assertEquals("@echo off\r\n\"C:\\packer\\packer.exe\" \"build\" \"-var\" \"path=%%TEMP%%\" \"a\"\"b.json\"\r\n",
+                script);
+    }
+
+    @WithoutJenkins
+    @Test
+    public void testMaskedArgsStayOutOfTheScript() {
+        ArgumentListBuilder args = new ArgumentListBuilder("/opt/packer", "build", "-var")
+                .addMasked("password=s3cret").add("template.json");
+
+        String unix = PackerStepExecution.toScript(args.toList(), args.toMaskArray(), true);
+        assertFalse(unix.contains("s3cret"));
+        assertEquals("set +x\n'/opt/packer' 'build' '-var' \"$PACKER_PLUGIN_ARG_3\" 'template.json'\n", unix);
+        String windows = PackerStepExecution.toScript(args.toList(), args.toMaskArray(), false);
+        assertFalse(windows.contains("s3cret"));
+        assertEquals("@echo off\r\n\"/opt/packer\" \"build\" \"-var\" \"%PACKER_PLUGIN_ARG_3%\" \"template.json\"\r\n",
+                windows);
+
+        Map<String, String> secrets = PackerStepExecution.secrets(args.toList(), args.toMaskArray());
+        assertEquals(Collections.singletonMap("PACKER_PLUGIN_ARG_3", "password=s3cret"), secrets);
+    }
+
+    private StepContext context() throws Exception {
+        StepContext context = mock(StepContext.class);
+        Launcher launcher = jenkinsRule.jenkins.createLauncher(TaskListener.NULL);
+        when(context.get(Launcher.class)).thenReturn(launcher);
+        when(context.get(TaskListener.class)).thenReturn(StreamTaskListener.fromStdout());
+        when(context.get(FilePath.class)).thenReturn(new FilePath(tmp.getRoot()));
+        when(context.get(EnvVars.class)).thenReturn(new EnvVars());
+        when(context.get(Computer.class)).thenReturn(jenkinsRule.jenkins.toComputer());
+        return context;
+    }
+
+    @Test
+    public void testResumeChecksTheRunningTask() throws Exception {
+        StepContext context = context();
+        Controller controller = mock(Controller.class);
+        when(controller.writeLog(any(FilePath.class), any(OutputStream.class))).thenReturn(false);
+        when(controller.exitStatus(any(FilePath.class), any(Launcher.class))).thenReturn(0);
+
+        new PackerStepExecution(context, controller, "", tmp.getRoot().getPath()).onResume();
+
+        verify(context, timeout(10000)).onSuccess(null);
+        verify(controller).cleanup(any(FilePath.class));
+    }
+
+    @Test
+    public void testStopWithoutPackerRunning() throws Exception {
+        StepContext context = context();
+        Controller controller = mock(Controller.class);
+        Exception cause = new InterruptedException("aborted");
+
+        // nothing carries the cookie, so the task is stopped right away.
+        new PackerStepExecution(context, controller, "", tmp.getRoot().getPath()).stop(cause);
+
+        verify(controller).stop(any(FilePath.class), any(Launcher.class));
+        verify(context).onFailure(cause);
+    }
+}
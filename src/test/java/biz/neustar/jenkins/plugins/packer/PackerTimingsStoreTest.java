@@ -0,0 +1,52 @@
+package biz.neustar.jenkins.plugins.packer;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PackerTimingsStoreTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void loadsTheMostRecentBuilds() throws Exception {
+        for (int build = 1; build <= 5; build++) {
+            Map<String, Long> phases = new LinkedHashMap<>();
+            phases.put(PackerTimingsAction.STAGING, 10L * build);
+            phases.put(PackerTimingsAction.RUN, 1000L * build);
+            PackerTimingsStore.append(tmp.getRoot(), build, phases);
+        }
+
+        TreeMap<Integer, Map<String, Long>> builds = PackerTimingsStore.load(tmp.getRoot(), 3);
+        assertEquals(3, builds.size());
+        assertEquals(Integer.valueOf(3), builds.firstKey());
+        assertEquals(Long.valueOf(5000), builds.get(5).get(PackerTimingsAction.RUN));
+    }
+
+    @Test
+    public void addsUpStepsOfOneBuild() throws Exception {
+        Map<String, Long> phases = new LinkedHashMap<>();
+        phases.put(PackerTimingsAction.RUN, 100L);
+        PackerTimingsStore.append(tmp.getRoot(), 7, phases);
+        PackerTimingsStore.append(tmp.getRoot(), 7, phases);
+
+        assertEquals(Long.valueOf(200), PackerTimingsStore.load(tmp.getRoot(), 10).get(7).get(PackerTimingsAction.RUN));
+    }
+
+    @Test
+    public void skipsMalformedLines() {
+        Map<Integer, Map<String, Long>> builds = new TreeMap<>();
+        PackerTimingsStore.parse("garbage", builds);
+        PackerTimingsStore.parse("3 run=abc staging=5 =1", builds);
+        assertEquals(1, builds.size());
+        assertEquals(1, builds.get(3).size());
+        assertTrue(builds.get(3).containsKey(PackerTimingsAction.STAGING));
+    }
+}